@@ -0,0 +1,388 @@
+package eu.opends.drivesense;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Live per-AOI statistics over the AOI stream of identifyAOI(): dwell time,
+ * number of glances, time to first fixation and the number of transitions
+ * between AOIs. Every sample is processed in O(1); AOIs are mapped to dense
+ * ids, per-AOI values are kept in primitive arrays and transitions in a
+ * LongCountMap keyed by the (from, to) id pair.
+ *
+ * The time between two samples is credited to the AOI of the earlier one.
+ * A glance lasts from entering an AOI until another AOI is entered; short
+ * stretches without AOI (e.g. saccades within the AOI) do not end it.
+ *
+ * If a snapshot directory is set, aoi_stats.csv and aoi_transitions.csv are
+ * rewritten there every snapshotInterval seconds of gaze time. addSample()
+ * only copies the statistics; the files are written by a background thread
+ * shared by all aggregators.
+ */
+public class AoiAggregator
+{
+	public static final String STATS_FILENAME = "aoi_stats.csv";
+	public static final String TRANSITIONS_FILENAME = "aoi_transitions.csv";
+
+	// longer gaps between samples (lost tracking, paused simulation) are not counted
+	private double maxSampleGap = 0.5;
+	// a glance continues over stretches without AOI shorter than this
+	private double glanceTolerance = 0.3;
+	private double snapshotInterval = 10;
+
+	private final AoiDictionary dictionary;
+	private final LongCountMap transitions = new LongCountMap();
+
+	private double[] dwellTime = new double[16];
+	private long[] glances = new long[16];
+	private double[] firstFixation = new double[16];
+
+	private double sessionStart = Double.NaN;
+	private double previousTime = Double.NaN;
+	private int previousId = AoiDictionary.NO_AOI;
+
+	// AOI of the current glance and when it was last seen
+	private int glanceId = AoiDictionary.NO_AOI;
+	private double glanceLastSeen = Double.NaN;
+
+	private static ExecutorService snapshotWriter;
+
+	private File snapshotDir = null;
+	private double lastSnapshot = Double.NaN;
+	// last snapshot handed to the snapshot writer
+	private Future<?> pendingSnapshot = null;
+
+
+	public AoiAggregator()
+	{
+		this(new AoiDictionary());
+	}
+
+
+	/**
+	 * @param dictionary shared with the producer of the AOI ids
+	 */
+	public AoiAggregator(AoiDictionary dictionary)
+	{
+		this.dictionary = dictionary;
+		Arrays.fill(firstFixation, Double.NaN);
+	}
+
+
+	public void setSnapshotDir(File snapshotDir)
+	{
+		this.snapshotDir = snapshotDir;
+	}
+
+
+	public File getSnapshotDir()
+	{
+		return snapshotDir;
+	}
+
+
+	public void setSnapshotInterval(double seconds)
+	{
+		this.snapshotInterval = seconds;
+	}
+
+
+	public void setMaxSampleGap(double seconds)
+	{
+		this.maxSampleGap = seconds;
+	}
+
+
+	public void setGlanceTolerance(double seconds)
+	{
+		this.glanceTolerance = seconds;
+	}
+
+
+	/**
+	 * Adds the AOI (or null) gazed at at the given gaze time in seconds.
+	 */
+	public void addSample(String aoi, double timestamp)
+	{
+		addSample(dictionary.idOf(aoi), timestamp);
+	}
+
+
+	/**
+	 * Adds the id of the AOI (in the dictionary of this aggregator) gazed at
+	 * at the given gaze time in seconds.
+	 */
+	public void addSample(int id, double timestamp)
+	{
+		ensureCapacity(id);
+
+		if(Double.isNaN(sessionStart))
+		{
+			sessionStart = timestamp;
+			lastSnapshot = timestamp;
+		}
+
+		// credit the elapsed time to the previous AOI
+		double dt = timestamp - previousTime;
+		if(dt > 0 && dt <= maxSampleGap)
+			dwellTime[previousId] += dt;
+
+		if(id != AoiDictionary.NO_AOI)
+		{
+			if(Double.isNaN(firstFixation[id]))
+				firstFixation[id] = timestamp - sessionStart;
+
+			boolean continued = (id == glanceId) && (timestamp - glanceLastSeen <= glanceTolerance);
+
+			if(!continued)
+			{
+				glances[id]++;
+
+				if(glanceId != AoiDictionary.NO_AOI && glanceId != id)
+					transitions.add(LongCountMap.pair(glanceId, id), 1);
+
+				glanceId = id;
+			}
+
+			glanceLastSeen = timestamp;
+		}
+
+		previousId = id;
+		previousTime = timestamp;
+
+		if(snapshotDir != null && timestamp - lastSnapshot >= snapshotInterval)
+		{
+			lastSnapshot = timestamp;
+			final Snapshot snapshot = new Snapshot(snapshotDir);
+			pendingSnapshot = snapshotWriter().submit(() -> snapshot.write());
+		}
+	}
+
+
+	private static synchronized ExecutorService snapshotWriter()
+	{
+		if(snapshotWriter == null)
+		{
+			snapshotWriter = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "AoiSnapshotWriter");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+		}
+
+		return snapshotWriter;
+	}
+
+
+	public AoiDictionary getDictionary()
+	{
+		return dictionary;
+	}
+
+
+	/**
+	 * Total time (s) spent on the AOI, null for time without AOI (id 0,
+	 * which unlike the other statistics has a dwell time).
+	 */
+	public double getDwellTime(String aoi)
+	{
+		// the dictionary may be shared with AOIs that never reached addSample()
+		int id = dictionary.find(aoi);
+		return (id < 0 || id >= dwellTime.length) ? 0 : dwellTime[id];
+	}
+
+
+	public long getGlanceCount(String aoi)
+	{
+		int id = dictionary.find(aoi);
+		return (id <= 0 || id >= glances.length) ? 0 : glances[id];
+	}
+
+
+	/**
+	 * Time (s) from the first sample of the session until the AOI was first
+	 * gazed at, NaN if it has not been gazed at yet.
+	 */
+	public double getTimeToFirstFixation(String aoi)
+	{
+		int id = dictionary.find(aoi);
+		return (id <= 0 || id >= firstFixation.length) ? Double.NaN : firstFixation[id];
+	}
+
+
+	public long getTransitionCount(String from, String to)
+	{
+		int fromId = dictionary.find(from);
+		int toId = dictionary.find(to);
+
+		if(fromId <= 0 || toId <= 0 || fromId >= glances.length || toId >= glances.length)
+			return 0;
+
+		return transitions.get(LongCountMap.pair(fromId, toId));
+	}
+
+
+	/**
+	 * Writes the current statistics on the calling thread, after the
+	 * snapshot still pending in the background. The files are replaced
+	 * atomically where the file system allows it, so readers never see
+	 * partial snapshots.
+	 */
+	public void writeSnapshot(File dir)
+	{
+		if(pendingSnapshot != null)
+		{
+			try {
+				pendingSnapshot.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+			pendingSnapshot = null;
+		}
+
+		new Snapshot(dir).write();
+	}
+
+
+	/**
+	 * Copy of the statistics, taken by the thread adding the samples.
+	 */
+	private class Snapshot
+	{
+		private final File dir;
+		private final String[] names;
+		private final double[] dwellTime;
+		private final long[] glances;
+		private final double[] firstFixation;
+		private final long[] transitionKeys;
+		private final long[] transitionCounts;
+
+
+		private Snapshot(File dir)
+		{
+			this.dir = dir;
+
+			int n = dictionary.size();
+			names = new String[n];
+			for(int id=0; id<n; id++)
+				names[id] = dictionary.nameOf(id);
+
+			// AOIs added since the last sample have no statistics yet
+			dwellTime = Arrays.copyOf(AoiAggregator.this.dwellTime, n);
+			glances = Arrays.copyOf(AoiAggregator.this.glances, n);
+			firstFixation = Arrays.copyOf(AoiAggregator.this.firstFixation, n);
+			for(int id=Math.min(n, AoiAggregator.this.firstFixation.length); id<n; id++)
+				firstFixation[id] = Double.NaN;
+
+			transitionKeys = new long[transitions.size()];
+			transitionCounts = new long[transitions.size()];
+			int i = 0;
+			for(int slot=0; slot<transitions.capacity(); slot++)
+			{
+				if(transitions.isUsed(slot))
+				{
+					transitionKeys[i] = transitions.keyAt(slot);
+					transitionCounts[i] = transitions.valueAt(slot);
+					i++;
+				}
+			}
+		}
+
+
+		private void write()
+		{
+			try {
+
+				File statsFile = new File(dir, STATS_FILENAME);
+				File statsTemp = new File(dir, STATS_FILENAME + ".tmp");
+
+				Writer writer = new BufferedWriter(new FileWriter(statsTemp));
+				try {
+					writer.write("AOI,DwellTime,Glances,TimeToFirstFixation\n");
+
+					for(int id=0; id<names.length; id++)
+					{
+						writer.write(String.valueOf(names[id]));
+						writer.write(',');
+						writer.write(Double.toString(dwellTime[id]));
+						writer.write(',');
+						writer.write(Long.toString(glances[id]));
+						writer.write(',');
+						if(!Double.isNaN(firstFixation[id]))
+							writer.write(Double.toString(firstFixation[id]));
+						writer.write('\n');
+					}
+				} finally {
+					writer.close();
+				}
+
+				File transitionsFile = new File(dir, TRANSITIONS_FILENAME);
+				File transitionsTemp = new File(dir, TRANSITIONS_FILENAME + ".tmp");
+
+				writer = new BufferedWriter(new FileWriter(transitionsTemp));
+				try {
+					writer.write("From,To,Count\n");
+
+					for(int i=0; i<transitionKeys.length; i++)
+					{
+						writer.write(names[LongCountMap.high(transitionKeys[i])]);
+						writer.write(',');
+						writer.write(names[LongCountMap.low(transitionKeys[i])]);
+						writer.write(',');
+						writer.write(Long.toString(transitionCounts[i]));
+						writer.write('\n');
+					}
+				} finally {
+					writer.close();
+				}
+
+				replace(statsTemp, statsFile);
+				replace(transitionsTemp, transitionsFile);
+
+			} catch (IOException e) {
+				System.out.println("Error while writing AOI statistics !!!");
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	private static void replace(File source, File target) throws IOException
+	{
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+
+	private void ensureCapacity(int id)
+	{
+		if(id >= dwellTime.length)
+		{
+			int length = Math.max(dwellTime.length * 2, id + 1);
+			int oldLength = dwellTime.length;
+
+			dwellTime = Arrays.copyOf(dwellTime, length);
+			glances = Arrays.copyOf(glances, length);
+			firstFixation = Arrays.copyOf(firstFixation, length);
+			Arrays.fill(firstFixation, oldLength, length, Double.NaN);
+		}
+	}
+}
@@ -0,0 +1,526 @@
+package eu.opends.drivesense;
+
+import java.util.List;
+
+/**
+ * Formatting and parsing of the rows of aoi_labels.csv:
+ *
+ * Surface,AOI,Timestamps
+ * screen,/path/to/geometry,1234.5678,1234.5712,...
+ *
+ * Rows are formatted into a reusable char buffer. Doubles are written as the
+ * shortest decimal that converts back to the same value, which is exactly
+ * what String.valueOf(double) prints, so the files stay identical to the
+ * ones written before. Values outside the fast path are still formatted by
+ * Double.toString().
+ *
+ * Lines are parsed in a single pass without split() or substrings. Surface
+ * and AOI names are interned, timestamps are stored in a primitive array.
+ */
+public class AoiCsvCodec
+{
+	public static final String FILE_HEADER = "Surface,AOI,Timestamps";
+	public static final char COLUMN_DELIMITER = ',';
+	public static final char NEW_LINE_SEPARATOR = '\n';
+
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private static final double MAX_EXACT = 9007199254740992.0; // 2^53
+	private static final int MAX_DIGITS = 17;
+
+	private char[] chars;
+	private int length = 0;
+
+	private final StringInterner interner = new StringInterner();
+
+
+	public AoiCsvCodec()
+	{
+		this(256);
+	}
+
+
+	public AoiCsvCodec(int capacity)
+	{
+		chars = new char[Math.max(16, capacity)];
+	}
+
+
+	// --- formatting ---------------------------------------------------------
+
+	public void reset()
+	{
+		length = 0;
+	}
+
+
+	public char[] getChars()
+	{
+		return chars;
+	}
+
+
+	public int length()
+	{
+		return length;
+	}
+
+
+	/**
+	 * Appends a row exactly as EyeTrackerIO.writeGazeToCSV() writes it.
+	 */
+	public void appendRow(String srf, String aoi, List<Double> timestamps)
+	{
+		append(srf);
+		append(COLUMN_DELIMITER);
+		append(aoi);
+
+		int nTimestamps = timestamps.size();
+		for(int i=0; i<nTimestamps; i++)
+		{
+			append(COLUMN_DELIMITER);
+			appendDouble(timestamps.get(i).doubleValue());
+		}
+
+		append(NEW_LINE_SEPARATOR);
+	}
+
+
+	public void appendRow(String srf, String aoi, double[] timestamps, int from, int count)
+	{
+		append(srf);
+		append(COLUMN_DELIMITER);
+		append(aoi);
+
+		for(int i=from; i<from+count; i++)
+		{
+			append(COLUMN_DELIMITER);
+			appendDouble(timestamps[i]);
+		}
+
+		append(NEW_LINE_SEPARATOR);
+	}
+
+
+	public void append(String s)
+	{
+		if(s == null)
+			s = "null";
+
+		ensureCapacity(s.length());
+		s.getChars(0, s.length(), chars, length);
+		length += s.length();
+	}
+
+
+	public void append(char c)
+	{
+		ensureCapacity(1);
+		chars[length++] = c;
+	}
+
+
+	/**
+	 * Appends the same characters as String.valueOf(value).
+	 */
+	public void appendDouble(double value)
+	{
+		ensureCapacity(32);
+
+		int newLength = formatPlain(value, chars, length);
+
+		if(newLength < 0)
+			append(Double.toString(value));
+		else
+			length = newLength;
+	}
+
+
+	/**
+	 * Formats values in [1e-3, 1e7), the range Double.toString() prints
+	 * without exponent, as the shortest round-tripping decimal.
+	 *
+	 * @return the new end offset, or -1 if the value is not handled here
+	 */
+	static int formatPlain(double value, char[] buf, int offset)
+	{
+		double abs = Math.abs(value);
+
+		if(!(abs >= 1e-3 && abs < 1e7))
+			return -1;
+
+		if(value < 0)
+			buf[offset++] = '-';
+
+		if(abs == Math.rint(abs))
+		{
+			offset = appendLong((long) abs, buf, offset);
+			buf[offset++] = '.';
+			buf[offset++] = '0';
+			return offset;
+		}
+
+		for(int decimals=1; decimals<=MAX_DIGITS; decimals++)
+		{
+			double scaled = abs * POW10[decimals];
+
+			// beyond 2^53 the check below would no longer be exact
+			if(scaled >= MAX_EXACT)
+				return -1;
+
+			long rounded = Math.round(scaled);
+			long digits = -1;
+
+			// the product may be off by one, test the neighbours as well
+			for(long candidate = rounded-1; candidate <= rounded+1; candidate++)
+			{
+				if(candidate > 0 && candidate / POW10[decimals] == abs)
+				{
+					// more than one candidate: leave the tie to Double.toString()
+					if(digits >= 0)
+						return -1;
+
+					digits = candidate;
+				}
+			}
+
+			if(digits >= 0)
+				return appendFixed(digits, decimals, buf, offset);
+		}
+
+		return -1;
+	}
+
+
+	private static int appendFixed(long digits, int decimals, char[] buf, int offset)
+	{
+		long divisor = (long) POW10[decimals];
+
+		offset = appendLong(digits / divisor, buf, offset);
+		buf[offset++] = '.';
+
+		long fraction = digits % divisor;
+		int end = offset + decimals;
+
+		for(int i=end-1; i>=offset; i--)
+		{
+			buf[i] = (char) ('0' + fraction % 10);
+			fraction /= 10;
+		}
+
+		return end;
+	}
+
+
+	private static int appendLong(long value, char[] buf, int offset)
+	{
+		if(value == 0)
+		{
+			buf[offset] = '0';
+			return offset + 1;
+		}
+
+		int nDigits = 0;
+		for(long v = value; v > 0; v /= 10)
+			nDigits++;
+
+		int end = offset + nDigits;
+		for(int i=end-1; i>=offset; i--)
+		{
+			buf[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+
+		return end;
+	}
+
+
+	private void ensureCapacity(int extra)
+	{
+		if(length + extra > chars.length)
+		{
+			char[] larger = new char[Math.max(chars.length * 2, length + extra)];
+			System.arraycopy(chars, 0, larger, 0, length);
+			chars = larger;
+		}
+	}
+
+
+	// --- parsing ------------------------------------------------------------
+
+	/**
+	 * A parsed row. The instance is reused for every line; surface and AOI
+	 * are interned strings, the timestamps are valid up to getTimestampCount().
+	 */
+	public static class Row
+	{
+		private String surface;
+		private String aoi;
+		private double[] timestamps = new double[16];
+		private int nTimestamps = 0;
+
+		public String getSurface()
+		{
+			return surface;
+		}
+
+		public String getAOI()
+		{
+			return aoi;
+		}
+
+		public double[] getTimestamps()
+		{
+			return timestamps;
+		}
+
+		public int getTimestampCount()
+		{
+			return nTimestamps;
+		}
+
+		void reset(String surface, String aoi)
+		{
+			this.surface = surface;
+			this.aoi = aoi;
+			this.nTimestamps = 0;
+		}
+
+		void addTimestamp(double ts)
+		{
+			if(nTimestamps == timestamps.length)
+			{
+				double[] larger = new double[timestamps.length * 2];
+				System.arraycopy(timestamps, 0, larger, 0, nTimestamps);
+				timestamps = larger;
+			}
+
+			timestamps[nTimestamps++] = ts;
+		}
+	}
+
+
+	/**
+	 * Parses one line (without line separator) into the given row.
+	 *
+	 * @return false for empty lines and lines without AOI column
+	 * @throws NumberFormatException if a timestamp cannot be parsed
+	 */
+	public boolean parseLine(CharSequence line, Row row)
+	{
+		return parseLine(line, 0, line.length(), row);
+	}
+
+
+	public boolean parseLine(CharSequence line, int start, int end, Row row)
+	{
+		// tolerate Windows line endings
+		if(end > start && line.charAt(end - 1) == '\r')
+			end--;
+
+		int srfEnd = indexOf(line, COLUMN_DELIMITER, start, end);
+		if(srfEnd < 0)
+			return false;
+
+		int aoiEnd = indexOf(line, COLUMN_DELIMITER, srfEnd + 1, end);
+		if(aoiEnd < 0)
+			aoiEnd = end;
+
+		row.reset(interner.intern(line, start, srfEnd), interner.intern(line, srfEnd + 1, aoiEnd));
+
+		int pos = aoiEnd + 1;
+		while(pos < end)
+		{
+			int tokenEnd = indexOf(line, COLUMN_DELIMITER, pos, end);
+			if(tokenEnd < 0)
+				tokenEnd = end;
+
+			if(tokenEnd > pos)
+				row.addTimestamp(parseDouble(line, pos, tokenEnd));
+
+			pos = tokenEnd + 1;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Parses a decimal number. Values with up to 15 significant digits and
+	 * small exponents are converted exactly without allocation; everything
+	 * else goes through Double.parseDouble(), so the result is always
+	 * identical to Double.parseDouble().
+	 */
+	public static double parseDouble(CharSequence s, int start, int end)
+	{
+		int pos = start;
+		boolean negative = false;
+
+		if(pos < end && (s.charAt(pos) == '-' || s.charAt(pos) == '+'))
+			negative = (s.charAt(pos++) == '-');
+
+		long mantissa = 0;
+		int digits = 0;
+		int exp10 = 0;
+		boolean anyDigit = false;
+		boolean exact = true;
+		char c = 0;
+
+		while(pos < end && (c = s.charAt(pos)) >= '0' && c <= '9')
+		{
+			anyDigit = true;
+			pos++;
+
+			if(mantissa != 0 || c != '0')
+				digits++;
+			mantissa = mantissa * 10 + (c - '0');
+			exact &= (digits <= 15);
+		}
+
+		if(pos < end && c == '.')
+		{
+			pos++;
+
+			while(pos < end && (c = s.charAt(pos)) >= '0' && c <= '9')
+			{
+				anyDigit = true;
+				pos++;
+
+				if(mantissa != 0 || c != '0')
+					digits++;
+				mantissa = mantissa * 10 + (c - '0');
+				exp10--;
+				exact &= (digits <= 15);
+			}
+		}
+
+		if(pos < end && (c == 'E' || c == 'e'))
+		{
+			pos++;
+
+			boolean negativeExp = false;
+			if(pos < end && (s.charAt(pos) == '-' || s.charAt(pos) == '+'))
+				negativeExp = (s.charAt(pos++) == '-');
+
+			int exp = 0;
+			boolean anyExpDigit = false;
+
+			while(pos < end && (c = s.charAt(pos)) >= '0' && c <= '9')
+			{
+				anyExpDigit = true;
+				pos++;
+				if(exp < 10000)
+					exp = exp * 10 + (c - '0');
+			}
+
+			exact &= anyExpDigit;
+			exp10 += negativeExp ? -exp : exp;
+		}
+
+		if(exact && anyDigit && pos == end && exp10 >= -22 && exp10 <= 22)
+		{
+			double value = (exp10 < 0) ? mantissa / POW10[-exp10] : mantissa * POW10[exp10];
+			return negative ? -value : value;
+		}
+
+		// NaN, Infinity, long mantissas, large exponents, malformed input
+		return Double.parseDouble(s.subSequence(start, end).toString().trim());
+	}
+
+
+	private static int indexOf(CharSequence s, char c, int from, int end)
+	{
+		for(int i=from; i<end; i++)
+			if(s.charAt(i) == c)
+				return i;
+
+		return -1;
+	}
+
+
+	/**
+	 * Small open-addressing table that returns the same String instance for
+	 * equal character ranges, so repeated surface and AOI names are only
+	 * allocated once.
+	 */
+	static class StringInterner
+	{
+		private static final int MAX_SIZE = 1 << 16;
+
+		private String[] table = new String[256];
+		private int size = 0;
+
+
+		String intern(CharSequence s, int start, int end)
+		{
+			int hash = 0;
+			for(int i=start; i<end; i++)
+				hash = 31 * hash + s.charAt(i);
+
+			int mask = table.length - 1;
+			int slot = mix(hash) & mask;
+
+			String candidate;
+			while((candidate = table[slot]) != null)
+			{
+				if(candidate.hashCode() == hash && contentEquals(candidate, s, start, end))
+					return candidate;
+
+				slot = (slot + 1) & mask;
+			}
+
+			String result = s.subSequence(start, end).toString();
+
+			// do not grow without bound on pathological input
+			if(size < MAX_SIZE)
+			{
+				table[slot] = result;
+				if(++size * 2 > table.length)
+					rehash();
+			}
+
+			return result;
+		}
+
+
+		private void rehash()
+		{
+			String[] old = table;
+			table = new String[old.length * 2];
+			int mask = table.length - 1;
+
+			for(String s : old)
+			{
+				if(s != null)
+				{
+					int slot = mix(s.hashCode()) & mask;
+					while(table[slot] != null)
+						slot = (slot + 1) & mask;
+					table[slot] = s;
+				}
+			}
+		}
+
+
+		private static int mix(int hash)
+		{
+			return hash ^ (hash >>> 16);
+		}
+
+
+		private static boolean contentEquals(String candidate, CharSequence s, int start, int end)
+		{
+			if(candidate.length() != end - start)
+				return false;
+
+			for(int i=0; i<candidate.length(); i++)
+				if(candidate.charAt(i) != s.charAt(start + i))
+					return false;
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package eu.opends.drivesense;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Assigns dense int ids to AOI names, so per-AOI statistics can be kept in
+ * primitive arrays. Id 0 stands for "no AOI" (null).
+ */
+public class AoiDictionary
+{
+	public static final int NO_AOI = 0;
+
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final List<String> names = new ArrayList<String>();
+
+	// the AOI stream mostly repeats the same String instance
+	private String lastName = null;
+	private int lastId = NO_AOI;
+
+
+	public AoiDictionary()
+	{
+		names.add(null);
+	}
+
+
+	/**
+	 * Returns the id of the given AOI, assigning a new one if necessary.
+	 */
+	public int idOf(String name)
+	{
+		if(name == null)
+			return NO_AOI;
+
+		if(name == lastName)
+			return lastId;
+
+		Integer id = ids.get(name);
+
+		if(id == null)
+		{
+			id = names.size();
+			names.add(name);
+			ids.put(name, id);
+		}
+
+		lastName = name;
+		lastId = id;
+		return id;
+	}
+
+
+	/**
+	 * Returns the id of the given AOI or -1 if it has not been seen.
+	 */
+	public int find(String name)
+	{
+		if(name == null)
+			return NO_AOI;
+
+		Integer id = ids.get(name);
+		return (id == null) ? -1 : id;
+	}
+
+
+	public String nameOf(int id)
+	{
+		return names.get(id);
+	}
+
+
+	/**
+	 * Number of ids including NO_AOI.
+	 */
+	public int size()
+	{
+		return names.size();
+	}
+}
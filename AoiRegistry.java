@@ -0,0 +1,183 @@
+package eu.opends.drivesense;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+
+import eu.opends.tools.Util;
+
+/**
+ * Caches the AOI id and path of every picked geometry, so picking the same
+ * object again neither walks the scene graph to build a new path string nor
+ * hashes it. Paths are interned through the AoiDictionary, so the same AOI is
+ * always the same String instance and the same int id.
+ *
+ * An entry remembers the ancestor chain (nodes and their names) the path was
+ * built from; if the geometry has been reparented, detached or an ancestor
+ * renamed, the path is computed again.
+ */
+public class AoiRegistry
+{
+	// prune detached geometries once the cache grows beyond this
+	private static final int PRUNE_SIZE = 16 * 1024;
+
+	private final AoiDictionary dictionary;
+	private final IdentityHashMap<Geometry, CachedPath> entries = new IdentityHashMap<Geometry, CachedPath>();
+	private int pruneSize = PRUNE_SIZE;
+
+	private long hits = 0;
+	private long misses = 0;
+
+
+	private static class CachedPath
+	{
+		int id;
+		Spatial[] ancestors;
+		String[] names;
+	}
+
+
+	public AoiRegistry(AoiDictionary dictionary)
+	{
+		this.dictionary = dictionary;
+	}
+
+
+	public AoiDictionary getDictionary()
+	{
+		return dictionary;
+	}
+
+
+	/**
+	 * Returns the AOI id of the geometry, AoiDictionary.NO_AOI for null.
+	 */
+	public int idOf(Geometry geometry)
+	{
+		if(geometry == null)
+			return AoiDictionary.NO_AOI;
+
+		CachedPath cached = entries.get(geometry);
+
+		if(cached != null && isValid(geometry, cached))
+		{
+			hits++;
+			return cached.id;
+		}
+
+		misses++;
+
+		if(cached == null)
+		{
+			if(entries.size() >= pruneSize)
+				prune();
+
+			cached = new CachedPath();
+			entries.put(geometry, cached);
+		}
+
+		cached.id = dictionary.idOf(Util.getPath(geometry));
+		recordAncestors(geometry, cached);
+
+		return cached.id;
+	}
+
+
+	/**
+	 * Returns the interned path of the geometry, null for null.
+	 */
+	public String pathOf(Geometry geometry)
+	{
+		return dictionary.nameOf(idOf(geometry));
+	}
+
+
+	public long getHits()
+	{
+		return hits;
+	}
+
+
+	public long getMisses()
+	{
+		return misses;
+	}
+
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+
+	/**
+	 * Drops the cached paths of geometries that are no longer where they were
+	 * when the path was computed.
+	 */
+	public void prune()
+	{
+		Iterator<Map.Entry<Geometry, CachedPath>> it = entries.entrySet().iterator();
+		while(it.hasNext())
+		{
+			Map.Entry<Geometry, CachedPath> e = it.next();
+			if(!isValid(e.getKey(), e.getValue()))
+				it.remove();
+		}
+
+		// everything still attached: allow the cache to grow
+		if(entries.size() * 2 > pruneSize)
+			pruneSize *= 2;
+	}
+
+
+	public void clear()
+	{
+		entries.clear();
+	}
+
+
+	private static boolean isValid(Geometry geometry, CachedPath cached)
+	{
+		if(geometry.getName() != cached.names[0])
+			return false;
+
+		Node parent = geometry.getParent();
+
+		for(int i=1; i<cached.ancestors.length; i++)
+		{
+			if(parent != cached.ancestors[i] || parent.getName() != cached.names[i])
+				return false;
+
+			parent = parent.getParent();
+		}
+
+		// the chain must end where it ended before
+		return parent == null;
+	}
+
+
+	private static void recordAncestors(Geometry geometry, CachedPath cached)
+	{
+		int depth = 0;
+		for(Spatial s = geometry; s != null; s = s.getParent())
+			depth++;
+
+		if(cached.ancestors == null || cached.ancestors.length != depth)
+		{
+			cached.ancestors = new Spatial[depth];
+			cached.names = new String[depth];
+		}
+
+		int i = 0;
+		for(Spatial s = geometry; s != null; s = s.getParent())
+		{
+			cached.ancestors[i] = s;
+			cached.names[i] = s.getName();
+			i++;
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package eu.opends.drivesense;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import eu.opends.drivesense.domain.GazePosition;
+
+/**
+ * Writes gaze annotation rows on a background thread. The simulation thread
+ * only enqueues the rows; the writer thread formats them with AoiCsvCodec
+ * into a reusable char buffer and hands the buffer to the underlying Writer whenever it
+ * exceeds a size threshold or a flush interval has elapsed. If a columnar
+ * writer is given, the rows are also written to it on the same thread. With
+ * a journal, every flushed buffer is committed to it first, so a flush
+ * costs one fsync.
+ *
+ * The Writer, columnar writer and journal belong to the writer thread from
+ * construction on: only that thread writes and closes them, when it ends.
+ *
+ * A row must not be modified after it has been passed to write().
+ */
+public class AsyncCsvWriter implements Runnable
+{
+	private static final int QUEUE_CAPACITY = 16384;
+	private static final int DRAIN_BATCH = 512;
+
+	// max. time (ms) the writer thread waits before checking for close()
+	private static final long POLL_INTERVAL = 50;
+
+	private final Writer writer;
+	private final ColumnarRecordingWriter columnarWriter;
+	private final GazeJournal journal;
+	private final ArrayBlockingQueue<GazePosition> queue = new ArrayBlockingQueue<GazePosition>(QUEUE_CAPACITY);
+	private final ArrayList<GazePosition> drained = new ArrayList<GazePosition>(DRAIN_BATCH);
+	private final Thread thread;
+
+	// flush when this many chars are buffered ...
+	private final int flushSize;
+	// ... or when the oldest buffered row is older than this (ms)
+	private final long flushInterval;
+
+	private final AoiCsvCodec codec;
+
+	private volatile boolean closeRequested = false;
+	// a sink threw, the thread has ended or is ending and rows are lost
+	private volatile boolean failed = false;
+	private volatile long writtenRows = 0;
+	// rows in the codec buffer, counted as written once it is flushed
+	private long bufferedRows = 0;
+	private volatile long droppedRows = 0;
+
+
+	public AsyncCsvWriter(Writer writer)
+	{
+		this(writer, null);
+	}
+
+
+	/**
+	 * @param writer CSV output, may be null if only columnarWriter is used
+	 * @param columnarWriter columnar output, may be null
+	 */
+	public AsyncCsvWriter(Writer writer, ColumnarRecordingWriter columnarWriter)
+	{
+		this(writer, columnarWriter, "AsyncCsvWriter");
+	}
+
+
+	/**
+	 * @param threadName name of the writer thread, e.g. per participant
+	 */
+	public AsyncCsvWriter(Writer writer, ColumnarRecordingWriter columnarWriter, String threadName)
+	{
+		this(writer, columnarWriter, null, 64 * 1024, 1000, threadName);
+	}
+
+
+	public AsyncCsvWriter(Writer writer, ColumnarRecordingWriter columnarWriter, int flushSize, long flushInterval)
+	{
+		this(writer, columnarWriter, null, flushSize, flushInterval, "AsyncCsvWriter");
+	}
+
+
+	/**
+	 * @param journal journal the CSV text is committed to before it is written, may be null;
+	 *        it is closed together with the writers
+	 * @param flushInterval also the commit interval of the journal
+	 */
+	public AsyncCsvWriter(Writer writer, ColumnarRecordingWriter columnarWriter, GazeJournal journal,
+			int flushSize, long flushInterval, String threadName)
+	{
+		this.writer = writer;
+		this.columnarWriter = columnarWriter;
+		this.journal = journal;
+		this.flushSize = flushSize;
+		this.flushInterval = flushInterval;
+		this.codec = new AoiCsvCodec(flushSize + 1024);
+
+		thread = new Thread(this, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	/**
+	 * Enqueues a row without blocking.
+	 *
+	 * @return false if the queue is full, the writer is closed or has failed;
+	 *         the row is dropped and counted in that case
+	 */
+	public boolean write(GazePosition row)
+	{
+		if(closeRequested || failed || !queue.offer(row))
+		{
+			droppedRows++;
+			return false;
+		}
+
+		return true;
+	}
+
+
+	@Override
+	public void run()
+	{
+		long flushDeadline = Long.MAX_VALUE;
+
+		try {
+
+			while(!closeRequested || !queue.isEmpty())
+			{
+				long waitTime = (codec.length() > 0) ? Math.max(0, flushDeadline - System.currentTimeMillis()) : flushInterval;
+				waitTime = Math.min(waitTime, POLL_INTERVAL);
+
+				GazePosition row = queue.poll(waitTime, TimeUnit.MILLISECONDS);
+
+				if(row != null)
+				{
+					if(codec.length() == 0)
+						flushDeadline = System.currentTimeMillis() + flushInterval;
+
+					appendRow(row);
+
+					drained.clear();
+					queue.drainTo(drained, DRAIN_BATCH);
+					for(int i=0; i<drained.size(); i++)
+						appendRow(drained.get(i));
+					drained.clear();
+				}
+
+				if(codec.length() >= flushSize || (codec.length() > 0 && System.currentTimeMillis() >= flushDeadline))
+					flushBuffer();
+			}
+
+		} catch (InterruptedException e) {
+			// close() timed out, write what we have
+		} catch (IOException e) {
+			failed = true;
+			System.out.println("Error in AsyncCsvWriter !!!");
+			e.printStackTrace();
+		} finally {
+			// each sink is closed even if another one failed
+			try {
+				// the journal still takes the buffer if only the CSV file failed
+				flushBuffer();
+			} catch (IOException e) {
+				failed = true;
+				System.out.println("Error while flushing AsyncCsvWriter !!!");
+				e.printStackTrace();
+			}
+			try {
+				if(writer != null)
+					writer.close();
+			} catch (IOException e) {
+				failed = true;
+				System.out.println("Error while closing the CSV writer of AsyncCsvWriter !!!");
+				e.printStackTrace();
+			}
+			try {
+				if(columnarWriter != null)
+					columnarWriter.close();
+			} catch (IOException e) {
+				failed = true;
+				System.out.println("Error while closing the columnar writer of AsyncCsvWriter !!!");
+				e.printStackTrace();
+			}
+			try {
+				if(journal != null)
+					journal.close();
+			} catch (IOException e) {
+				failed = true;
+				System.out.println("Error while closing the journal of AsyncCsvWriter !!!");
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 * Stops accepting rows and lets the writer thread write the queued rows
+	 * and close the sinks. Waits at most the given time for the queue to
+	 * drain; rows still queued after that are discarded and the thread is
+	 * interrupted. The sinks must not be touched by the caller afterwards,
+	 * even if false is returned: the thread may still be closing them.
+	 *
+	 * @return true if all queued rows have been written and the sinks are
+	 *         closed; false if rows were discarded or a sink failed, also
+	 *         when the thread had ended before
+	 */
+	public boolean close(long timeoutMillis)
+	{
+		closeRequested = true;
+
+		try {
+
+			thread.join(timeoutMillis);
+
+			if(thread.isAlive())
+			{
+				int discarded = queue.size();
+				queue.clear();
+				droppedRows += discarded;
+
+				// give the thread the chance to close the sinks before the
+				// caller takes the file sizes
+				thread.interrupt();
+				thread.join(timeoutMillis);
+				return false;
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		// rows queued after the thread died on a sink error
+		int discarded = queue.size();
+		queue.clear();
+		droppedRows += discarded;
+
+		return !failed && discarded == 0;
+	}
+
+
+	/**
+	 * True once a sink threw; the rows are then only in the journal, if any.
+	 */
+	public boolean isFailed()
+	{
+		return failed;
+	}
+
+
+	public long getWrittenRows()
+	{
+		return writtenRows;
+	}
+
+
+	public long getDroppedRows()
+	{
+		return droppedRows;
+	}
+
+
+	public int getQueueSize()
+	{
+		return queue.size();
+	}
+
+
+	private void appendRow(GazePosition row) throws IOException
+	{
+		if(columnarWriter != null)
+			columnarWriter.writeRow(row.getSrf(), row.getAOI(), row.getTimestamps());
+
+		if(writer != null || journal != null)
+		{
+			codec.appendRow(row.getSrf(), row.getAOI(), row.getTimestamps());
+			bufferedRows++;
+		}
+		else
+			writtenRows++;
+	}
+
+
+	private void flushBuffer() throws IOException
+	{
+		if(codec.length() > 0)
+		{
+			if(journal != null)
+			{
+				journal.append(codec.getChars(), 0, codec.length());
+				journal.commit();
+			}
+
+			if(writer != null)
+			{
+				writer.write(codec.getChars(), 0, codec.length());
+				writer.flush();
+			}
+			codec.reset();
+
+			writtenRows += bufferedRows;
+			bufferedRows = 0;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package eu.opends.drivesense;
+
+/**
+ * Layout of compressed recordings (aoi_labels.csv.gz). The CSV text is split
+ * at line boundaries into blocks that are compressed independently, each
+ * one a complete gzip member, so gzip, zcat and GZIPInputStream read the
+ * file as one stream.
+ *
+ * member:  gzip header with FLG.FEXTRA and the subfield SI1 SI2 = 'O' 'D',
+ *          LEN = 8: int member size, int uncompressed size (little-endian,
+ *          like all gzip fields), raw deflate data, int CRC32, int ISIZE
+ *
+ * The sizes in the header let a reader find the blocks without inflating
+ * them. On close the writer also stores the block index in a sidecar file
+ * (aoi_labels.csv.gz.idx), big-endian as written by a DataOutputStream:
+ *
+ * header:  int INDEX_MAGIC, int VERSION, int block count
+ * blocks:  long offset, long uncompressed offset, int member size,
+ *          int uncompressed size
+ *
+ * A file cut off by a crash has no index; its blocks are found by walking
+ * the member headers up to the last complete member.
+ */
+public class BlockGzip
+{
+	public static final String FILE_NAME = EyeTrackerIO.ANNOTATIONS_FILENAME + ".gz";
+	public static final String INDEX_SUFFIX = ".idx";
+
+	// "GZIX"
+	public static final int INDEX_MAGIC = 0x475A4958;
+	public static final int VERSION = 1;
+
+	static final int ID1 = 0x1f;
+	static final int ID2 = 0x8b;
+	static final int CM_DEFLATE = 8;
+	static final int FLG_FEXTRA = 0x04;
+	static final int OS_UNKNOWN = 255;
+
+	static final byte SI1 = 'O';
+	static final byte SI2 = 'D';
+	static final int EXTRA_LENGTH = 12;
+
+	// 10 bytes fixed header, XLEN, subfield
+	static final int HEADER_SIZE = 10 + 2 + EXTRA_LENGTH;
+	static final int TRAILER_SIZE = 8;
+
+
+	static void putIntLE(byte[] buffer, int offset, int value)
+	{
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >>> 8);
+		buffer[offset + 2] = (byte) (value >>> 16);
+		buffer[offset + 3] = (byte) (value >>> 24);
+	}
+
+
+	static int getIntLE(byte[] buffer, int offset)
+	{
+		return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8
+				| (buffer[offset + 2] & 0xff) << 16 | (buffer[offset + 3] & 0xff) << 24;
+	}
+}
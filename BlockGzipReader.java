@@ -0,0 +1,352 @@
+package eu.opends.drivesense;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads compressed recordings written by BlockGzipWriter. The block index is
+ * taken from the sidecar file if it matches the file, else from the member
+ * headers. Blocks are inflated in parallel; as every block holds whole
+ * lines, it is parsed on its own like a window of MappedAoiCsvReader.
+ */
+public class BlockGzipReader
+{
+	private final File file;
+
+	// per block: offset, uncompressed offset, member size, uncompressed size
+	private final long[] offsets;
+	private final long[] uncompressedOffsets;
+	private final int[] memberSizes;
+	private final int[] uncompressedSizes;
+
+
+	public BlockGzipReader(File file) throws IOException
+	{
+		this.file = file;
+
+		List<long[]> index = readIndex(file);
+		if(index == null)
+			index = scanMembers(file);
+
+		int n = index.size();
+		offsets = new long[n];
+		uncompressedOffsets = new long[n];
+		memberSizes = new int[n];
+		uncompressedSizes = new int[n];
+
+		for(int i=0; i<n; i++)
+		{
+			long[] entry = index.get(i);
+			offsets[i] = entry[0];
+			uncompressedOffsets[i] = entry[1];
+			memberSizes[i] = (int) entry[2];
+			uncompressedSizes[i] = (int) entry[3];
+		}
+	}
+
+
+	/**
+	 * The sidecar index, null if missing or not matching the file.
+	 */
+	private static List<long[]> readIndex(File file) throws IOException
+	{
+		File indexFile = new File(file.getPath() + BlockGzip.INDEX_SUFFIX);
+		if(!indexFile.isFile())
+			return null;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+
+			if(in.readInt() != BlockGzip.INDEX_MAGIC || in.readInt() != BlockGzip.VERSION)
+				return null;
+
+			int count = in.readInt();
+			List<long[]> index = new ArrayList<long[]>(count);
+			long end = 0;
+
+			for(int i=0; i<count; i++)
+			{
+				long[] entry = { in.readLong(), in.readLong(), in.readInt(), in.readInt() };
+				if(entry[0] != end)
+					return null;
+
+				end += entry[2];
+				index.add(entry);
+			}
+
+			return (end == file.length()) ? index : null;
+
+		} catch (IOException e) {
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Walks the member headers up to the last complete member.
+	 */
+	private static List<long[]> scanMembers(File file) throws IOException
+	{
+		List<long[]> index = new ArrayList<long[]>();
+		byte[] header = new byte[BlockGzip.HEADER_SIZE];
+		ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			long offset = 0;
+			long uncompressedOffset = 0;
+
+			while(offset + BlockGzip.HEADER_SIZE <= size)
+			{
+				headerBuffer.clear();
+				readFully(channel, headerBuffer, offset);
+
+				if((header[0] & 0xff) != BlockGzip.ID1 || (header[1] & 0xff) != BlockGzip.ID2
+						|| header[3] != BlockGzip.FLG_FEXTRA || header[12] != BlockGzip.SI1 || header[13] != BlockGzip.SI2)
+					throw new IOException("No block gzip member at " + offset + " in " + file);
+
+				int memberSize = BlockGzip.getIntLE(header, 16);
+				int uncompressedSize = BlockGzip.getIntLE(header, 20);
+
+				// torn by a crash
+				if(memberSize < BlockGzip.HEADER_SIZE + BlockGzip.TRAILER_SIZE || offset + memberSize > size)
+					break;
+
+				index.add(new long[] { offset, uncompressedOffset, memberSize, uncompressedSize });
+				offset += memberSize;
+				uncompressedOffset += uncompressedSize;
+			}
+		}
+
+		return index;
+	}
+
+
+	public int getBlockCount()
+	{
+		return offsets.length;
+	}
+
+
+	public long getUncompressedSize()
+	{
+		int n = offsets.length;
+		return (n == 0) ? 0 : uncompressedOffsets[n-1] + uncompressedSizes[n-1];
+	}
+
+
+	/**
+	 * The block holding the given offset of the uncompressed text, -1 if it
+	 * is beyond the end.
+	 */
+	public int findBlock(long uncompressedOffset)
+	{
+		int low = 0, high = offsets.length - 1;
+
+		while(low <= high)
+		{
+			int mid = (low + high) >>> 1;
+
+			if(uncompressedOffset < uncompressedOffsets[mid])
+				high = mid - 1;
+			else if(uncompressedOffset >= uncompressedOffsets[mid] + uncompressedSizes[mid])
+				low = mid + 1;
+			else
+				return mid;
+		}
+
+		return -1;
+	}
+
+
+	public long getUncompressedOffset(int block)
+	{
+		return uncompressedOffsets[block];
+	}
+
+
+	/**
+	 * Inflates one block.
+	 */
+	public byte[] readBlock(int block) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			return readBlock(channel, block);
+		}
+	}
+
+
+	private byte[] readBlock(FileChannel channel, int block) throws IOException
+	{
+		byte[] member = new byte[memberSizes[block]];
+		readFully(channel, ByteBuffer.wrap(member), offsets[block]);
+
+		byte[] text = new byte[uncompressedSizes[block]];
+		int dataLength = member.length - BlockGzip.HEADER_SIZE - BlockGzip.TRAILER_SIZE;
+
+		Inflater inflater = new Inflater(true);
+		try {
+
+			inflater.setInput(member, BlockGzip.HEADER_SIZE, dataLength);
+
+			int length = 0;
+			while(length < text.length && !inflater.finished())
+			{
+				int n = inflater.inflate(text, length, text.length - length);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				length += n;
+			}
+
+			if(length != text.length)
+				throw new IOException("Block " + block + " of " + file + " is truncated");
+
+		} catch (DataFormatException e) {
+			throw new IOException("Block " + block + " of " + file + " is corrupt", e);
+		} finally {
+			inflater.end();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(text, 0, text.length);
+		if((int) crc.getValue() != BlockGzip.getIntLE(member, member.length - BlockGzip.TRAILER_SIZE))
+			throw new IOException("Checksum error in block " + block + " of " + file);
+
+		return text;
+	}
+
+
+	/**
+	 * Visits all rows in order. Up to parallelism blocks are inflated ahead
+	 * of the block being parsed.
+	 *
+	 * @return number of rows visited
+	 */
+	public long forEach(MappedAoiCsvReader.RowVisitor visitor, int parallelism) throws IOException
+	{
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+
+		try {
+
+			MappedAoiCsvReader.RangeScanner scanner = new MappedAoiCsvReader.RangeScanner();
+			ArrayDeque<Future<byte[]>> ahead = new ArrayDeque<Future<byte[]>>();
+			int next = 0;
+			long rows = 0;
+
+			for(int block=0; block<offsets.length; block++)
+			{
+				while(next < offsets.length && ahead.size() < 2 * Math.max(1, parallelism))
+				{
+					final int b = next++;
+					ahead.add(executor.submit(() -> readBlock(channel, b)));
+				}
+
+				byte[] text = ahead.poll().get();
+				rows += scanner.scanLines(ByteBuffer.wrap(text), text.length, block == 0, visitor);
+			}
+
+			return rows;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading " + file, e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Could not read " + file, e.getCause());
+		} finally {
+			executor.shutdownNow();
+			channel.close();
+		}
+	}
+
+
+	/**
+	 * Visits all rows on up to the given number of threads. The blocks are
+	 * split into one contiguous range per thread; every range gets its own
+	 * visitor.
+	 *
+	 * @return the visitors in file order, ready to be merged by the caller
+	 */
+	public <V extends MappedAoiCsvReader.RowVisitor> List<V> forEachParallel(MappedAoiCsvReader.VisitorFactory<V> factory,
+			int parallelism) throws IOException
+	{
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		int nRanges = Math.max(1, Math.min(parallelism, offsets.length));
+		ExecutorService executor = Executors.newFixedThreadPool(nRanges);
+
+		try {
+
+			List<V> visitors = new ArrayList<V>(nRanges);
+			List<Future<Long>> results = new ArrayList<Future<Long>>(nRanges);
+
+			for(int i=0; i<nRanges; i++)
+			{
+				final V visitor = factory.create();
+				final int start = (int) ((long) offsets.length * i / nRanges);
+				final int end = (int) ((long) offsets.length * (i + 1) / nRanges);
+
+				visitors.add(visitor);
+				results.add(executor.submit(() -> {
+					MappedAoiCsvReader.RangeScanner scanner = new MappedAoiCsvReader.RangeScanner();
+					long rows = 0;
+					for(int block=start; block<end; block++)
+					{
+						byte[] text = readBlock(channel, block);
+						rows += scanner.scanLines(ByteBuffer.wrap(text), text.length, block == 0, visitor);
+					}
+					return rows;
+				}));
+			}
+
+			for(Future<Long> result : results)
+				result.get();
+
+			return visitors;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading " + file, e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Could not read " + file, e.getCause());
+		} finally {
+			executor.shutdownNow();
+			channel.close();
+		}
+	}
+
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			int read = channel.read(buffer, position);
+			if(read < 0)
+				throw new IOException("Unexpected end of file");
+			position += read;
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package eu.opends.drivesense;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes text as a block-compressed gzip file (see BlockGzip). Full blocks
+ * are encoded and deflated on a small pool of daemon threads shared by all
+ * writers; the writing thread only copies chars and appends the finished
+ * members in order. At most a few blocks per pool thread are in flight,
+ * after that write() waits for the oldest one.
+ *
+ * flush() only writes the blocks that are finished: a partial block is
+ * compressed when it is full or on close(), as flushing every row would
+ * leave nothing to compress. Not thread-safe.
+ */
+public class BlockGzipWriter extends Writer
+{
+	private static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+	private static ExecutorService compressors;
+	private static int compressorCount;
+
+	private final File file;
+	private final FileOutputStream out;
+	private final int blockSize;
+	private final int level;
+	private final int maxInFlight;
+
+	private char[] block;
+	private int blockLength = 0;
+	private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+
+	// block index, written on close
+	private final List<long[]> index = new ArrayList<long[]>();
+	private long offset = 0;
+	private long uncompressedOffset = 0;
+
+	private boolean closed = false;
+
+
+	public BlockGzipWriter(File file) throws IOException
+	{
+		this(file, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+	}
+
+
+	/**
+	 * @param blockSize chars per block; lines longer than that get a block of their own
+	 * @param level Deflater compression level
+	 */
+	public BlockGzipWriter(File file, int blockSize, int level) throws IOException
+	{
+		this.file = file;
+		this.out = new FileOutputStream(file);
+		this.blockSize = blockSize;
+		this.level = level;
+		this.block = new char[blockSize];
+		this.maxInFlight = 2 * compressorCount();
+	}
+
+
+	private static synchronized ExecutorService compressors()
+	{
+		if(compressors == null)
+		{
+			int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+			final AtomicInteger threadNumber = new AtomicInteger(0);
+			compressors = Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, "BlockGzipCompressor-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+			compressorCount = threads;
+		}
+
+		return compressors;
+	}
+
+
+	private static synchronized int compressorCount()
+	{
+		compressors();
+		return compressorCount;
+	}
+
+
+	public File getFile()
+	{
+		return file;
+	}
+
+
+	@Override
+	public void write(char[] chars, int off, int len) throws IOException
+	{
+		if(closed)
+			throw new IOException("BlockGzipWriter is closed");
+
+		while(len > 0)
+		{
+			if(blockLength == block.length)
+				submitBlock(false);
+
+			int n = Math.min(len, block.length - blockLength);
+			System.arraycopy(chars, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+		}
+
+		writeFinished(false);
+	}
+
+
+	/**
+	 * Compresses the block up to its last line break, the rest starts the
+	 * next block. A block without line break is grown.
+	 */
+	private void submitBlock(boolean all) throws IOException
+	{
+		int cut = blockLength;
+
+		if(!all)
+		{
+			cut = 0;
+			for(int i=blockLength-1; i>=0; i--)
+			{
+				if(block[i] == '\n')
+				{
+					cut = i + 1;
+					break;
+				}
+			}
+
+			if(cut == 0)
+			{
+				char[] larger = new char[block.length * 2];
+				System.arraycopy(block, 0, larger, 0, blockLength);
+				block = larger;
+				return;
+			}
+		}
+
+		if(cut == 0)
+			return;
+
+		final char[] text = new char[cut];
+		System.arraycopy(block, 0, text, 0, cut);
+
+		System.arraycopy(block, cut, block, 0, blockLength - cut);
+		blockLength -= cut;
+
+		if(block.length > blockSize && blockLength <= blockSize)
+			block = Arrays.copyOf(block, blockSize);
+
+		inFlight.add(compressors().submit(() -> compress(text, level)));
+
+		// back pressure
+		while(inFlight.size() > maxInFlight)
+			writeMember(inFlight.poll());
+	}
+
+
+	private void writeFinished(boolean wait) throws IOException
+	{
+		while(!inFlight.isEmpty() && (wait || inFlight.peek().isDone()))
+			writeMember(inFlight.poll());
+	}
+
+
+	private void writeMember(Future<byte[]> result) throws IOException
+	{
+		byte[] member;
+		try {
+			member = result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing " + file, e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not compress " + file, e.getCause());
+		}
+
+		out.write(member);
+
+		int uncompressedSize = BlockGzip.getIntLE(member, member.length - 4);
+		index.add(new long[] { offset, uncompressedOffset, member.length, uncompressedSize });
+		offset += member.length;
+		uncompressedOffset += uncompressedSize;
+	}
+
+
+	/**
+	 * Encodes and deflates one block into a complete gzip member.
+	 */
+	static byte[] compress(char[] text, int level)
+	{
+		ByteBuffer encoded = Charset.defaultCharset().encode(CharBuffer.wrap(text));
+		byte[] input = new byte[encoded.remaining()];
+		encoded.get(input);
+
+		CRC32 crc = new CRC32();
+		crc.update(input, 0, input.length);
+
+		Deflater deflater = new Deflater(level, true);
+		byte[] member = new byte[BlockGzip.HEADER_SIZE + input.length / 2 + 64];
+		int length = BlockGzip.HEADER_SIZE;
+
+		try {
+
+			deflater.setInput(input);
+			deflater.finish();
+
+			while(!deflater.finished())
+			{
+				if(length + BlockGzip.TRAILER_SIZE >= member.length)
+					member = Arrays.copyOf(member, member.length * 2);
+
+				length += deflater.deflate(member, length, member.length - length - BlockGzip.TRAILER_SIZE);
+			}
+
+		} finally {
+			deflater.end();
+		}
+
+		int memberSize = length + BlockGzip.TRAILER_SIZE;
+
+		member[0] = (byte) BlockGzip.ID1;
+		member[1] = (byte) BlockGzip.ID2;
+		member[2] = (byte) BlockGzip.CM_DEFLATE;
+		member[3] = (byte) BlockGzip.FLG_FEXTRA;
+		// MTIME 0, XFL 0
+		member[9] = (byte) BlockGzip.OS_UNKNOWN;
+		member[10] = (byte) BlockGzip.EXTRA_LENGTH;
+		member[11] = 0;
+		member[12] = BlockGzip.SI1;
+		member[13] = BlockGzip.SI2;
+		member[14] = 8;
+		member[15] = 0;
+		BlockGzip.putIntLE(member, 16, memberSize);
+		BlockGzip.putIntLE(member, 20, input.length);
+
+		BlockGzip.putIntLE(member, length, (int) crc.getValue());
+		BlockGzip.putIntLE(member, length + 4, input.length);
+
+		return Arrays.copyOf(member, memberSize);
+	}
+
+
+	/**
+	 * Writes the blocks that are compressed by now.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		if(closed)
+			return;
+
+		writeFinished(false);
+		out.flush();
+	}
+
+
+	/**
+	 * Compresses the remaining text, waits for all blocks and writes the
+	 * index.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if(closed)
+			return;
+
+		closed = true;
+
+		try {
+			submitBlock(true);
+			writeFinished(true);
+		} finally {
+			out.close();
+		}
+
+		writeIndex();
+	}
+
+
+	private void writeIndex() throws IOException
+	{
+		File indexFile = new File(file.getPath() + BlockGzip.INDEX_SUFFIX);
+
+		DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+		try {
+			indexOut.writeInt(BlockGzip.INDEX_MAGIC);
+			indexOut.writeInt(BlockGzip.VERSION);
+			indexOut.writeInt(index.size());
+
+			for(long[] entry : index)
+			{
+				indexOut.writeLong(entry[0]);
+				indexOut.writeLong(entry[1]);
+				indexOut.writeInt((int) entry[2]);
+				indexOut.writeInt((int) entry[3]);
+			}
+		} finally {
+			indexOut.close();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package eu.opends.drivesense;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the columnar recording format (aoi_labels.aoic), a compact
+ * alternative to aoi_labels.csv. All fixed-width values are big-endian.
+ *
+ * header:  int MAGIC, int VERSION
+ * chunks:  per chunk of up to CHUNK_ROWS rows four column blocks
+ *          - surface ids      (varint per row)
+ *          - AOI ids          (varint per row)
+ *          - timestamp counts (varint per row)
+ *          - timestamps       (zigzag varint of the difference between the
+ *                              raw bits of a timestamp and its predecessor
+ *                              in the chunk; the first one is stored whole)
+ * footer:  dictionary and chunk index, see ColumnarRecordingWriter
+ * trailer: long footer offset, int MAGIC
+ *
+ * Surface and AOI names are dictionary encoded, id 0 stands for null.
+ * Increasing timestamps have increasing bit patterns, so the deltas are
+ * small and the encoding is lossless. The chunk index lists the AOI ids of
+ * each chunk, so a query for one AOI only reads the chunks containing it.
+ */
+public class ColumnarRecording
+{
+	public static final String FILE_NAME = "aoi_labels.aoic";
+
+	// "AOIC"
+	public static final int MAGIC = 0x414F4943;
+	public static final int VERSION = 1;
+
+	public static final int CHUNK_ROWS = 4096;
+	public static final int TRAILER_SIZE = 8 + 4;
+
+	public static final int NULL_ID = 0;
+
+
+	static long encodeTimestamp(double timestamp, long previousBits)
+	{
+		long delta = Double.doubleToRawLongBits(timestamp) - previousBits;
+		return (delta << 1) ^ (delta >> 63);
+	}
+
+
+	static long decodeTimestampBits(long zigzag, long previousBits)
+	{
+		long delta = (zigzag >>> 1) ^ -(zigzag & 1);
+		return previousBits + delta;
+	}
+
+
+	static long readVarLong(ByteBuffer buffer)
+	{
+		long value = 0;
+		int shift = 0;
+		byte b;
+
+		do {
+			b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while(b < 0);
+
+		return value;
+	}
+
+
+	static int readVarInt(ByteBuffer buffer)
+	{
+		return (int) readVarLong(buffer);
+	}
+
+
+	/**
+	 * Growable byte array for one column block of the current chunk.
+	 */
+	static class ByteColumn
+	{
+		private byte[] data = new byte[4096];
+		private int length = 0;
+
+
+		void writeVarLong(long value)
+		{
+			if(length + 10 > data.length)
+			{
+				byte[] larger = new byte[data.length * 2];
+				System.arraycopy(data, 0, larger, 0, length);
+				data = larger;
+			}
+
+			while((value & ~0x7FL) != 0)
+			{
+				data[length++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+
+			data[length++] = (byte) value;
+		}
+
+
+		byte[] data()
+		{
+			return data;
+		}
+
+
+		int length()
+		{
+			return length;
+		}
+
+
+		void clear()
+		{
+			length = 0;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package eu.opends.drivesense;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import eu.opends.drivesense.ColumnarRecordingWriter.ChunkInfo;
+
+/**
+ * Reads files written by ColumnarRecordingWriter. Only the footer is read
+ * when opening; chunks are read on demand, and forEachAoi() skips every
+ * chunk that does not contain the requested AOI.
+ */
+public class ColumnarRecordingReader
+{
+	private final File file;
+	private final FileChannel channel;
+
+	private String[] names;
+	private ChunkInfo[] chunks;
+	private long rowCount = 0;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+
+	public ColumnarRecordingReader(File file) throws IOException
+	{
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		try {
+			readFooter();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+
+	private void readFooter() throws IOException
+	{
+		long size = channel.size();
+
+		if(size < 8 + ColumnarRecording.TRAILER_SIZE)
+			throw new IOException("Not a columnar recording: " + file);
+
+		ByteBuffer header = read(0, 8);
+		if(header.getInt() != ColumnarRecording.MAGIC)
+			throw new IOException("Not a columnar recording: " + file);
+		if(header.getInt() != ColumnarRecording.VERSION)
+			throw new IOException("Unsupported columnar recording version: " + file);
+
+		ByteBuffer trailer = read(size - ColumnarRecording.TRAILER_SIZE, ColumnarRecording.TRAILER_SIZE);
+		long footerOffset = trailer.getLong();
+
+		// a missing trailer means the writer was never closed
+		if(trailer.getInt() != ColumnarRecording.MAGIC || footerOffset < 8
+				|| footerOffset > size - ColumnarRecording.TRAILER_SIZE)
+			throw new IOException("Columnar recording is incomplete: " + file);
+
+		ByteBuffer footer = read(footerOffset, (int) (size - ColumnarRecording.TRAILER_SIZE - footerOffset));
+		byte[] footerBytes = new byte[footer.remaining()];
+		footer.get(footerBytes);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(footerBytes));
+
+		try {
+
+			int nNames = in.readInt();
+			names = new String[nNames + 1];
+			for(int i=1; i<=nNames; i++)
+				names[i] = in.readUTF();
+
+			int nChunks = in.readInt();
+			chunks = new ChunkInfo[nChunks];
+
+			for(int i=0; i<nChunks; i++)
+			{
+				ChunkInfo chunk = new ChunkInfo();
+				chunk.offset = in.readLong();
+				chunk.rows = in.readInt();
+				chunk.surfaceLength = in.readInt();
+				chunk.aoiLength = in.readInt();
+				chunk.countLength = in.readInt();
+				chunk.timestampLength = in.readInt();
+				chunk.timestamps = in.readInt();
+				chunk.firstTimestamp = in.readDouble();
+				chunk.lastTimestamp = in.readDouble();
+				chunk.aoiIds = new int[in.readInt()];
+				for(int j=0; j<chunk.aoiIds.length; j++)
+					chunk.aoiIds[j] = in.readInt();
+
+				chunks[i] = chunk;
+				rowCount += chunk.rows;
+			}
+
+		} catch (EOFException e) {
+			throw new IOException("Corrupt footer in " + file, e);
+		}
+	}
+
+
+	public long getRowCount()
+	{
+		return rowCount;
+	}
+
+
+	public int getChunkCount()
+	{
+		return chunks.length;
+	}
+
+
+	/**
+	 * All surface and AOI names of the recording.
+	 */
+	public List<String> getNames()
+	{
+		return new ArrayList<String>(Arrays.asList(names).subList(1, names.length));
+	}
+
+
+	/**
+	 * Visits all rows in order.
+	 */
+	public void forEach(MappedAoiCsvReader.RowVisitor visitor) throws IOException
+	{
+		AoiCsvCodec.Row row = new AoiCsvCodec.Row();
+
+		for(ChunkInfo chunk : chunks)
+			readChunk(chunk, ColumnarRecording.NULL_ID, false, row, visitor);
+	}
+
+
+	/**
+	 * Visits the rows of one AOI. Chunks without the AOI are not read.
+	 */
+	public void forEachAoi(String aoi, MappedAoiCsvReader.RowVisitor visitor) throws IOException
+	{
+		int aoiId = -1;
+
+		if(aoi == null)
+			aoiId = ColumnarRecording.NULL_ID;
+		else
+			for(int i=1; i<names.length && aoiId < 0; i++)
+				if(names[i].equals(aoi))
+					aoiId = i;
+
+		if(aoiId < 0)
+			return;
+
+		AoiCsvCodec.Row row = new AoiCsvCodec.Row();
+
+		for(ChunkInfo chunk : chunks)
+			if(Arrays.binarySearch(chunk.aoiIds, aoiId) >= 0)
+				readChunk(chunk, aoiId, true, row, visitor);
+	}
+
+
+	private void readChunk(ChunkInfo chunk, int aoiFilter, boolean filter, AoiCsvCodec.Row row,
+			MappedAoiCsvReader.RowVisitor visitor) throws IOException
+	{
+		int length = chunk.surfaceLength + chunk.aoiLength + chunk.countLength + chunk.timestampLength;
+		ByteBuffer data = read(chunk.offset, length);
+
+		ByteBuffer surfaces = slice(data, 0, chunk.surfaceLength);
+		ByteBuffer aois = slice(data, chunk.surfaceLength, chunk.aoiLength);
+		ByteBuffer counts = slice(data, chunk.surfaceLength + chunk.aoiLength, chunk.countLength);
+		ByteBuffer timestamps = slice(data, chunk.surfaceLength + chunk.aoiLength + chunk.countLength,
+				chunk.timestampLength);
+
+		long previousBits = 0;
+
+		for(int r=0; r<chunk.rows; r++)
+		{
+			int surfaceId = ColumnarRecording.readVarInt(surfaces);
+			int aoiId = ColumnarRecording.readVarInt(aois);
+			int count = ColumnarRecording.readVarInt(counts);
+
+			boolean wanted = !filter || aoiId == aoiFilter;
+
+			if(wanted)
+				row.reset(names[surfaceId], names[aoiId]);
+
+			// the delta chain runs through all rows of the chunk
+			for(int i=0; i<count; i++)
+			{
+				previousBits = ColumnarRecording.decodeTimestampBits(
+						ColumnarRecording.readVarLong(timestamps), previousBits);
+
+				if(wanted)
+					row.addTimestamp(Double.longBitsToDouble(previousBits));
+			}
+
+			if(wanted)
+				visitor.visit(row);
+		}
+	}
+
+
+	private static ByteBuffer slice(ByteBuffer data, int offset, int length)
+	{
+		ByteBuffer slice = data.duplicate();
+		slice.position(offset);
+		slice.limit(offset + length);
+		return slice;
+	}
+
+
+	private ByteBuffer read(long position, int length) throws IOException
+	{
+		if(buffer.capacity() < length)
+			buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+
+		buffer.clear();
+		buffer.limit(length);
+
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("Unexpected end of " + file);
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+}
@@ -0,0 +1,247 @@
+package eu.opends.drivesense;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import eu.opends.drivesense.ColumnarRecording.ByteColumn;
+
+/**
+ * Writes annotation rows in the ColumnarRecording format. Rows are collected
+ * in column blocks and written chunk by chunk; the dictionary and the chunk
+ * index are written as footer by close(), which must be called for the file
+ * to be readable.
+ *
+ * Footer layout:
+ * int number of dictionary entries (without null), then per entry UTF name
+ * int number of chunks, then per chunk:
+ *     long offset, int rows, int surface/AOI/count/timestamp block lengths,
+ *     int timestamps, double first and last timestamp,
+ *     int number of AOI ids, int[] AOI ids
+ */
+public class ColumnarRecordingWriter
+{
+	private final DataOutputStream out;
+	private long offset = 0;
+
+	private final HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+	private final List<String> names = new ArrayList<String>();
+	private final List<ChunkInfo> chunks = new ArrayList<ChunkInfo>();
+
+	// column blocks of the current chunk
+	private final ByteColumn surfaceColumn = new ByteColumn();
+	private final ByteColumn aoiColumn = new ByteColumn();
+	private final ByteColumn countColumn = new ByteColumn();
+	private final ByteColumn timestampColumn = new ByteColumn();
+	private final BitSet chunkAois = new BitSet();
+
+	private int chunkRows = 0;
+	private int chunkTimestamps = 0;
+	private long previousBits = 0;
+	private double firstTimestamp = Double.NaN;
+	private double lastTimestamp = Double.NaN;
+
+	private boolean closed = false;
+
+
+	static class ChunkInfo
+	{
+		long offset;
+		int rows;
+		int surfaceLength;
+		int aoiLength;
+		int countLength;
+		int timestampLength;
+		int timestamps;
+		double firstTimestamp;
+		double lastTimestamp;
+		int[] aoiIds;
+	}
+
+
+	public ColumnarRecordingWriter(File file) throws IOException
+	{
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+
+		// id 0 is reserved for null
+		names.add(null);
+
+		out.writeInt(ColumnarRecording.MAGIC);
+		out.writeInt(ColumnarRecording.VERSION);
+		offset = 8;
+	}
+
+
+	public void writeRow(String srf, String aoi, List<Double> timestamps) throws IOException
+	{
+		beginRow(srf, aoi, timestamps.size());
+
+		for(int i=0; i<timestamps.size(); i++)
+			addTimestamp(timestamps.get(i).doubleValue());
+
+		endRow();
+	}
+
+
+	public void writeRow(String srf, String aoi, double[] timestamps, int from, int count) throws IOException
+	{
+		beginRow(srf, aoi, count);
+
+		for(int i=from; i<from+count; i++)
+			addTimestamp(timestamps[i]);
+
+		endRow();
+	}
+
+
+	private void beginRow(String srf, String aoi, int nTimestamps) throws IOException
+	{
+		if(closed)
+			throw new IOException("ColumnarRecordingWriter is closed");
+
+		int aoiId = idOf(aoi);
+
+		surfaceColumn.writeVarLong(idOf(srf));
+		aoiColumn.writeVarLong(aoiId);
+		countColumn.writeVarLong(nTimestamps);
+		chunkAois.set(aoiId);
+	}
+
+
+	private void addTimestamp(double timestamp)
+	{
+		timestampColumn.writeVarLong(ColumnarRecording.encodeTimestamp(timestamp, previousBits));
+		previousBits = Double.doubleToRawLongBits(timestamp);
+
+		if(chunkTimestamps++ == 0)
+			firstTimestamp = timestamp;
+		lastTimestamp = timestamp;
+	}
+
+
+	private void endRow() throws IOException
+	{
+		if(++chunkRows == ColumnarRecording.CHUNK_ROWS)
+			writeChunk();
+	}
+
+
+	private int idOf(String name)
+	{
+		if(name == null)
+			return ColumnarRecording.NULL_ID;
+
+		Integer id = dictionary.get(name);
+
+		if(id == null)
+		{
+			id = names.size();
+			names.add(name);
+			dictionary.put(name, id);
+		}
+
+		return id;
+	}
+
+
+	private void writeChunk() throws IOException
+	{
+		if(chunkRows == 0)
+			return;
+
+		ChunkInfo chunk = new ChunkInfo();
+		chunk.offset = offset;
+		chunk.rows = chunkRows;
+		chunk.surfaceLength = surfaceColumn.length();
+		chunk.aoiLength = aoiColumn.length();
+		chunk.countLength = countColumn.length();
+		chunk.timestampLength = timestampColumn.length();
+		chunk.timestamps = chunkTimestamps;
+		chunk.firstTimestamp = firstTimestamp;
+		chunk.lastTimestamp = lastTimestamp;
+
+		chunk.aoiIds = new int[chunkAois.cardinality()];
+		for(int i=0, id=chunkAois.nextSetBit(0); id>=0; id=chunkAois.nextSetBit(id+1))
+			chunk.aoiIds[i++] = id;
+
+		writeColumn(surfaceColumn);
+		writeColumn(aoiColumn);
+		writeColumn(countColumn);
+		writeColumn(timestampColumn);
+
+		chunks.add(chunk);
+
+		chunkAois.clear();
+		chunkRows = 0;
+		chunkTimestamps = 0;
+		previousBits = 0;
+		firstTimestamp = Double.NaN;
+		lastTimestamp = Double.NaN;
+	}
+
+
+	private void writeColumn(ByteColumn column) throws IOException
+	{
+		out.write(column.data(), 0, column.length());
+		offset += column.length();
+		column.clear();
+	}
+
+
+	public void flush() throws IOException
+	{
+		writeChunk();
+		out.flush();
+	}
+
+
+	/**
+	 * Writes the last chunk, the footer and the trailer.
+	 */
+	public void close() throws IOException
+	{
+		if(closed)
+			return;
+
+		try {
+
+			writeChunk();
+
+			long footerOffset = offset;
+
+			out.writeInt(names.size() - 1);
+			for(int i=1; i<names.size(); i++)
+				out.writeUTF(names.get(i));
+
+			out.writeInt(chunks.size());
+			for(ChunkInfo chunk : chunks)
+			{
+				out.writeLong(chunk.offset);
+				out.writeInt(chunk.rows);
+				out.writeInt(chunk.surfaceLength);
+				out.writeInt(chunk.aoiLength);
+				out.writeInt(chunk.countLength);
+				out.writeInt(chunk.timestampLength);
+				out.writeInt(chunk.timestamps);
+				out.writeDouble(chunk.firstTimestamp);
+				out.writeDouble(chunk.lastTimestamp);
+				out.writeInt(chunk.aoiIds.length);
+				for(int id : chunk.aoiIds)
+					out.writeInt(id);
+			}
+
+			out.writeLong(footerOffset);
+			out.writeInt(ColumnarRecording.MAGIC);
+
+		} finally {
+			closed = true;
+			out.close();
+		}
+	}
+}
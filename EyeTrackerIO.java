@@ -2,6 +2,7 @@ package eu.opends.drivesense;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.ParseException;
@@ -9,7 +10,10 @@ import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import com.jme3.math.Vector2f;
 import com.mysql.jdbc.StringUtils;
@@ -18,45 +22,152 @@ import antlr.collections.List;
 import eu.opends.drivesense.domain.GazeData;
 import eu.opends.drivesense.domain.GazePosition;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 
+/**
+ * Writes the AOI annotations of a recording. All instances created without
+ * participant id share one recording, so that the simulator can start and
+ * stop it through any of them; instances of a participant (see
+ * EyeTrackerManager) have their own writers and record into a subdirectory
+ * of the session named after the participant.
+ */
 public class EyeTrackerIO {	
 	
 	private GazeData etData;
-	public static FileWriter fileWriter;
+	
+	// rows are formatted and written on a background thread if enabled
+	private static boolean asyncWriting = true;
+	
+	public enum RecordingFormat
+	{
+		Csv, Columnar, Both;
+	}
+	
+	// aoi_labels.csv, aoi_labels.aoic or both
+	private static RecordingFormat recordingFormat = RecordingFormat.Csv;
+	
+	// aoi_labels.csv.gz instead of aoi_labels.csv, compressed off the writing thread
+	private static boolean compression = false;
+	
+	// rows are committed to a GazeJournal instead of flushing the CSV file per row
+	private static boolean journaling = false;
+	private static long journalCommitInterval = 200;
+	
+	// sessions below ABSOLUTE_PATH and the session of createRecDir()
+	private static SessionCatalog catalog;
+	private static SessionCatalog.Session createdSession;
+	// writers and rows per session, the END record is written by the last writer
+	private static final Map<SessionCatalog.Session, long[]> openSessions = new IdentityHashMap<>();
+	
+	/**
+	 * The writers of one recording.
+	 */
+	private static class Recording
+	{
+		private Writer fileWriter;
+		// file of fileWriter, aoi_labels.csv or aoi_labels.csv.gz
+		private File csvFile;
+		private AsyncCsvWriter asyncWriter;
+		private ColumnarRecordingWriter columnarWriter;
+		private GazeJournal journal;
+		
+		// directory of the current recording, null while not recording
+		private String recordingDir;
+		private SessionCatalog.Session session;
+		private long rowCount = 0;
+		// a write of the synchronous path failed, the journal is kept
+		private boolean failed = false;
+	}
+	
+	private static final Recording sharedRecording = new Recording();
+	
+	private final Recording rec;
+	private final String participantId;
 	
 	//Delimiter used in CSV file
 
-	 	private static final String ANNOTATIONS_FILENAME = "aoi_labels.csv";
+	 	public static final String ANNOTATIONS_FILENAME = "aoi_labels.csv";
 	    private static final String COLUMN_DELIMITER = ",";
 	    private static final String NEW_LINE_SEPARATOR = "\n";
 	    private static final String FILE_HEADER = "Surface,AOI,Timestamps";	    
 	    private static final String ABSOLUTE_PATH = "C:\\Users\\drivesense\\recordings\\";
 	    private static final NumberFormat nf3 = new DecimalFormat("000");
+	    // max. time (ms) closeStream() waits for queued rows to be written
+	    private static final long CLOSE_TIMEOUT = 2000;
 	    private String recPath = null;
+	    // formats the rows of the synchronous writing path
+	    private final AoiCsvCodec rowCodec = new AoiCsvCodec();
 	
 	public EyeTrackerIO(){	
-	 
+		this.rec = sharedRecording;
+		this.participantId = null;
+	}
+	
+	/**
+	 * Creates the writers of a participant, with their own output streams.
+	 */
+	public EyeTrackerIO(String participantId){
+		this.rec = new Recording();
+		this.participantId = participantId;
+	}
+	
+	public String getParticipantId(){
+		return participantId;
 	}
 	
 	public void writeHeaderData(){
 		
 		try {
-			String filePath = this.findLastDir();
-			filePath = filePath.concat(ANNOTATIONS_FILENAME);
+			String sessionDir = this.findLastDir();
+			String dirPath = sessionDir;
 			
-			fileWriter = new FileWriter(new File(filePath));
+			if(participantId != null){
+				dirPath = sessionDir.concat(participantId) + "\\";
+				new File(dirPath).mkdirs();
+			}
 			
-			//Write the CSV file header
-			fileWriter.append(FILE_HEADER);				
+			writeHeaderData(dirPath);
+			if(createdSession != null && sessionDir.equals(sessionPath(createdSession)))
+				openSession(createdSession);
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Starts a recording with header in the given directory (path ending
+	 * with a separator), e.g. for a replay.
+	 */
+	public void writeHeaderData(String dirPath){
+		
+		// a recording still open is ended with its own row count and END record
+		if(isWriting())
+			closeStream();
+		
+		try {
+			rec.recordingDir = dirPath;
+			rec.session = null;
+			rec.rowCount = 0;
+			rec.failed = false;
+			rec.csvFile = null;
 			
-			//Add a new line separator after the header
-			fileWriter.append(NEW_LINE_SEPARATOR);	
+			if(recordingFormat != RecordingFormat.Columnar){
+				rec.fileWriter = openCsvWriter(dirPath);
+				
+				//Write the CSV file header
+				rec.fileWriter.append(FILE_HEADER);				
+				
+				//Add a new line separator after the header
+				rec.fileWriter.append(NEW_LINE_SEPARATOR);	
+				
+				rec.fileWriter.flush();
+				//fileWriter.close();
+			}
 			
-			fileWriter.flush();
-			//fileWriter.close();
+			openColumnarWriter(dirPath);
+			openJournal(dirPath, true);
+			startAsyncWriter();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -64,8 +175,21 @@ public class EyeTrackerIO {
 	}
 	
 	public void initWriting(String filename){
+		if(isWriting())
+			closeStream();
+		
 		try {
-			fileWriter = new FileWriter(new File(filename+"\\"+ANNOTATIONS_FILENAME));
+			rec.recordingDir = filename+"\\";
+			rec.session = null;
+			rec.rowCount = 0;
+			rec.failed = false;
+			rec.csvFile = null;
+			if(recordingFormat != RecordingFormat.Columnar)
+				rec.fileWriter = openCsvWriter(filename+"\\");
+			
+			openColumnarWriter(filename+"\\");
+			openJournal(filename+"\\", false);
+			startAsyncWriter();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			//recPath = ABSOLUTE_PATH + "\\" + ANNOTATIONS_FILENAME;
@@ -74,38 +198,155 @@ public class EyeTrackerIO {
 		
 	}
 	
+	public static void setAsyncWriting(boolean enabled){
+		asyncWriting = enabled;
+	}
+	
 	/**
-	 * Write gaze-data to the CSV file
+	 * Selects the files written by the next writeHeaderData()/initWriting().
+	 */
+	public static void setRecordingFormat(RecordingFormat format){
+		recordingFormat = format;
+	}
+	
+	/**
+	 * Writes the CSV text of the next writeHeaderData()/initWriting() as
+	 * block-compressed aoi_labels.csv.gz (see BlockGzip), which gzip can
+	 * read as well.
+	 */
+	public static void setCompression(boolean enabled){
+		compression = enabled;
+	}
+	
+	private Writer openCsvWriter(String dirPath) throws IOException{
+		if(compression){
+			rec.csvFile = new File(dirPath.concat(BlockGzip.FILE_NAME));
+			return new BlockGzipWriter(rec.csvFile);
+		}
+		
+		rec.csvFile = new File(dirPath.concat(ANNOTATIONS_FILENAME));
+		return new FileWriter(rec.csvFile);
+	}
+	
+	/**
+	 * Enables the write-ahead journal for the next writeHeaderData()/initWriting().
+	 * Rows are committed with one fsync per commitIntervalMillis: by the
+	 * writer thread, or on the synchronous path with the first row after the
+	 * interval. Unclosed recordings of the session catalog are recovered
+	 * from their journal when the catalog is first used.
+	 */
+	public static void setJournaling(boolean enabled, long commitIntervalMillis){
+		journaling = enabled;
+		journalCommitInterval = commitIntervalMillis;
+	}
+	
+	private void openJournal(String dirPath, boolean withHeader) throws IOException{
+		rec.journal = null;
+		if(!journaling)
+			return;
+		
+		rec.journal = new GazeJournal(new File(dirPath), journalCommitInterval);
+		
+		// the recovered file starts with the header as well
+		if(withHeader){
+			rec.journal.append(FILE_HEADER + NEW_LINE_SEPARATOR);
+			rec.journal.commit();
+		}
+	}
+	
+	private void openColumnarWriter(String dirPath) throws IOException{
+		if(recordingFormat != RecordingFormat.Csv)
+			rec.columnarWriter = new ColumnarRecordingWriter(new File(dirPath.concat(ColumnarRecording.FILE_NAME)));
+	}
+	
+	private void startAsyncWriter(){
+		if(asyncWriting && isWriting()){
+			stopAsyncWriter();
+			String threadName = (participantId == null) ? "AsyncCsvWriter" : "AsyncCsvWriter-" + participantId;
+			
+			if(rec.journal != null)
+				rec.asyncWriter = new AsyncCsvWriter(rec.fileWriter, rec.columnarWriter, rec.journal,
+						64 * 1024, journalCommitInterval, threadName);
+			else
+				rec.asyncWriter = new AsyncCsvWriter(rec.fileWriter, rec.columnarWriter, threadName);
+		}
+	}
+	
+	/**
+	 * @return false if rows were dropped while draining
+	 */
+	private boolean stopAsyncWriter(){
+		boolean drained = true;
+		if(rec.asyncWriter != null){
+			drained = rec.asyncWriter.close(CLOSE_TIMEOUT);
+			if(rec.asyncWriter.isFailed())
+				System.out.println("AsyncCsvWriter failed, rows are missing in the recording !!!");
+			else if(!drained)
+				System.out.println("AsyncCsvWriter did not drain in time, rows were dropped !!!");
+			// the END record counts the rows that reached the files, not the dropped ones
+			rec.rowCount += rec.asyncWriter.getWrittenRows();
+			rec.asyncWriter = null;
+		}
+		return drained;
+	}
+	
+	public String getRecordingDir(){
+		return rec.recordingDir;
+	}
+	
+	public boolean isWriting(){
+		return rec.fileWriter != null || rec.columnarWriter != null;
+	}
+	
+	/**
+	 * True while the shared recording of the simulator is written.
+	 */
+	public static boolean isSharedRecordingActive(){
+		return sharedRecording.recordingDir != null;
+	}
+	
+	/**
+	 * Write gaze-data to the CSV file. In async mode the row is only
+	 * enqueued and must not be modified afterwards.
 	* */
 	public void writeGazeToCSV(GazePosition etData){		
 		
+		// rows of the async path are counted by the writer thread
+		if(rec.asyncWriter != null){
+			rec.asyncWriter.write(etData);
+			return;
+		}
+		
 		try {
 			
-			fileWriter.append(etData.getSrf());
-			fileWriter.append(COLUMN_DELIMITER);
-			
-			fileWriter.append(etData.getAOI());
-			fileWriter.append(COLUMN_DELIMITER);
-			
-			int nTimestamps = etData.getTimestamps().size();
+			if(rec.columnarWriter != null)
+				rec.columnarWriter.writeRow(etData.getSrf(), etData.getAOI(), etData.getTimestamps());
 			
-			for(int i=0; i<nTimestamps-1;i++){
-				double ts = etData.getTimestamps().get(i);
-				fileWriter.append(String.valueOf(ts));
-				fileWriter.append(COLUMN_DELIMITER);				
+			if(rec.fileWriter != null || rec.journal != null){
+				rowCodec.reset();
+				rowCodec.appendRow(etData.getSrf(), etData.getAOI(), etData.getTimestamps());
+				
+				if(rec.journal != null){
+					rec.journal.append(rowCodec.getChars(), 0, rowCodec.length());
+					rec.journal.commitIfDue();
+				}
+				
+				if(rec.fileWriter != null)
+					rec.fileWriter.write(rowCodec.getChars(), 0, rowCodec.length());
 			}
 			
-			double lastVal = etData.getTimestamps().get(nTimestamps-1);
-			fileWriter.append(String.valueOf(lastVal));
-			fileWriter.append(NEW_LINE_SEPARATOR);			
+			rec.rowCount++;
 			
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
+			rec.failed = true;
 			System.out.println("Error in CsvFileWriter !!!"); 
 			e.printStackTrace();
 		}finally {			
 			try {
-				fileWriter.flush();
+				// with a journal the rows are safe without flushing every row
+				if(rec.fileWriter != null && rec.journal == null)
+					rec.fileWriter.flush();
 			} catch (IOException e) {
 				System.out.println("Error while flushing/closing fileWriter !!!");
                 e.printStackTrace();
@@ -113,25 +354,86 @@ public class EyeTrackerIO {
 		}								
 	}
 	
+	/**
+	 * Returns the catalog of the sessions below ABSOLUTE_PATH.
+	 */
+	public static synchronized SessionCatalog getSessionCatalog(){
+		if(catalog == null){
+			catalog = new SessionCatalog(new File(ABSOLUTE_PATH));
+			recoverJournals(catalog);
+		}
+		return catalog;
+	}
+	
+	/**
+	 * Rebuilds the annotations of the sessions that were never closed (the
+	 * simulator crashed) from their journals and closes the sessions.
+	 * Journals in use by another simulator are skipped.
+	 */
+	private static void recoverJournals(SessionCatalog catalog){
+		if(!catalog.exists())
+			return;
+		
+		try {
+			for(SessionCatalog.Session session : catalog.getSessions()){
+				if(session.isClosed())
+					continue;
+				
+				File sessionDir = catalog.getDirectory(session);
+				ArrayList<File> recordingDirs = new ArrayList<>();
+				recordingDirs.add(sessionDir);
+				File[] participantDirs = sessionDir.listFiles(File::isDirectory);
+				if(participantDirs != null)
+					recordingDirs.addAll(Arrays.asList(participantDirs));
+				
+				long rows = 0;
+				boolean recovered = false, inUse = false;
+				
+				for(File dir : recordingDirs){
+					if(!GazeJournal.exists(dir))
+						continue;
+					
+					long lines = GazeJournal.recover(dir, new File(dir, ANNOTATIONS_FILENAME));
+					if(lines < 0){
+						inUse = true;
+						continue;
+					}
+					
+					// the recovered CSV file replaces a torn compressed one
+					new File(dir, BlockGzip.FILE_NAME).delete();
+					new File(dir, BlockGzip.FILE_NAME + BlockGzip.INDEX_SUFFIX).delete();
+					
+					// without header line
+					rows += Math.max(0, lines - 1);
+					recovered = true;
+					System.out.println("Recovered " + Math.max(0, lines - 1) + " rows of " + dir + " from the journal");
+				}
+				
+				if(recovered && !inUse)
+					catalog.closeSession(session, rows);
+			}
+		} catch (IOException e) {
+			System.out.println("Could not recover journals !!!");
+			e.printStackTrace();
+		}
+	}
+	
 	public String createRecDir() {
 		
 		Date today = new Date();		
 		SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy_MM_dd");
 		String dateDir = DATE_FORMAT.format(today);
-			
-		this.recPath = ABSOLUTE_PATH.concat(dateDir);		
-		File recDir = new File(this.recPath);
 		
-		if(!recDir.exists())
-		{
-			//Create a new directory
-			recDir.mkdir();
+		//Create a new subdir, numbered by the session catalog
+		try {
+			createdSession = getSessionCatalog().createSession(dateDir);
+		} catch (IOException e) {
+			System.out.println("Could not create session directory !!!");
+			e.printStackTrace();
+			return null;
 		}
-		
-		File[] subDirs = new File(this.recPath).listFiles();
-		//Create a new subdir
-		this.recPath += "\\"+nf3.format(subDirs.length);
-		(new File(this.recPath)).mkdir();
+			
+		this.recPath = ABSOLUTE_PATH.concat(dateDir) + "\\"+nf3.format(createdSession.getNumber());
 		
 		FileWriter fileWriter;
 		try {
@@ -146,63 +448,159 @@ public class EyeTrackerIO {
 	}
 	
 	
-	public static void readCsvFile(String fileName) {
+	/**
+	 * Reads a whole recording into memory. Use the visitor variant for large
+	 * files, it does not keep the rows.
+	 */
+	public static ArrayList<GazePosition> readCsvFile(String fileName) {
 
-		BufferedReader fileReader = null;
+		final ArrayList<GazePosition> gazePositions = new ArrayList<>();
      
-        try {
-        	
-        	//Create a new list of student to be filled by CSV file data 
-        	ArrayList<GazePosition> gazePositions = new ArrayList<>();
-        	
-            String line = "";
-            
-            //Create the file reader
-            fileReader = new BufferedReader(new FileReader(fileName));
-            
-            //Read the CSV file header to skip it
-            fileReader.readLine();
-            
-            //Read the file line by line starting from the second line
-            while ((line = fileReader.readLine()) != null) {
-                //Get all tokens available in line
-                String[] tokens = line.split(COLUMN_DELIMITER);
-                if(tokens.length==0)
-                	continue;                
-                // "Surface,AOI";       
-                GazePosition gazePos = new GazePosition(tokens[0],tokens[1]);
-                //Timestamps
-                for(int i=2;i<tokens.length;i++) 
-                {
-                	double dblValue = Double.parseDouble(tokens[i]);
-                	gazePos.getTimestamps().add(dblValue); 	
-                }
-                gazePositions.add(gazePos);
-            }
-        } 
-        catch (Exception e) {
-        	System.out.println("Error in CsvFileReader !!!");
-            e.printStackTrace();
-        } finally {
-            try {
-                fileReader.close();
-            } catch (IOException e) {
-            	System.out.println("Error while closing fileReader !!!");
-                e.printStackTrace();
-            }
-        }
-
+		readCsvFile(fileName, new MappedAoiCsvReader.RowVisitor() {
+			@Override
+			public void visit(AoiCsvCodec.Row row) {
+				// "Surface,AOI";       
+				GazePosition gazePos = new GazePosition(row.getSurface(),row.getAOI());
+				//Timestamps
+				for(int i=0;i<row.getTimestampCount();i++) 
+				{
+					gazePos.getTimestamps().add(row.getTimestamps()[i]); 	
+				}
+				gazePositions.add(gazePos);
+			}
+		});
+		
+		return gazePositions;
+	}
+	
+	/**
+	 * Streams all rows of a recording (.csv or .csv.gz) to the visitor
+	 * without keeping them.
+	 * 
+	 * @return number of rows read
+	 */
+	public static long readCsvFile(String fileName, MappedAoiCsvReader.RowVisitor visitor) {
+		
+		try {
+			
+			if(fileName.endsWith(".gz"))
+				return new BlockGzipReader(new File(fileName)).forEach(visitor, Runtime.getRuntime().availableProcessors());
+			
+			return new MappedAoiCsvReader(new File(fileName)).forEach(visitor);
+			
+		} catch (Exception e) {
+			System.out.println("Error in CsvFileReader !!!");
+			e.printStackTrace();
+			return -1;
+		}
 	}
 
 	
 	public void closeStream(){
+		// the writer thread closes the writers and the journal after draining the queue
+		boolean async = rec.asyncWriter != null;
+		boolean drained = stopAsyncWriter() && !rec.failed;
+		boolean journalKept = false;
+		
 		try {
-			if(this.fileWriter!=null)
-				this.fileWriter.close();
+			if(rec.columnarWriter!=null){
+				if(!async)
+					rec.columnarWriter.close();
+				rec.columnarWriter = null;
+			}
+			if(rec.fileWriter!=null){
+				if(!async)
+					rec.fileWriter.close();
+				rec.fileWriter = null;
+			}
+			journalKept = closeJournal(drained, async);
+			rec.recordingDir = null;
+			rec.csvFile = null;
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		
+		// file sizes are taken after the writers are closed
+		closeSession(journalKept);
+	}
+	
+	/**
+	 * Deletes the journal once the CSV file is on the disk. It is kept if
+	 * rows are missing, the next start recovers them.
+	 * 
+	 * @param closed true if the writer thread has closed the journal already
+	 * @return true if the journal is kept for recovery
+	 */
+	private boolean closeJournal(boolean complete, boolean closed) throws IOException{
+		if(rec.journal == null)
+			return false;
+		
+		GazeJournal journal = rec.journal;
+		rec.journal = null;
+		if(!closed)
+			journal.close();
+		
+		if(!complete)
+			return true;
+		
+		// the file opened for this recording, compression may have been switched since
+		if(rec.csvFile != null && rec.csvFile.isFile())
+			GazeJournal.sync(rec.csvFile);
+		journal.delete();
+		return false;
+	}
+	
+	private void openSession(SessionCatalog.Session session){
+		synchronized(openSessions){
+			long[] open = openSessions.get(session);
+			if(open == null)
+				openSessions.put(session, open = new long[3]);
+			open[0]++;
+		}
+		rec.session = session;
+	}
+	
+	/**
+	 * @param journalKept the recording kept its journal; the session is then
+	 *        left open, so that the next start recovers and closes it
+	 */
+	private void closeSession(boolean journalKept){
+		if(rec.session == null)
+			return;
+		
+		long rows;
+		boolean recover;
+		synchronized(openSessions){
+			// writers, rows, recordings with a kept journal
+			long[] open = openSessions.get(rec.session);
+			open[1] += rec.rowCount;
+			if(journalKept)
+				open[2]++;
+			rows = open[1];
+			recover = open[2] > 0;
+			
+			// other participants are still writing
+			if(--open[0] > 0){
+				rec.session = null;
+				return;
+			}
+			openSessions.remove(rec.session);
+		}
+		
+		if(recover){
+			System.out.println("Session left open, its journals are recovered on the next start !!!");
+			rec.session = null;
+			return;
+		}
+		
+		try {
+			getSessionCatalog().closeSession(rec.session, rows);
+		} catch (IOException e) {
+			System.out.println("Could not update session catalog !!!");
+			e.printStackTrace();
+		}
+		rec.session = null;
 	}
 	
 	public String findLastDir() throws IOException{
@@ -221,25 +619,21 @@ public class EyeTrackerIO {
 			throw new IOException("RecDir is not a directory");			
 		}
 		
-		recDir = recDir.concat("\\");
-		
-		File[] files = new File(recDir).listFiles();
-		
-		File lastDir = null;
+		// the session created by this simulator, else the last one in the catalog
+		SessionCatalog.Session lastSession = createdSession;
+		if(lastSession == null || !lastSession.getDate().equals(dateDir))
+			lastSession = getSessionCatalog().getLastSession(dateDir);
 		
-		for(File file : files){
-			if(file.isDirectory()){				
-				lastDir = file;
-			}			
-		}
-		
-		if(lastDir == null){
+		if(lastSession == null){
 			//lastDir = new File("000");
 			throw new IOException("RecDirectory was not created");
 		}
-		 	
 		
-		return recDir.concat(lastDir.getName()).concat("\\");
+		return sessionPath(lastSession);
+	}
+	
+	private static String sessionPath(SessionCatalog.Session session){
+		return ABSOLUTE_PATH.concat(session.getDate()) + "\\" + nf3.format(session.getNumber()) + "\\";
 	}
 	
 	 
@@ -0,0 +1,208 @@
+package eu.opends.drivesense;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jme3.renderer.Camera;
+
+import eu.opends.main.Simulator;
+
+/**
+ * Ingests the eye-trackers of several participants, e.g. of a multi-driver
+ * setup. Every participant is an independent shard: an EyeTrackerProc with
+ * its own UDP port, receive thread, decoder, ring, filters, event detector,
+ * camera and pick cache, and an EyeTrackerIO with its own writer thread and
+ * output files in the participant's subdirectory of the session. Shards
+ * share no locks while receiving, decoding and writing; the per-frame
+ * processing runs on the render thread as it touches the scene graph.
+ *
+ * All shards pick in one GazePickingIndex (with one VehicleGeometryIndex),
+ * updated once per frame by update(), so that a participant does not add
+ * another pass over the scene. The shards show no gaze markers or
+ * highlights.
+ *
+ * The participants record whenever the simulator records (the shared
+ * recording of EyeTrackerIO), or when started explicitly. Render thread
+ * only.
+ */
+public class EyeTrackerManager
+{
+	// frames within which the static geometries are checked for moved bounds,
+	// see EyeTrackerProc.pickingSweepInterval for the staleness this allows
+	private static final int PICKING_SWEEP_INTERVAL = 300;
+
+	private final Simulator sim;
+	private final List<EyeTrackerProc> participants = new ArrayList<EyeTrackerProc>();
+
+	private final VehicleGeometryIndex vehicleIndex;
+	private final GazePickingIndex pickingIndex;
+
+	private boolean sharedRecording = false;
+	private boolean recording = false;
+
+
+	public EyeTrackerManager(Simulator sim)
+	{
+		this.sim = sim;
+
+		vehicleIndex = new VehicleGeometryIndex(sim);
+		pickingIndex = new GazePickingIndex(sim.getSceneNode(), PICKING_SWEEP_INTERVAL);
+		pickingIndex.setVehicleIndex(vehicleIndex);
+		if(sim.getCar() != null)
+			pickingIndex.addMover(sim.getCar().getCarNode());
+	}
+
+
+	/**
+	 * Starts the shard of a participant who watches the screen of the
+	 * simulator camera.
+	 *
+	 * @param participantId name of the participant's output directory and MBeans
+	 * @param udpPort port the participant's tracker sends to
+	 */
+	public EyeTrackerProc addParticipant(String participantId, int udpPort)
+	{
+		return addParticipant(participantId, udpPort, sim.getCamera());
+	}
+
+
+	/**
+	 * Starts the shard of a participant with a view of its own.
+	 *
+	 * @param cam camera rendering the screen the participant's tracker maps the gaze to
+	 */
+	public EyeTrackerProc addParticipant(String participantId, int udpPort, Camera cam)
+	{
+		if(participantId == null || participantId.isEmpty())
+			throw new IllegalArgumentException("A participant needs an id");
+
+		for(EyeTrackerProc participant : participants)
+		{
+			if(participant.getParticipantId().equals(participantId))
+				throw new IllegalArgumentException("Participant " + participantId + " exists already");
+
+			if(participant.udpPort == udpPort)
+				throw new IllegalArgumentException("Port " + udpPort + " is used by participant " + participant.getParticipantId());
+		}
+
+		EyeTrackerProc participant = new EyeTrackerProc(sim, participantId, udpPort, cam, pickingIndex);
+		participants.add(participant);
+
+		if(recording)
+			participant.getEyeTrackerIO().writeHeaderData();
+
+		return participant;
+	}
+
+
+	public EyeTrackerProc getParticipant(String participantId)
+	{
+		for(EyeTrackerProc participant : participants)
+			if(participant.getParticipantId().equals(participantId))
+				return participant;
+
+		return null;
+	}
+
+
+	public List<EyeTrackerProc> getParticipants()
+	{
+		return new ArrayList<EyeTrackerProc>(participants);
+	}
+
+
+	/**
+	 * Stops the shard of a participant and closes its recording.
+	 */
+	public void removeParticipant(String participantId)
+	{
+		EyeTrackerProc participant = getParticipant(participantId);
+		if(participant == null)
+			return;
+
+		participants.remove(participant);
+		close(participant);
+	}
+
+
+	public void update()
+	{
+		// follow the recording of the simulator
+		boolean sharedActive = EyeTrackerIO.isSharedRecordingActive();
+		if(sharedActive != sharedRecording)
+		{
+			sharedRecording = sharedActive;
+
+			if(sharedActive)
+				startRecording();
+			else
+				stopRecording();
+		}
+
+		if(participants.isEmpty())
+			return;
+
+		pickingIndex.update();
+
+		for(int i=0; i<participants.size(); i++)
+			participants.get(i).update();
+	}
+
+
+	/**
+	 * Starts the recordings of all participants in the current session.
+	 */
+	public void startRecording()
+	{
+		for(EyeTrackerProc participant : participants)
+		{
+			EyeTrackerIO io = participant.getEyeTrackerIO();
+			if(io.isWriting())
+				io.closeStream();
+
+			io.writeHeaderData();
+		}
+
+		recording = true;
+	}
+
+
+	public void stopRecording()
+	{
+		for(EyeTrackerProc participant : participants)
+			participant.getEyeTrackerIO().closeStream();
+
+		recording = false;
+	}
+
+
+	public boolean isRecording()
+	{
+		return recording;
+	}
+
+
+	public GazePickingIndex getPickingIndex()
+	{
+		return pickingIndex;
+	}
+
+
+	private void close(EyeTrackerProc participant)
+	{
+		participant.close();
+
+		if(participant.getEyeTrackerIO().isWriting())
+			participant.getEyeTrackerIO().closeStream();
+	}
+
+
+	public void close()
+	{
+		for(EyeTrackerProc participant : participants)
+			close(participant);
+
+		participants.clear();
+		recording = false;
+	}
+}
@@ -1,19 +1,12 @@
 package eu.opends.drivesense;
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.sql.Timestamp;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 import com.jme3.asset.AssetManager;
 import com.jme3.collision.CollisionResult;
-import com.jme3.collision.CollisionResults;
 import com.jme3.font.BitmapFont;
 import com.jme3.font.BitmapText;
 import com.jme3.input.InputManager;
@@ -27,10 +20,7 @@ import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
 import com.jme3.scene.shape.Sphere;
 
-import eu.opends.car.Car;
-import eu.opends.drivesense.domain.GazeData;
-import eu.opends.drivesense.extensions.UDPClient;
-import eu.opends.drivesense.extensions.Vector2d;
+import eu.opends.drivesense.domain.GazePosition;
 import eu.opends.drivingTask.settings.SettingsLoader;
 import eu.opends.drivingTask.settings.SettingsLoader.Setting;
 import eu.opends.eyetracker.DataLogger;
@@ -39,17 +29,38 @@ import eu.opends.main.SimulationDefaults;
 import eu.opends.main.Simulator;
 import eu.opends.tools.PanelCenter;
 import eu.opends.tools.Util;
-import eu.opends.traffic.PhysicalTraffic;
-import eu.opends.traffic.TrafficCar;
-import eu.opends.traffic.TrafficObject;
 import eu.opends.trigger.TriggerCenter;
 
 public class EyeTrackerProc
 {	
 	public int udpPort = 2010;
 	public int packetSize = 4048;
+	// number of gaze samples buffered between receive thread and render thread
+	public int ringCapacity = 1024;
+	public GazeReceiver.ReceiveMode receiveMode = GazeReceiver.ReceiveMode.Channel;
+	// frames within which all static geometries are checked for moved bounds
+	// (vehicles and the own car are refit every frame). Attached and detached
+	// spatials and moved nodes are noticed in the next frame, but a geometry
+	// moved within the bound of its parent node is picked against its old
+	// bound for up to this many frames (5 s at 60 fps) unless the scenario
+	// calls getPickingIndex().invalidate(); 0 never checks below the top level
+	public int pickingSweepInterval = 300;
+	
+	// ray-cast for every frame or once per detected fixation (PerFixation
+	// leaves the AOI of aoi_labels.csv empty outside of fixations)
+	public AoiResolution aoiResolution = AoiResolution.PerFrame;
+	// raw samples and camera poses for GazeReplay, written next to the annotations
+	// (on the render thread, so off unless a session is to be replayed)
+	public boolean recordGazeTrack = false;
+	// extrapolate the gaze to the time the frame is presented
+	public boolean predictGaze = true;
+	// longest extrapolation beyond the newest sample
+	public double maxPredictionMillis = 50;
+	// tracker and network delay not visible to the clock synchronization
+	public double trackerLatencyMillis = 0;
 	
-	// mean average of gaze position over last x values
+	// mean average of gaze position over last x values,
+	// 0 or 1 = off, -1 = One Euro filter, -2 = Kalman filter
 	private int smoothingFactor = 10;
 	
 	private boolean showCrossHairs = true;
@@ -68,7 +79,13 @@ public class EyeTrackerProc
 	// flashing interval (ms) of warning frame
 	private int flashingInterval = 500;
  
-	private UDPClient udpClient; 
+	private GazeReceiver gazeReceiver; 
+	private GazeRing gazeRing;
+	private GazeMetrics gazeMetrics;
+	private GazeClockSync clockSync = new GazeClockSync();
+	private long lastFrameStart = 0;
+	private double frameIntervalNanos = 1e9 / 60;
+	private GazeTrackWriter trackWriter;
 	private DataLogger dataLogger;
 	private Vector2f screenPos;
 	private Simulator sim;
@@ -77,11 +94,42 @@ public class EyeTrackerProc
 	private AssetManager assetManager;
 	private Geometry gazeSphere;
 	private BitmapText crosshairs;
-	private LinkedList<Vector2f> gazeStorage = new LinkedList<Vector2f>();
+	private GazeFilter gazeFilter;
+	private GazeEventDetector eventDetector = new GazeEventDetector();
+	private Vector2f gazeScreenPos = new Vector2f();
+	private Vector2f fixationScreenPos = new Vector2f();
+	private long resolvedFixationId = 0;
+	private String fixationAoi = null;
+	private int fixationAoiId = AoiDictionary.NO_AOI;
+	// id of the AOI resolved for the current frame
+	private int currentAoiId = AoiDictionary.NO_AOI;
+	private CollisionResult lastHit = null;
+	private AoiDictionary aoiDictionary = new AoiDictionary();
+	private AoiRegistry aoiRegistry = new AoiRegistry(aoiDictionary);
+	private AoiAggregator aoiAggregator = new AoiAggregator(aoiDictionary);
+	// recording directory the aggregator writes its snapshots to
+	private String snapshotDirName = null;
+	private GazeBatch gazeBatch = new GazeBatch(64);
+	
+	// gaze picking, objects are reused every frame
+	private GazePickingIndex pickingIndex;
+	// false for the shards of EyeTrackerManager, which updates the shared index
+	private boolean ownsPickingIndex;
+	private GazePickCache pickCache;
+	private GazeSurfaceRegistry surfaceRegistry;
+	private GazeSurface screenSurface;
+	private Ray gazeRay = new Ray();
+	private Vector3f worldPosNear = new Vector3f();
+	private Vector3f worldPosFar = new Vector3f();
+	private Vector3f gazeDirection = new Vector3f();
+	
+	private GazeHighlighter highlighter;
+	private VehicleGeometryIndex vehicleIndex;
 	private long lastScreenGaze = 0;  
 
 	
 	private EyeTrackerIO eyeTrackerIO;
+	private final String participantId;
 
 	//private HMIWebSocketClient clientEndPointer; 
 	
@@ -89,17 +137,73 @@ public class EyeTrackerProc
 	{
 		None, VehiclesOnly, All;
 	}
+	
+	public enum AoiResolution
+	{
+		PerFrame, PerFixation;
+	}
 
 	
 	public EyeTrackerProc(Simulator sim)
+	{
+		this(sim, null, -1);
+	}
+	
+	
+	/**
+	 * Creates the processor of one participant with its own socket, filters
+	 * and recording.
+	 * 
+	 * @param participantId tags output and MBeans, null for the single tracker of the simulator
+	 * @param udpPort port of the participant's tracker, -1 for the Eyetracker_port setting
+	 */
+	public EyeTrackerProc(Simulator sim, String participantId, int udpPort)
+	{
+		this(sim, participantId, udpPort, sim.getCamera(), null);
+	}
+	
+	
+	/**
+	 * Creates a shard of EyeTrackerManager. It picks in the picking index of
+	 * the manager, which also updates it, and shows no cross hairs, gaze
+	 * sphere or highlights, as these would mix with those of the other
+	 * participants.
+	 * 
+	 * @param cam camera of the participant's view
+	 * @param sharedIndex picking index of the manager, null for an own one
+	 */
+	EyeTrackerProc(Simulator sim, String participantId, int udpPort, Camera cam, GazePickingIndex sharedIndex)
 	{
 		this.sim = sim;
+		this.participantId = participantId;
 		this.sceneNode = sim.getSceneNode();
-		this.cam = sim.getCamera();
+		this.cam = cam;
 		this.assetManager = sim.getAssetManager();
 		
 		initSettings();
 		
+		if(udpPort >= 0)
+			this.udpPort = udpPort;
+		
+		if(sharedIndex != null)
+		{
+			showCrossHairs = false;
+			showGazeSphere = false;
+			colorMode = ColorMode.None;
+		}
+		
+		gazeFilter = GazeFilter.create(smoothingFactor);
+		
+		// log a fixation when the detector reports its end
+		eventDetector.addListener(new GazeEventListener() {
+			@Override
+			public void onGazeEvent(GazeEvent event)
+			{
+				if(event.getType() == GazeEvent.Type.Fixation && previousFixation.getGeometry() != null)
+					reportNoFixation();
+			}
+		});
+		
 		// init gaze pos
 		screenPos = new Vector2f(sim.getSettings().getWidth() / 2f, sim.getSettings().getHeight() / 2f);
 			
@@ -119,12 +223,45 @@ public class EyeTrackerProc
 		Material sphere_mat = new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
 		sphere_mat.setColor("Color", sphereColor);
 		gazeSphere.setMaterial(sphere_mat);
-
-		// create log-thread
-		udpClient = new UDPClient(sim, udpPort, packetSize);
-		udpClient.start();  
 		
-		eyeTrackerIO = new EyeTrackerIO();
+		if(sharedIndex == null)
+		{
+			vehicleIndex = new VehicleGeometryIndex(sim);
+			
+			pickingIndex = new GazePickingIndex(sceneNode, pickingSweepInterval);
+			pickingIndex.exclude(gazeSphere);
+			pickingIndex.setVehicleIndex(vehicleIndex);
+			if(sim.getCar() != null)
+				pickingIndex.addMover(sim.getCar().getCarNode());
+		}
+		else
+			pickingIndex = sharedIndex;
+		ownsPickingIndex = (sharedIndex == null);
+		
+		pickCache = new GazePickCache(pickingIndex);
+		
+		// the screen is picked on the render thread by identifyAOI(), further
+		// surfaces (mirrors, ...) are registered by the scenario
+		surfaceRegistry = new GazeSurfaceRegistry(pickingIndex, smoothingFactor);
+		screenSurface = surfaceRegistry.register(new GazeSurface("screen", cam, Homography.flipY(), gazeFilter, eventDetector));
+		screenSurface.setPickCache(pickCache);
+		clockSync.setFixedLatency(trackerLatencyMillis);
+		
+		highlighter = new GazeHighlighter(glowColor);
+
+		// create receive-thread
+		gazeRing = new GazeRing(ringCapacity);
+		gazeMetrics = new GazeMetrics(gazeRing);
+		gazeMetrics.setPickCache(pickCache);
+		gazeMetrics.setClockSync(clockSync);
+		gazeMetrics.setPredictor(screenSurface.getPredictor());
+		gazeReceiver = new GazeReceiver(this.udpPort, packetSize, gazeRing, receiveMode);
+		gazeMetrics.setReceiver(gazeReceiver);
+		gazeReceiver.setMetrics(gazeMetrics);
+		gazeMetrics.registerMBeans(String.valueOf(this.udpPort), participantId);
+		gazeReceiver.start();  
+		
+		eyeTrackerIO = (participantId == null) ? new EyeTrackerIO() : new EyeTrackerIO(participantId);
 		
 		dataLogger = new DataLogger();
 	}
@@ -241,89 +378,88 @@ public class EyeTrackerProc
 	public void update()
 	{
 		unsetFlyCam();
-		JSONParser parser = new JSONParser();
-		String datagramm = udpClient.getDatagram();		
 		
 		try {
 			
-			if(datagramm == null) {
-				System.err.println("Did not receive the datagramm");
-				return;
-			}
+			// all samples received since the previous frame
+			gazeBatch.clear();
+			int nSize = gazeRing.drainTo(gazeBatch);
 			
-			JSONObject  jsonObj = (JSONObject ) parser.parse(datagramm);
+			long frameStart = System.nanoTime();
+			gazeMetrics.update(frameStart);
+			long presentation = presentationTime(frameStart);
 			
-			//Set the srf
-			String srf = (String) jsonObj.get("srf");
-			JSONArray jsonArray = (JSONArray)jsonObj.get("data");
-						
-			int nSize = jsonArray.size();
-			
-			if(jsonArray==null || nSize == 0)
+			for(int i=0; i<nSize; i++)
 			{
-				System.err.println("No data as JSONArray retrieved");
-				return;
+				clockSync.addSample(gazeBatch.getTimestamp(i), gazeBatch.getReceiveNanos(i));
+				gazeMetrics.recordSample(gazeBatch.getTimestamp(i), gazeBatch.getReceiveNanos(i), frameStart);
 			}
-						
-			GazeData[] gazesData = new GazeData[nSize];
 			
-			double raw_x = 0f, 
-				   raw_y = 0f;
-						
+			if(nSize > 0)
+				recordTrack();
+			
+			// every surface smooths and detects events on its own samples
+			surfaceRegistry.beginFrame();
+			
 			for(int i=0; i<nSize;i++)
 			{
-				JSONObject jsonGaze = (JSONObject) jsonArray.get(i);
-				JSONArray dataArr = (JSONArray)jsonGaze.get("norm_pos");
-				//Retrieve all data from  
-				double confidence = (double) jsonGaze.get("confidence");
-				double timestamp = (double) jsonGaze.get("timestamp");				
-				double normPosX = (double)dataArr.get(0);
-				double normPosY = (double)dataArr.get(1);		
-				Vector2d normPos = new Vector2d(normPosX, normPosY);							
-				gazesData[i] = new GazeData(1,timestamp,normPos,confidence,srf);
+				GazeSurface surface = surfaceRegistry.get(gazeBatch.getSurface(i));
 				
-				System.out.println(normPos);
-				
-				raw_x += normPosX;
-				raw_y += normPosY;
+				if(surface != null)
+					surface.addSample(gazeBatch.getNormX(i), gazeBatch.getNormY(i), 
+							gazeBatch.getConfidence(i), gazeBatch.getTimestamp(i));
 			}
 			
-			raw_x = Vector2d.round(raw_x/nSize,2);
-			raw_y = Vector2d.round(raw_y/nSize,2); 
+			// the eye has moved on since the samples were taken
+			surfaceRegistry.setMaxPrediction(maxPredictionMillis);
+			surfaceRegistry.predict(predictGaze ? clockSync.toTrackerTime(presentation) : Double.NaN);
 			
-			Vector2d raw_pos = new Vector2d(raw_x,raw_y);
+			// the render rate is above the tracker rate: no samples to pick
+			// and log, but the predicted gaze moves on
+			if(nSize == 0)
+			{
+				if(screenSurface.getPredictor().hasSamples())
+				{
+					toScreen(screenSurface.getGazeX(), screenSurface.getGazeY(), gazeScreenPos);
+					moveCrosshairs(gazeScreenPos.getX(), gazeScreenPos.getY());
+				}
+				return;
+			}
 			
-			//Smooth the gaze
-			double smoothX = 0.5f,
-				   smoothY = 0.5f;
+			long smoothed = System.nanoTime();
+			gazeMetrics.record(GazeMetrics.Stage.Smoothing, smoothed - frameStart);
 			
-			if(srf!=null && srf.equals("screen"))
+			// also on frames without pick: the bounds of movers must follow
+			// the scene, the static geometries are swept in slices
+			if(ownsPickingIndex)
+				pickingIndex.update();
+			
+			String aoi = null;
+			if(screenSurface.getFrameSamples() > 0)
 			{								
-				smoothX += 0.35f * (raw_x - smoothX);
-				smoothY += 0.35f * (raw_x - smoothY);
-				
-				double x = Math.min(1, Math.max(0, smoothX));
-				double y = Math.min(1, Math.max(0, 1 - smoothY)); //inverting y so it shows up correctly on screen
-				
-				x *= sim.getSettings().getWidth();
-				y *= sim.getSettings().getHeight();
-				
-				raw_pos.setX(x);
-				raw_pos.setY(y);
-				
-				String aoi = this.identifyAOI(raw_pos.getFloatX(), raw_pos.getFloatY());
+				toScreen(screenSurface.getGazeX(), screenSurface.getGazeY(), gazeScreenPos);
 				
-				for(GazeData gazeData : gazesData){
-					gazeData.setAoi(aoi);
-					//eyeTrackerIO.writeGazeToCSV(gazeData);
-				}
-				
-			}else{
-				for(GazeData gazeData : gazesData){ 
-					//this.eyeTrackerIO.writeGazeToCSV(gazeData);
-				}
+				if(aoiResolution == AoiResolution.PerFrame)
+					aoi = this.identifyAOI(gazeScreenPos.getX(), gazeScreenPos.getY());
+				else
+					aoi = this.identifyFixationAOI(gazeScreenPos.getX(), gazeScreenPos.getY());
+			}
+			
+			// the other surfaces (mirrors, ...), on this thread as well
+			surfaceRegistry.pick(aoiResolution, screenSurface, aoiRegistry);
+			
+			long picked = System.nanoTime();
+			gazeMetrics.record(GazeMetrics.Stage.Picking, picked - smoothed);
+			
+			if(screenSurface.getFrameSamples() > 0)
+			{
+				writeGazeBatch("screen", aoi);
+				aggregateAOI(currentAoiId, screenSurface.getLastTimestamp());
 			}
 			
+			writeOtherSurfaces();
+			gazeMetrics.record(GazeMetrics.Stage.Logging, System.nanoTime() - picked);
+			
  
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
@@ -331,10 +467,213 @@ public class EyeTrackerProc
 		} 
 	}
 	
-	public String identifyAOI(float raw_x, float raw_y)
+	/**
+	 * Estimates when the frame started at the given time will be on screen:
+	 * one frame interval later, as it is rendered and then swapped.
+	 */
+	private long presentationTime(long frameStart)
+	{
+		if(lastFrameStart != 0)
+		{
+			long interval = frameStart - lastFrameStart;
+			
+			// pauses (loading, debugger) are no frame interval
+			if(interval > 0 && interval < 250000000L)
+				frameIntervalNanos += 0.1 * (interval - frameIntervalNanos);
+		}
+		lastFrameStart = frameStart;
+		
+		return frameStart + (long) frameIntervalNanos;
+	}
+	
+	
+	/**
+	 * Writes one annotation row with the timestamps of all samples of the
+	 * current batch on the given surface.
+	 */
+	private void writeGazeBatch(String srf, String aoi)
+	{
+		if(!eyeTrackerIO.isWriting())
+			return;
+		
+		GazePosition gazePos = new GazePosition(srf, aoi);
+		
+		for(int i=0; i<gazeBatch.size(); i++)
+			if(srf.equals(gazeBatch.getSurface(i)))
+				gazePos.getTimestamps().add(gazeBatch.getTimestamp(i));
+		
+		eyeTrackerIO.writeGazeToCSV(gazePos);
+	}
+	
+	
+	/**
+	 * Updates the live AOI statistics; snapshots are written to the current
+	 * recording directory.
+	 */
+	private void aggregateAOI(int aoiId, double timestamp)
+	{
+		String recordingDir = eyeTrackerIO.getRecordingDir();
+		
+		if(recordingDir != null && !recordingDir.equals(snapshotDirName))
+		{
+			snapshotDirName = recordingDir;
+			aoiAggregator.setSnapshotDir(new File(recordingDir));
+		}
+		
+		aoiAggregator.addSample(aoiId, timestamp);
+	}
+	
+	
+	/**
+	 * Appends the drained samples and the camera pose to the gaze track of
+	 * the current recording.
+	 */
+	private void recordTrack()
 	{
-		//screenPos = processGazeLIFO(new Vector2f(raw_x,raw_y));
+		String recordingDir = eyeTrackerIO.getRecordingDir();
 		
+		if(!recordGazeTrack || recordingDir == null)
+		{
+			closeTrack();
+			return;
+		}
+		
+		try {
+			
+			File trackFile = new File(recordingDir, GazeTrack.FILE_NAME);
+			if(trackWriter == null || !trackWriter.getFile().equals(trackFile))
+			{
+				closeTrack();
+				trackWriter = new GazeTrackWriter(trackFile);
+			}
+			
+			trackWriter.writeFrame(cam, gazeBatch, surfaceRegistry);
+			
+		} catch (IOException e) {
+			System.out.println("Error in GazeTrackWriter, gaze track disabled !!!");
+			e.printStackTrace();
+			closeTrack();
+			recordGazeTrack = false;
+		}
+	}
+	
+	
+	private void closeTrack()
+	{
+		if(trackWriter == null)
+			return;
+		
+		try {
+			trackWriter.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		trackWriter = null;
+	}
+	
+	
+	/**
+	 * Writes the samples of all surfaces other than "screen", with the AOI
+	 * of registered surfaces.
+	 */
+	private void writeOtherSurfaces()
+	{
+		if(!eyeTrackerIO.isWriting())
+			return;
+		
+		for(int i=0; i<gazeBatch.size(); i++)
+		{
+			String srf = gazeBatch.getSurface(i);
+			
+			if(srf == null || srf.equals("screen"))
+				continue;
+			
+			// write each surface once, at its first sample in the batch
+			boolean firstOccurrence = true;
+			for(int j=0; j<i && firstOccurrence; j++)
+				firstOccurrence = !srf.equals(gazeBatch.getSurface(j));
+			
+			if(firstOccurrence)
+			{
+				GazeSurface surface = surfaceRegistry.get(srf);
+				int aoiId = (surface == null) ? AoiDictionary.NO_AOI : surface.getAoiId();
+				
+				writeGazeBatch(srf, aoiDictionary.nameOf(aoiId));
+			}
+		}
+	}
+	
+	
+	/**
+	 * Converts a normalized gaze position to screen coordinates.
+	 */
+	private void toScreen(double normX, double normY, Vector2f store)
+	{
+		screenSurface.toScreen(normX, normY, store);
+	}
+	
+	
+	/**
+	 * Resolves the AOI once per fixation: the scene is only ray-cast when the
+	 * event detector confirms a new fixation, at the centroid of the fixation.
+	 * Frames outside of fixations have no AOI.
+	 */
+	public String identifyFixationAOI(float raw_x, float raw_y)
+	{
+		if(eventDetector.isFixating())
+		{
+			if(eventDetector.getFixationId() != resolvedFixationId)
+			{
+				resolvedFixationId = eventDetector.getFixationId();
+				
+				toScreen(eventDetector.getCentroidX(), eventDetector.getCentroidY(), fixationScreenPos);
+				fixationAoi = identifyAOI(fixationScreenPos.getX(), fixationScreenPos.getY());
+				fixationAoiId = currentAoiId;
+				
+				if(lastHit != null)
+					reportFixation(lastHit);
+			}
+		}
+		else if(lastHit != null || fixationAoi != null)
+		{
+			// the fixation ended: remove its sphere and highlight
+			fixationAoi = null;
+			fixationAoiId = AoiDictionary.NO_AOI;
+			clearGazeMarkers();
+		}
+		
+		currentAoiId = fixationAoiId;
+		
+		// cross hairs follow the gaze
+		moveCrosshairs(raw_x, raw_y);
+		
+		return fixationAoi;
+	}
+	
+	
+	private void clearGazeMarkers()
+	{
+		sceneNode.detachChild(gazeSphere);
+		lastHit = null;
+		
+		// a frame without marks restores the highlighted materials
+		if(colorMode != ColorMode.None)
+		{
+			highlighter.beginFrame();
+			highlighter.commit();
+		}
+	}
+	
+	
+	private void moveCrosshairs(float x, float y)
+	{
+		crosshairs.setLocalTranslation(x - crosshairs.getLineWidth()/2f,
+			y + crosshairs.getLineHeight()/2f, 0);
+	}
+	
+	
+	public String identifyAOI(float raw_x, float raw_y)
+	{
 		screenPos.setX(raw_x);
 		screenPos.setY(raw_y);
 
@@ -342,42 +681,56 @@ public class EyeTrackerProc
 //			checkForOffScreenGaze();
 			
 		// set cross hairs
-		crosshairs.setLocalTranslation(screenPos.getX() - crosshairs.getLineWidth()/2f,
-			screenPos.getY() + crosshairs.getLineHeight()/2f, 0);
+		moveCrosshairs(screenPos.getX(), screenPos.getY());
 
 		// reset previous position of colored sphere
 		sceneNode.detachChild(gazeSphere);
 
-		// reset collision results list
-		CollisionResults results = new CollisionResults();
-			
-		// compute the world position on the far plane
-		Vector3f worldPosFar = cam.getWorldCoordinates(screenPos, 1);
+		// successive fixations rarely share their centroid, so only
+		// picks of every frame go through the cache
+		boolean cached = (aoiResolution == AoiResolution.PerFrame);
 		
-		// compute the world position on the near plane
-		Vector3f worldPosNear = cam.getWorldCoordinates(screenPos, 0);
+		CollisionResult closest;
+		if(cached && pickCache.lookup(screenPos.getX(), screenPos.getY(), cam))
+		{
+			// gaze, camera and the objects on the gaze ray did not move
+			closest = pickCache.getResult();
+		}
+		else
+		{
+			// compute the world position on the far plane
+			cam.getWorldCoordinates(screenPos, 1, worldPosFar);
 			
-		// compute direction towards target (from camera)
-		Vector3f direction = worldPosFar.subtract(worldPosNear);
-
-		// normalize direction vector
-		direction.normalizeLocal();
-
-		// aim a ray from the camera towards the target
-		Ray ray = new Ray(worldPosNear, direction);
-
-		// collect intersections between ray and scene elements in results list.
-		sceneNode.collideWith(ray, results);
+			// compute the world position on the near plane
+			cam.getWorldCoordinates(screenPos, 0, worldPosNear);
+				
+			// compute direction towards target (from camera)
+			gazeDirection.set(worldPosFar).subtractLocal(worldPosNear);
+	
+			// normalize direction vector
+			gazeDirection.normalizeLocal();
+	
+			// aim a ray from the camera towards the target
+			gazeRay.setOrigin(worldPosNear);
+			gazeRay.setDirection(gazeDirection);
+	
+			// find the closest intersection between ray and scene elements
+			closest = pickingIndex.pickClosest(gazeRay);
+			if(cached)
+				pickCache.store(screenPos.getX(), screenPos.getY(), cam, gazeRay, closest);
+		}
+		lastHit = closest;
 		
 		if(colorMode != ColorMode.None)
-			uncolor();
+			highlighter.beginFrame();
+		
+		String path = null;
+		currentAoiId = AoiDictionary.NO_AOI;
 			
-		// use the results (we mark the hit object)
-		if (results.size() > 0) 
+		// use the result (we mark the hit object)
+		if (closest != null) 
 		{
-			//The closest collision point is what was truly hit
-			CollisionResult closest = results.getClosestCollision();
-			
+
 			if(showGazeSphere)
 			{
 				// mark the hit with a colored sphere
@@ -388,44 +741,32 @@ public class EyeTrackerProc
 			//Useful
 			Geometry geometry = closest.getGeometry();
 			
-			String path = Util.getPath(geometry); 
+			// cached per geometry, the same AOI is always the same String
+			currentAoiId = aoiRegistry.idOf(geometry);
+			path = aoiDictionary.nameOf(currentAoiId);
 
 			colorGeometry(geometry);
-			
-			return path;
 		}
 		
-		return null;
+		// only materials whose highlight changed are updated
+		if(colorMode != ColorMode.None)
+			highlighter.commit();
+		
+		return path;
 	}
 
 
-	private Vector2f processGazeLIFO(Vector2f gazePos) 
-	{		
-    	Vector2f sum = new Vector2f(0,0);
-    	
-    	gazeStorage.addLast(gazePos);
-
-        for (Vector2f vector : gazeStorage)
-        	sum.addLocal(vector);
-        
-        if(gazeStorage.size() >= smoothingFactor)
-        	gazeStorage.removeFirst();
-
-        return sum.divide(smoothingFactor);
-	}
-	
 	private Fixation previousFixation = new Fixation(null, null, null);
 	private void reportFixation(CollisionResult closest) 
 	{
-		// if gazing at new object
-		if(!closest.getGeometry().equals(previousFixation.getGeometry()))
-		{
-			// write previous fixation to log file
-			previousFixation.writeToLog();
-			
-			// create "new fixation"
-			previousFixation = new Fixation(closest.getGeometry(), closest.getContactPoint(), screenPos);
-		}
+		// fixations are delimited by the event detector, so two fixations
+		// on the same object are logged separately
+		
+		// write previous fixation to log file
+		previousFixation.writeToLog();
+		
+		// create "new fixation"
+		previousFixation = new Fixation(closest.getGeometry(), closest.getContactPoint(), screenPos.clone());
 	}
 	
 	public void consoleLog(CollisionResult closest, Geometry geometry, Vector2f screenCoordinate)
@@ -470,23 +811,6 @@ public class EyeTrackerProc
 	}
 	
 
-	private void uncolor()
-	{
-		// uncolor all objects
-		for(Geometry g : Util.getAllGeometries(sceneNode))
-		{
-			try{
-			
-				g.getMaterial().setColor("GlowColor", ColorRGBA.Black);
-			
-			} 
-			catch (IllegalArgumentException e) 
-			{
-			}
-		}
-	}
-	
-	
 	private void colorGeometry(Geometry geometry) 
 	{
 		if(colorMode != ColorMode.None)
@@ -494,95 +818,82 @@ public class EyeTrackerProc
 			if(colorMode == ColorMode.VehiclesOnly)
 			{
 				// color hit traffic and multi-driver vehicles only
-				colorTrafficVehicles(geometry);	
-				colorMultiDriverVehicles(geometry);
+				// (the vehicle index is updated by the picking index)
+				colorVehicle(geometry);
 			}
 			else
 			{
 				// color all hit objects
-				geometry.getMaterial().setColor("GlowColor", glowColor);
+				highlighter.mark(geometry);
 			}
 		}
 	}
 
 
-	private void colorTrafficVehicles(Geometry geometry) 
+	private void colorVehicle(Geometry geometry) 
 	{
-		for(TrafficObject c : PhysicalTraffic.getTrafficObjectList())
+		VehicleGeometryIndex.Vehicle vehicle = vehicleIndex.getVehicle(geometry);
+		
+		// if hit geometry is part of a traffic or multi-driver car, color whole car
+		if(vehicle != null)
 		{
-			if(c instanceof TrafficCar)
-			{
-				boolean colorCar = false;
-				
-				// all geometries of current traffic car
-				List<Geometry> carGeometries = Util.getAllGeometries(((Car) c).getCarNode());
-				for(Geometry g : carGeometries)
-				{
-					// if hit geometry is part of current car, color whole car
-					if(g.equals(geometry))
-					{
-						colorCar = true;
-						break;
-					}
-				}
-				
-				if(colorCar)
-				{
-					// color all geometries of current car
-					for(Geometry g : carGeometries)
-						g.getMaterial().setColor("GlowColor", glowColor);
-					
-					break;
-				}
-			}
+			for(Geometry g : vehicle.getGeometries())
+				highlighter.mark(g);
 		}
 	}
 
 
-	private void colorMultiDriverVehicles(Geometry geometry)
+	public GazePickingIndex getPickingIndex()
 	{
-		ArrayList<String> registeredVehicles = new ArrayList<String>();
-		
-		if(sim.getMultiDriverClient() != null)
-			registeredVehicles = sim.getMultiDriverClient().getRegisteredVehicles();
-		
-		for(String vehicleID : registeredVehicles)
-		{
-			Node carNode = (Node) sceneNode.getChild(vehicleID);
-			
-			if(carNode != null)
-			{
-				boolean colorCar = false;
-			
-				// all geometries of current multi-driver car
-				List<Geometry> carGeometries = Util.getAllGeometries(carNode);
-				for(Geometry g : carGeometries)
-				{
-					// if hit geometry is part of current car, color whole car
-					if(g.equals(geometry))
-					{
-						colorCar = true;
-						break;
-					}
-				}
-			
-				if(colorCar)
-				{
-					// color all geometries of current car
-					for(Geometry g : carGeometries)
-						g.getMaterial().setColor("GlowColor", glowColor);
-				
-					break;
-				}
-			}
-		}
+		return pickingIndex;
+	}
+
+
+	public GazeEventDetector getEventDetector()
+	{
+		return eventDetector;
 	}
 
 
+	public AoiAggregator getAoiAggregator()
+	{
+		return aoiAggregator;
+	}
+
+
+	public String getParticipantId()
+	{
+		return participantId;
+	}
+	
+	
+	public EyeTrackerIO getEyeTrackerIO()
+	{
+		return eyeTrackerIO;
+	}
+	
+	
+	public GazeSurfaceRegistry getSurfaceRegistry()
+	{
+		return surfaceRegistry;
+	}
+	
+	
+	public GazeMetrics getGazeMetrics()
+	{
+		return gazeMetrics;
+	}
+	
+	
 	public void close()
 	{
 		// stop UDP thread
-		udpClient.requestStop();
+		gazeReceiver.requestStop();
+		gazeMetrics.unregisterMBeans();
+		closeTrack();
+		
+		if(aoiAggregator.getSnapshotDir() != null)
+			aoiAggregator.writeSnapshot(aoiAggregator.getSnapshotDir());
 		//dataLogger.close();
 	}
 }
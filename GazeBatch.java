@@ -0,0 +1,158 @@
+package eu.opends.drivesense;
+
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays container for decoded gaze samples. The arrays are
+ * reused from frame to frame and only grow when a batch exceeds the current
+ * capacity, so filling a batch does not allocate once it has warmed up.
+ */
+public class GazeBatch
+{
+	private int size = 0;
+
+	private String[] surface;
+	private double[] normX;
+	private double[] normY;
+	private double[] confidence;
+	private double[] timestamp;
+	// System.nanoTime() when the datagram of the sample was received, 0 if unknown
+	private long[] receiveNanos;
+
+
+	public GazeBatch(int capacity)
+	{
+		capacity = Math.max(1, capacity);
+
+		surface = new String[capacity];
+		normX = new double[capacity];
+		normY = new double[capacity];
+		confidence = new double[capacity];
+		timestamp = new double[capacity];
+		receiveNanos = new long[capacity];
+	}
+
+
+	public void clear()
+	{
+		size = 0;
+	}
+
+
+	/**
+	 * Drops all samples from index <code>newSize</code> on, e.g. to roll back
+	 * a partially decoded datagram.
+	 */
+	public void truncate(int newSize)
+	{
+		if(newSize >= 0 && newSize < size)
+			size = newSize;
+	}
+
+
+	public int size()
+	{
+		return size;
+	}
+
+
+	public int capacity()
+	{
+		return normX.length;
+	}
+
+
+	/**
+	 * Appends a sample and returns its index.
+	 */
+	public int add(String srf, double x, double y, double conf, double ts)
+	{
+		return add(srf, x, y, conf, ts, 0);
+	}
+
+
+	public int add(String srf, double x, double y, double conf, double ts, long receivedAt)
+	{
+		if(size == normX.length)
+			grow(size + 1);
+
+		surface[size] = srf;
+		normX[size] = x;
+		normY[size] = y;
+		confidence[size] = conf;
+		timestamp[size] = ts;
+		receiveNanos[size] = receivedAt;
+
+		return size++;
+	}
+
+
+	/**
+	 * Sets the surface of all samples in [from, to). The decoder needs this
+	 * when the "srf" field follows the "data" array in a datagram.
+	 */
+	public void setSurface(int from, int to, String srf)
+	{
+		for(int i=from; i<to && i<size; i++)
+			surface[i] = srf;
+	}
+
+
+	/**
+	 * Sets the receive time (System.nanoTime()) of all samples in [from, to).
+	 */
+	public void setReceiveNanos(int from, int to, long receivedAt)
+	{
+		for(int i=from; i<to && i<size; i++)
+			receiveNanos[i] = receivedAt;
+	}
+
+
+	public String getSurface(int i)
+	{
+		return surface[i];
+	}
+
+
+	public double getNormX(int i)
+	{
+		return normX[i];
+	}
+
+
+	public double getNormY(int i)
+	{
+		return normY[i];
+	}
+
+
+	public double getConfidence(int i)
+	{
+		return confidence[i];
+	}
+
+
+	public double getTimestamp(int i)
+	{
+		return timestamp[i];
+	}
+
+
+	public long getReceiveNanos(int i)
+	{
+		return receiveNanos[i];
+	}
+
+
+	private void grow(int minCapacity)
+	{
+		int newCapacity = Math.max(minCapacity, normX.length * 2);
+
+		surface = Arrays.copyOf(surface, newCapacity);
+		normX = Arrays.copyOf(normX, newCapacity);
+		normY = Arrays.copyOf(normY, newCapacity);
+		confidence = Arrays.copyOf(confidence, newCapacity);
+		timestamp = Arrays.copyOf(timestamp, newCapacity);
+		receiveNanos = Arrays.copyOf(receiveNanos, newCapacity);
+	}
+}
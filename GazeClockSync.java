@@ -0,0 +1,237 @@
+package eu.opends.drivesense;
+
+/**
+ * Relates the tracker clock to System.nanoTime(). Every sample gives an
+ * upper bound of the clock offset (receive time - tracker timestamp), which
+ * is larger than the true offset by the delay of tracker and network. The
+ * smallest offset per bucket of tracker time is the sample that got through
+ * fastest; a least-squares line through the minima of the last buckets
+ * yields offset and drift of the tracker clock.
+ *
+ * Mapped times are early by the minimal tracker and network delay, which
+ * can be set as fixed latency if known. Render thread only, except for the
+ * getters of the last fit.
+ */
+public class GazeClockSync
+{
+	// a larger deviation from the model means the tracker clock was reset
+	private static final double CLOCK_JUMP = 5.0;
+	// drifts beyond that are no clock drift but a bad fit
+	private static final double MAX_DRIFT = 0.001;
+
+	private final double bucketSeconds;
+	private final double[] bucketTime;
+	private final double[] bucketOffset;
+	private int buckets = 0;
+	private int newestBucket = -1;
+	private long currentBucket = Long.MIN_VALUE;
+
+	private double fixedLatency = 0;
+
+	// offset(t) = offset + drift * (t - referenceTime)
+	private boolean dirty = false;
+	private double referenceTime = Double.NaN;
+	private volatile double offset = Double.NaN;
+	private volatile double drift = 0;
+
+	private long samples = 0;
+	private long resets = 0;
+
+
+	public GazeClockSync()
+	{
+		this(1.0, 30);
+	}
+
+
+	/**
+	 * @param bucketSeconds tracker time per offset minimum
+	 * @param bucketCount number of minima the fit is based on
+	 */
+	public GazeClockSync(double bucketSeconds, int bucketCount)
+	{
+		this.bucketSeconds = bucketSeconds;
+		this.bucketTime = new double[bucketCount];
+		this.bucketOffset = new double[bucketCount];
+	}
+
+
+	/**
+	 * Adds a sample.
+	 *
+	 * @param timestamp tracker timestamp (s)
+	 * @param receiveNanos System.nanoTime() when the datagram was received, 0 if unknown
+	 */
+	public void addSample(double timestamp, long receiveNanos)
+	{
+		if(receiveNanos == 0 || Double.isNaN(timestamp) || Double.isInfinite(timestamp))
+			return;
+
+		double sampleOffset = receiveNanos / 1e9 - timestamp;
+
+		if(isSynchronized() && Math.abs(sampleOffset - getOffset(timestamp)) > CLOCK_JUMP)
+		{
+			// start over with the new tracker epoch
+			reset();
+			resets++;
+		}
+
+		long bucket = (long) Math.floor(timestamp / bucketSeconds);
+		if(bucket > currentBucket || newestBucket < 0)
+		{
+			currentBucket = bucket;
+			newestBucket = (newestBucket + 1) % bucketTime.length;
+			buckets = Math.min(buckets + 1, bucketTime.length);
+			bucketTime[newestBucket] = timestamp;
+			bucketOffset[newestBucket] = sampleOffset;
+			dirty = true;
+		}
+		else if(sampleOffset < bucketOffset[newestBucket])
+		{
+			// samples from an older bucket (reordering) count for the current one
+			bucketTime[newestBucket] = timestamp;
+			bucketOffset[newestBucket] = sampleOffset;
+			dirty = true;
+		}
+
+		samples++;
+	}
+
+
+	private void fit()
+	{
+		if(!dirty)
+			return;
+
+		dirty = false;
+		referenceTime = bucketTime[newestBucket];
+
+		double sumT = 0, sumD = 0;
+		for(int i=0; i<buckets; i++)
+		{
+			sumT += bucketTime[i] - referenceTime;
+			sumD += bucketOffset[i];
+		}
+
+		double meanT = sumT / buckets;
+		double meanD = sumD / buckets;
+
+		double covTD = 0, varT = 0;
+		for(int i=0; i<buckets; i++)
+		{
+			double t = bucketTime[i] - referenceTime - meanT;
+			covTD += t * (bucketOffset[i] - meanD);
+			varT += t * t;
+		}
+
+		// at least two buckets a second apart to tell drift from jitter
+		double slope = (buckets > 1 && varT > 0.5) ? covTD / varT : 0;
+		drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, slope));
+		offset = meanD - drift * meanT;
+	}
+
+
+	/**
+	 * True as soon as one sample with receive time has been seen.
+	 */
+	public boolean isSynchronized()
+	{
+		return buckets > 0;
+	}
+
+
+	/**
+	 * Offset (local - tracker, s) at the given tracker time, NaN if not
+	 * synchronized.
+	 */
+	public double getOffset(double timestamp)
+	{
+		if(!isSynchronized())
+			return Double.NaN;
+
+		fit();
+		return offset + drift * (timestamp - referenceTime) - fixedLatency;
+	}
+
+
+	/**
+	 * Converts a tracker timestamp to System.nanoTime(), 0 if not
+	 * synchronized.
+	 */
+	public long toLocalNanos(double timestamp)
+	{
+		if(!isSynchronized())
+			return 0;
+
+		return (long) ((timestamp + getOffset(timestamp)) * 1e9);
+	}
+
+
+	/**
+	 * Converts System.nanoTime() to tracker time, NaN if not synchronized.
+	 */
+	public double toTrackerTime(long localNanos)
+	{
+		if(!isSynchronized())
+			return Double.NaN;
+
+		fit();
+
+		// local = t + offset + drift * (t - reference) - fixedLatency, solved for t
+		double local = localNanos / 1e9;
+		return (local - offset + drift * referenceTime + fixedLatency) / (1 + drift);
+	}
+
+
+	/**
+	 * Delay between the eye movement and the fastest receive of a sample
+	 * that is not visible in the offsets (tracker processing, network).
+	 */
+	public void setFixedLatency(double millis)
+	{
+		fixedLatency = millis / 1000;
+	}
+
+
+	/**
+	 * Offset (local - tracker) of the last fit, may be read from any thread.
+	 */
+	public double getOffsetMillis()
+	{
+		return (offset - fixedLatency) * 1000;
+	}
+
+
+	/**
+	 * Drift of the local clock against the tracker clock in parts per million,
+	 * of the last fit.
+	 */
+	public double getDriftPpm()
+	{
+		return drift * 1e6;
+	}
+
+
+	public long getSampleCount()
+	{
+		return samples;
+	}
+
+
+	public long getResetCount()
+	{
+		return resets;
+	}
+
+
+	public void reset()
+	{
+		buckets = 0;
+		newestBucket = -1;
+		currentBucket = Long.MIN_VALUE;
+		dirty = false;
+		referenceTime = Double.NaN;
+		offset = Double.NaN;
+		drift = 0;
+	}
+}
@@ -0,0 +1,753 @@
+package eu.opends.drivesense;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Streaming decoder for the gaze datagrams sent by the eye-tracker:
+ *
+ * {"srf":"screen","data":[{"norm_pos":[x,y],"confidence":c,"timestamp":t}, ...]}
+ *
+ * The samples are scanned straight into a GazeBatch without building a JSON
+ * tree or boxing any values. Unknown fields are skipped. Only input the
+ * scanner cannot handle (malformed datagrams, escaped keys) is passed on to
+ * the json-simple parser.
+ *
+ * Datagrams can also be decoded straight from a ByteBuffer, either as JSON
+ * or in the binary GazeWireFormat.
+ */
+public class GazeDatagramDecoder
+{
+	// number of distinct surface names kept for re-use
+	private static final int MAX_SURFACES = 32;
+
+	// digits kept in the mantissa, longer numbers are converted by Double.parseDouble()
+	private static final int MAX_DIGITS = 18;
+
+	// mantissas below 2^53 combined with a power of ten up to 10^22 convert exactly
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private CharSequence in;
+	private int pos;
+	private int end;
+	private boolean numberError;
+	// text of numbers that cannot be converted exactly, reused
+	private final StringBuilder numberText = new StringBuilder(32);
+
+	// set while scanning raw bytes; non-ASCII strings then go to the fallback
+	private boolean asciiOnly = false;
+	private final ByteSequence byteSequence = new ByteSequence();
+
+	// bounds of the last string scanned by scanString()
+	private int strStart;
+	private int strEnd;
+
+	private final String[] surfaces = new String[MAX_SURFACES];
+	private int nSurfaces = 0;
+
+	private long fallbackCount = 0;
+
+
+	/**
+	 * Decodes a datagram and appends its samples to the given batch.
+	 *
+	 * @return false if the datagram could not be decoded at all; the batch
+	 *         is left unchanged in that case
+	 */
+	public boolean decode(CharSequence datagram, GazeBatch batch)
+	{
+		int first = batch.size();
+
+		in = datagram;
+		pos = 0;
+		end = datagram.length();
+
+		try {
+
+			if(scanDatagram(batch))
+				return true;
+
+		} finally {
+			in = null;
+		}
+
+		batch.truncate(first);
+		fallbackCount++;
+
+		return decodeFallback(datagram.toString(), batch);
+	}
+
+
+	/**
+	 * Decodes the remaining bytes of the buffer (JSON or GazeWireFormat) and
+	 * appends the samples to the given batch. The buffer position is not
+	 * changed.
+	 *
+	 * @return false if the datagram could not be decoded at all; the batch
+	 *         is left unchanged in that case
+	 */
+	public boolean decode(ByteBuffer buffer, GazeBatch batch)
+	{
+		if(GazeWireFormat.isBinary(buffer))
+			return decodeBinary(buffer, batch);
+
+		int first = batch.size();
+
+		byteSequence.wrap(buffer);
+
+		in = byteSequence;
+		pos = 0;
+		end = byteSequence.length();
+		asciiOnly = true;
+
+		try {
+
+			if(scanDatagram(batch))
+				return true;
+
+		} finally {
+			in = null;
+			asciiOnly = false;
+			byteSequence.wrap(null);
+		}
+
+		batch.truncate(first);
+		fallbackCount++;
+
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+
+		return decodeFallback(new String(bytes, StandardCharsets.UTF_8), batch);
+	}
+
+
+	private boolean decodeBinary(ByteBuffer buffer, GazeBatch batch)
+	{
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		try {
+
+			int p = buffer.position() + 4;
+			int limit = buffer.limit();
+
+			if(limit - p < 2)
+				return false;
+
+			int nameLength = buffer.getShort(p) & 0xffff;
+			p += 2;
+
+			if(limit - p < nameLength + 2)
+				return false;
+
+			byteSequence.wrap(buffer, p, nameLength);
+			in = byteSequence;
+			String srf = (nameLength == 0) ? null : internSurface(0, nameLength);
+			in = null;
+			byteSequence.wrap(null);
+			p += nameLength;
+
+			int count = buffer.getShort(p) & 0xffff;
+			p += 2;
+
+			if(limit - p < count * GazeWireFormat.RECORD_SIZE)
+			{
+				System.err.println("Truncated binary gaze datagram");
+				return false;
+			}
+
+			for(int i=0; i<count; i++)
+			{
+				batch.add(srf, buffer.getDouble(p), buffer.getDouble(p + 8),
+						buffer.getDouble(p + 16), buffer.getDouble(p + 24));
+				p += GazeWireFormat.RECORD_SIZE;
+			}
+
+			return true;
+
+		} finally {
+			buffer.order(order);
+		}
+	}
+
+
+	/**
+	 * Number of datagrams that had to be handed to the general parser.
+	 */
+	public long getFallbackCount()
+	{
+		return fallbackCount;
+	}
+
+
+	private boolean decodeFallback(String datagram, GazeBatch batch)
+	{
+		int first = batch.size();
+
+		try {
+
+			JSONObject jsonObj = (JSONObject) new JSONParser().parse(datagram);
+
+			String srf = (String) jsonObj.get("srf");
+			JSONArray jsonArray = (JSONArray) jsonObj.get("data");
+
+			if(jsonArray == null)
+				return true;
+
+			for(Object element : jsonArray)
+			{
+				JSONObject jsonGaze = (JSONObject) element;
+				JSONArray dataArr = (JSONArray) jsonGaze.get("norm_pos");
+
+				double normPosX = ((Number) dataArr.get(0)).doubleValue();
+				double normPosY = ((Number) dataArr.get(1)).doubleValue();
+				double confidence = ((Number) jsonGaze.get("confidence")).doubleValue();
+				double timestamp = ((Number) jsonGaze.get("timestamp")).doubleValue();
+
+				batch.add(srf, normPosX, normPosY, confidence, timestamp);
+			}
+
+			return true;
+
+		} catch (Exception e) {
+			batch.truncate(first);
+			System.err.println("Could not decode gaze datagram: " + e);
+			return false;
+		}
+	}
+
+
+	private boolean scanDatagram(GazeBatch batch)
+	{
+		int first = batch.size();
+		String srf = null;
+
+		skipWhitespace();
+		if(!consume('{'))
+			return false;
+
+		skipWhitespace();
+		if(!consume('}'))
+		{
+			do {
+
+				skipWhitespace();
+				if(!scanString())
+					return false;
+
+				int keyStart = strStart;
+				int keyEnd = strEnd;
+
+				skipWhitespace();
+				if(!consume(':'))
+					return false;
+				skipWhitespace();
+
+				if(keyEquals(keyStart, keyEnd, "srf") && peek() == '"')
+				{
+					if(!scanString())
+						return false;
+					srf = internSurface(strStart, strEnd);
+				}
+				else if(keyEquals(keyStart, keyEnd, "data") && peek() == '[')
+				{
+					if(!scanSamples(batch))
+						return false;
+				}
+				else if(!skipValue())
+					return false;
+
+				skipWhitespace();
+
+			} while(consume(','));
+
+			if(!consume('}'))
+				return false;
+		}
+
+		// "srf" may come before or after "data"
+		batch.setSurface(first, batch.size(), srf);
+
+		skipWhitespace();
+		return pos == end;
+	}
+
+
+	private boolean scanSamples(GazeBatch batch)
+	{
+		consume('[');
+
+		skipWhitespace();
+		if(consume(']'))
+			return true;
+
+		do {
+
+			skipWhitespace();
+			if(!scanSample(batch))
+				return false;
+			skipWhitespace();
+
+		} while(consume(','));
+
+		return consume(']');
+	}
+
+
+	private boolean scanSample(GazeBatch batch)
+	{
+		if(!consume('{'))
+			return false;
+
+		boolean hasPos = false,
+				hasConfidence = false,
+				hasTimestamp = false;
+
+		double normPosX = 0,
+			   normPosY = 0,
+			   confidence = 0,
+			   timestamp = 0;
+
+		skipWhitespace();
+		if(!consume('}'))
+		{
+			do {
+
+				skipWhitespace();
+				if(!scanString())
+					return false;
+
+				int keyStart = strStart;
+				int keyEnd = strEnd;
+
+				skipWhitespace();
+				if(!consume(':'))
+					return false;
+				skipWhitespace();
+
+				if(keyEquals(keyStart, keyEnd, "norm_pos"))
+				{
+					if(!consume('['))
+						return false;
+
+					skipWhitespace();
+					normPosX = parseNumber();
+					skipWhitespace();
+					if(numberError || !consume(','))
+						return false;
+					skipWhitespace();
+					normPosY = parseNumber();
+					skipWhitespace();
+					if(numberError)
+						return false;
+
+					// ignore any further components
+					while(consume(','))
+					{
+						skipWhitespace();
+						if(!skipValue())
+							return false;
+						skipWhitespace();
+					}
+
+					if(!consume(']'))
+						return false;
+
+					hasPos = true;
+				}
+				else if(keyEquals(keyStart, keyEnd, "confidence"))
+				{
+					confidence = parseNumber();
+					if(numberError)
+						return false;
+					hasConfidence = true;
+				}
+				else if(keyEquals(keyStart, keyEnd, "timestamp"))
+				{
+					timestamp = parseNumber();
+					if(numberError)
+						return false;
+					hasTimestamp = true;
+				}
+				else if(!skipValue())
+					return false;
+
+				skipWhitespace();
+
+			} while(consume(','));
+
+			if(!consume('}'))
+				return false;
+		}
+
+		if(!hasPos || !hasConfidence || !hasTimestamp)
+			return false;
+
+		batch.add(null, normPosX, normPosY, confidence, timestamp);
+		return true;
+	}
+
+
+	/**
+	 * Parses a JSON number (plus the NaN/Infinity tokens Python emits).
+	 * Mantissas below 2^53 with exponents up to 22 are converted exactly
+	 * without creating a String; all other numbers go through
+	 * Double.parseDouble(), so the result is always identical to it (and to
+	 * the json-simple fallback).
+	 */
+	private double parseNumber()
+	{
+		numberError = false;
+		int start = pos;
+
+		boolean negative = consume('-');
+
+		int c = peek();
+		if(c == 'N')
+		{
+			numberError = !consumeLiteral("NaN");
+			return Double.NaN;
+		}
+		if(c == 'I')
+		{
+			numberError = !consumeLiteral("Infinity");
+			return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exp10 = 0;
+		boolean truncated = false;
+		boolean anyDigit = false;
+
+		while((c = peek()) >= '0' && c <= '9')
+		{
+			pos++;
+			anyDigit = true;
+
+			if(digits < MAX_DIGITS)
+			{
+				mantissa = mantissa * 10 + (c - '0');
+				if(mantissa != 0)
+					digits++;
+			}
+			else
+			{
+				exp10++;
+				truncated |= (c != '0');
+			}
+		}
+
+		if(c == '.')
+		{
+			pos++;
+			boolean anyFraction = false;
+
+			while((c = peek()) >= '0' && c <= '9')
+			{
+				pos++;
+				anyFraction = true;
+
+				if(digits < MAX_DIGITS)
+				{
+					mantissa = mantissa * 10 + (c - '0');
+					if(mantissa != 0)
+						digits++;
+					exp10--;
+				}
+				else
+					truncated |= (c != '0');
+			}
+
+			if(!anyFraction)
+			{
+				numberError = true;
+				return 0;
+			}
+		}
+
+		if(!anyDigit)
+		{
+			numberError = true;
+			return 0;
+		}
+
+		if(c == 'e' || c == 'E')
+		{
+			pos++;
+
+			boolean negativeExp = false;
+			if(!consume('+'))
+				negativeExp = consume('-');
+
+			int exp = 0;
+			boolean anyExpDigit = false;
+
+			while((c = peek()) >= '0' && c <= '9')
+			{
+				pos++;
+				anyExpDigit = true;
+				if(exp < 10000)
+					exp = exp * 10 + (c - '0');
+			}
+
+			if(!anyExpDigit)
+			{
+				numberError = true;
+				return 0;
+			}
+
+			exp10 += negativeExp ? -exp : exp;
+		}
+
+		double value;
+
+		if(mantissa == 0)
+			value = 0;
+		else if(!truncated && mantissa < MAX_EXACT_MANTISSA && exp10 >= -22 && exp10 <= 22)
+			value = (exp10 < 0) ? mantissa / POW10[-exp10] : mantissa * POW10[exp10];
+		else
+		{
+			// long mantissas, large exponents: correctly rounded by the JDK
+			numberText.setLength(0);
+			numberText.append(in, negative ? start + 1 : start, pos);
+			value = Double.parseDouble(numberText.toString());
+		}
+
+		return negative ? -value : value;
+	}
+
+
+	/**
+	 * Scans a string without escape sequences and stores the bounds of its
+	 * content in strStart/strEnd.
+	 */
+	private boolean scanString()
+	{
+		if(!consume('"'))
+			return false;
+
+		strStart = pos;
+
+		int c;
+		while((c = peek()) != '"')
+		{
+			// escaped and (in byte mode) non-ASCII strings are left to the general parser
+			if(c < 0 || c == '\\' || (asciiOnly && c > 0x7f))
+				return false;
+			pos++;
+		}
+
+		strEnd = pos++;
+		return true;
+	}
+
+
+	private boolean skipString()
+	{
+		if(!consume('"'))
+			return false;
+
+		int c;
+		while((c = peek()) != '"')
+		{
+			if(c < 0)
+				return false;
+
+			pos += (c == '\\') ? 2 : 1;
+		}
+
+		pos++;
+		return true;
+	}
+
+
+	private boolean skipValue()
+	{
+		int c = peek();
+
+		if(c == '"')
+			return skipString();
+
+		if(c == '{' || c == '[')
+		{
+			int depth = 0;
+
+			do {
+
+				c = peek();
+
+				if(c < 0)
+					return false;
+
+				if(c == '"')
+				{
+					if(!skipString())
+						return false;
+					continue;
+				}
+
+				if(c == '{' || c == '[')
+					depth++;
+				else if(c == '}' || c == ']')
+					depth--;
+
+				pos++;
+
+			} while(depth > 0);
+
+			return true;
+		}
+
+		if(c == 't')
+			return consumeLiteral("true");
+
+		if(c == 'f')
+			return consumeLiteral("false");
+
+		if(c == 'n')
+			return consumeLiteral("null");
+
+		parseNumber();
+		return !numberError;
+	}
+
+
+	private String internSurface(int start, int stop)
+	{
+		for(int i=0; i<nSurfaces; i++)
+			if(keyEquals(start, stop, surfaces[i]))
+				return surfaces[i];
+
+		String srf = in.subSequence(start, stop).toString();
+
+		if(nSurfaces < MAX_SURFACES)
+			surfaces[nSurfaces++] = srf;
+
+		return srf;
+	}
+
+
+	private boolean keyEquals(int start, int stop, String key)
+	{
+		if(stop - start != key.length())
+			return false;
+
+		for(int i=0; i<key.length(); i++)
+			if(in.charAt(start + i) != key.charAt(i))
+				return false;
+
+		return true;
+	}
+
+
+	private boolean consumeLiteral(String literal)
+	{
+		if(end - pos < literal.length())
+			return false;
+
+		for(int i=0; i<literal.length(); i++)
+			if(in.charAt(pos + i) != literal.charAt(i))
+				return false;
+
+		pos += literal.length();
+		return true;
+	}
+
+
+	private boolean consume(char c)
+	{
+		if(pos < end && in.charAt(pos) == c)
+		{
+			pos++;
+			return true;
+		}
+
+		return false;
+	}
+
+
+	private int peek()
+	{
+		return (pos < end) ? in.charAt(pos) : -1;
+	}
+
+
+	private void skipWhitespace()
+	{
+		char c;
+		while(pos < end && ((c = in.charAt(pos)) == ' ' || c == '\t' || c == '\n' || c == '\r'))
+			pos++;
+	}
+
+
+	/**
+	 * Reusable CharSequence view of the bytes of a ByteBuffer. Every byte is
+	 * mapped to one char, which is exact for the ASCII content of a datagram.
+	 */
+	private static class ByteSequence implements CharSequence
+	{
+		private ByteBuffer buffer;
+		private int offset;
+		private int length;
+
+
+		void wrap(ByteBuffer buffer)
+		{
+			if(buffer == null)
+				wrap(null, 0, 0);
+			else
+				wrap(buffer, buffer.position(), buffer.remaining());
+		}
+
+
+		void wrap(ByteBuffer buffer, int offset, int length)
+		{
+			this.buffer = buffer;
+			this.offset = offset;
+			this.length = length;
+		}
+
+
+		@Override
+		public int length()
+		{
+			return length;
+		}
+
+
+		@Override
+		public char charAt(int index)
+		{
+			return (char) (buffer.get(offset + index) & 0xff);
+		}
+
+
+		@Override
+		public CharSequence subSequence(int start, int stop)
+		{
+			byte[] bytes = new byte[stop - start];
+			for(int i=0; i<bytes.length; i++)
+				bytes[i] = buffer.get(offset + start + i);
+
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+
+		@Override
+		public String toString()
+		{
+			return subSequence(0, length).toString();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package eu.opends.drivesense;
+
+/**
+ * Fixation, saccade or blink detected by the GazeEventDetector. Positions
+ * are normalized surface coordinates, times are gaze timestamps in seconds.
+ *
+ * The detector reuses a single instance for all events; listeners have to
+ * copy what they want to keep.
+ */
+public class GazeEvent
+{
+	public enum Type
+	{
+		Fixation, Saccade, Blink;
+	}
+
+	private Type type;
+	private double startTime;
+	private double endTime;
+	private double centroidX;
+	private double centroidY;
+	private double dispersion;
+	private double amplitude;
+	private int sampleCount;
+	private long fixationId;
+
+
+	void set(Type type, double startTime, double endTime, double centroidX, double centroidY,
+			double dispersion, double amplitude, int sampleCount, long fixationId)
+	{
+		this.type = type;
+		this.startTime = startTime;
+		this.endTime = endTime;
+		this.centroidX = centroidX;
+		this.centroidY = centroidY;
+		this.dispersion = dispersion;
+		this.amplitude = amplitude;
+		this.sampleCount = sampleCount;
+		this.fixationId = fixationId;
+	}
+
+
+	public Type getType()
+	{
+		return type;
+	}
+
+
+	public double getStartTime()
+	{
+		return startTime;
+	}
+
+
+	public double getEndTime()
+	{
+		return endTime;
+	}
+
+
+	public double getDuration()
+	{
+		return endTime - startTime;
+	}
+
+
+	/**
+	 * Mean position of a fixation, midpoint of a saccade, NaN for blinks.
+	 */
+	public double getCentroidX()
+	{
+		return centroidX;
+	}
+
+
+	public double getCentroidY()
+	{
+		return centroidY;
+	}
+
+
+	/**
+	 * Horizontal plus vertical extent of the samples (Salvucci and Goldberg).
+	 */
+	public double getDispersion()
+	{
+		return dispersion;
+	}
+
+
+	/**
+	 * Distance between start and end point of a saccade, 0 otherwise.
+	 */
+	public double getAmplitude()
+	{
+		return amplitude;
+	}
+
+
+	public int getSampleCount()
+	{
+		return sampleCount;
+	}
+
+
+	/**
+	 * Sequence number of a fixation, as returned by
+	 * GazeEventDetector.getFixationId() while it was going on; 0 for
+	 * saccades and blinks.
+	 */
+	public long getFixationId()
+	{
+		return fixationId;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return type + " [" + startTime + " - " + endTime + "] (" + centroidX + ", " + centroidY
+				+ ") dispersion: " + dispersion + " amplitude: " + amplitude + " samples: " + sampleCount;
+	}
+}
@@ -0,0 +1,423 @@
+package eu.opends.drivesense;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Online fixation, saccade and blink detection over a stream of gaze samples
+ * in constant memory.
+ *
+ * Two classic algorithms are available (Salvucci and Goldberg, 2000):
+ * I-VT classifies each sample by its velocity, I-DT grows a window as long
+ * as the dispersion of its samples stays below a threshold. In the online
+ * I-DT variant used here a window that breaks the threshold before reaching
+ * the minimum fixation duration is not slid forward sample by sample but
+ * restarted at the breaking sample, which needs no sample history.
+ *
+ * A fixation candidate becomes a fixation once it lasts minFixationDuration;
+ * from then on isFixating() is true and the fixation can be resolved to an
+ * AOI. Candidates that end earlier are counted as part of the surrounding
+ * saccade. Samples with low confidence or without position are treated as
+ * loss of tracking; gaps between minBlinkDuration and maxBlinkDuration are
+ * reported as blinks.
+ */
+public class GazeEventDetector
+{
+	public enum Algorithm
+	{
+		IVT, IDT;
+	}
+
+	// defaults, in normalized surface units and seconds
+	public static final double DEFAULT_VELOCITY_THRESHOLD = 0.75;
+	public static final double DEFAULT_DISPERSION_THRESHOLD = 0.05;
+	public static final double DEFAULT_MIN_FIXATION_DURATION = 0.1;
+	public static final double DEFAULT_MIN_CONFIDENCE = 0.6;
+	public static final double DEFAULT_MIN_BLINK_DURATION = 0.05;
+	public static final double DEFAULT_MAX_BLINK_DURATION = 0.5;
+
+	private Algorithm algorithm = Algorithm.IVT;
+	private double velocityThreshold = DEFAULT_VELOCITY_THRESHOLD;
+	private double dispersionThreshold = DEFAULT_DISPERSION_THRESHOLD;
+	private double minFixationDuration = DEFAULT_MIN_FIXATION_DURATION;
+	private double minConfidence = DEFAULT_MIN_CONFIDENCE;
+	private double minBlinkDuration = DEFAULT_MIN_BLINK_DURATION;
+	private double maxBlinkDuration = DEFAULT_MAX_BLINK_DURATION;
+
+	private final List<GazeEventListener> listeners = new ArrayList<GazeEventListener>();
+	private final GazeEvent event = new GazeEvent();
+
+	// previous valid sample
+	private boolean hasPrevious = false;
+	private double previousX, previousY, previousTime;
+
+	// current fixation candidate
+	private int candidateCount = 0;
+	private double candidateStart, candidateEnd;
+	private double sumX, sumY;
+	private double minX, minY, maxX, maxY;
+	private double candidateFirstX, candidateFirstY, candidateLastX, candidateLastY;
+	private boolean confirmed = false;
+
+	// last sample of the previous fixation, if the saccade follows one
+	private boolean afterFixation = false;
+	private double fixationEnd, fixationEndX, fixationEndY;
+
+	// saccade collected since the last fixation
+	private int saccadeCount = 0;
+	private double saccadeStart, saccadeEnd;
+	private double saccadeStartX, saccadeStartY, saccadeEndX, saccadeEndY;
+
+	// start of the current loss of tracking
+	private double gapStart = Double.NaN;
+
+	private long fixationId = 0;
+	private long fixationCount = 0;
+	private long saccadeEventCount = 0;
+	private long blinkCount = 0;
+
+
+	public GazeEventDetector()
+	{
+	}
+
+
+	public GazeEventDetector(Algorithm algorithm)
+	{
+		this.algorithm = algorithm;
+	}
+
+
+	public void addListener(GazeEventListener listener)
+	{
+		listeners.add(listener);
+	}
+
+
+	public void removeListener(GazeEventListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+
+	public void setVelocityThreshold(double velocityThreshold)
+	{
+		this.velocityThreshold = velocityThreshold;
+	}
+
+
+	public void setDispersionThreshold(double dispersionThreshold)
+	{
+		this.dispersionThreshold = dispersionThreshold;
+	}
+
+
+	public void setMinFixationDuration(double minFixationDuration)
+	{
+		this.minFixationDuration = minFixationDuration;
+	}
+
+
+	public void setMinConfidence(double minConfidence)
+	{
+		this.minConfidence = minConfidence;
+	}
+
+
+	public void setBlinkDuration(double minBlinkDuration, double maxBlinkDuration)
+	{
+		this.minBlinkDuration = minBlinkDuration;
+		this.maxBlinkDuration = maxBlinkDuration;
+	}
+
+
+	/**
+	 * Adds the next sample of the stream.
+	 *
+	 * @param x normalized position, NaN if the pupil was lost
+	 * @param y normalized position, NaN if the pupil was lost
+	 * @param confidence tracker confidence in [0, 1]
+	 * @param timestamp gaze timestamp in seconds
+	 */
+	public void addSample(double x, double y, double confidence, double timestamp)
+	{
+		if(Double.isNaN(x) || Double.isNaN(y) || confidence < minConfidence)
+		{
+			if(Double.isNaN(gapStart))
+			{
+				endCandidate();
+				flushSaccade();
+				gapStart = hasPrevious ? previousTime : timestamp;
+				hasPrevious = false;
+				afterFixation = false;
+			}
+			return;
+		}
+
+		if(!Double.isNaN(gapStart))
+		{
+			double gap = timestamp - gapStart;
+
+			if(gap >= minBlinkDuration && gap <= maxBlinkDuration)
+			{
+				blinkCount++;
+				emit(GazeEvent.Type.Blink, gapStart, timestamp, Double.NaN, Double.NaN, 0, 0, 0, 0);
+			}
+
+			gapStart = Double.NaN;
+		}
+
+		if(algorithm == Algorithm.IVT)
+			addIVT(x, y, timestamp);
+		else
+			addIDT(x, y, timestamp);
+
+		hasPrevious = true;
+		previousX = x;
+		previousY = y;
+		previousTime = timestamp;
+	}
+
+
+	private void addIVT(double x, double y, double timestamp)
+	{
+		if(!hasPrevious)
+		{
+			startCandidate(x, y, timestamp);
+			return;
+		}
+
+		double dt = timestamp - previousTime;
+		double dx = x - previousX;
+		double dy = y - previousY;
+
+		// samples with equal timestamps count as slow
+		boolean slow = !(dt > 0) || Math.sqrt(dx * dx + dy * dy) < velocityThreshold * dt;
+
+		if(slow)
+		{
+			if(candidateCount == 0)
+				startCandidate(x, y, timestamp);
+			else
+				extendCandidate(x, y, timestamp);
+		}
+		else
+		{
+			endCandidate();
+			extendSaccade(x, y, timestamp);
+		}
+	}
+
+
+	private void addIDT(double x, double y, double timestamp)
+	{
+		if(candidateCount == 0)
+		{
+			startCandidate(x, y, timestamp);
+			return;
+		}
+
+		double dispersion = (Math.max(maxX, x) - Math.min(minX, x)) + (Math.max(maxY, y) - Math.min(minY, y));
+
+		if(dispersion <= dispersionThreshold)
+			extendCandidate(x, y, timestamp);
+		else
+		{
+			endCandidate();
+			startCandidate(x, y, timestamp);
+		}
+	}
+
+
+	/**
+	 * Ends the current fixation or saccade, e.g. at the end of a recording.
+	 */
+	public void flush()
+	{
+		endCandidate();
+		flushSaccade();
+		hasPrevious = false;
+		afterFixation = false;
+	}
+
+
+	/**
+	 * True while a fixation that has reached the minimum duration is going on.
+	 */
+	public boolean isFixating()
+	{
+		return confirmed;
+	}
+
+
+	/**
+	 * Sequence number of the current fixation, changes whenever a new
+	 * fixation is confirmed.
+	 */
+	public long getFixationId()
+	{
+		return fixationId;
+	}
+
+
+	/**
+	 * Mean position of the current fixation candidate.
+	 */
+	public double getCentroidX()
+	{
+		return candidateCount > 0 ? sumX / candidateCount : Double.NaN;
+	}
+
+
+	public double getCentroidY()
+	{
+		return candidateCount > 0 ? sumY / candidateCount : Double.NaN;
+	}
+
+
+	public long getFixationCount()
+	{
+		return fixationCount;
+	}
+
+
+	public long getSaccadeCount()
+	{
+		return saccadeEventCount;
+	}
+
+
+	public long getBlinkCount()
+	{
+		return blinkCount;
+	}
+
+
+	private void startCandidate(double x, double y, double timestamp)
+	{
+		candidateCount = 1;
+		candidateStart = candidateEnd = timestamp;
+		sumX = minX = maxX = candidateFirstX = candidateLastX = x;
+		sumY = minY = maxY = candidateFirstY = candidateLastY = y;
+		confirmed = false;
+		checkConfirmed();
+	}
+
+
+	private void extendCandidate(double x, double y, double timestamp)
+	{
+		candidateCount++;
+		candidateEnd = timestamp;
+		sumX += x;
+		sumY += y;
+		minX = Math.min(minX, x);
+		minY = Math.min(minY, y);
+		maxX = Math.max(maxX, x);
+		maxY = Math.max(maxY, y);
+		candidateLastX = x;
+		candidateLastY = y;
+		checkConfirmed();
+	}
+
+
+	private void checkConfirmed()
+	{
+		if(!confirmed && candidateEnd - candidateStart >= minFixationDuration)
+		{
+			confirmed = true;
+			fixationId++;
+
+			// the saccade ends where the fixation begins
+			flushSaccade();
+		}
+	}
+
+
+	private void endCandidate()
+	{
+		if(candidateCount == 0)
+			return;
+
+		if(confirmed)
+		{
+			fixationCount++;
+			emit(GazeEvent.Type.Fixation, candidateStart, candidateEnd, sumX / candidateCount, sumY / candidateCount,
+					(maxX - minX) + (maxY - minY), 0, candidateCount, fixationId);
+
+			afterFixation = true;
+			fixationEnd = candidateEnd;
+			fixationEndX = candidateLastX;
+			fixationEndY = candidateLastY;
+		}
+		else
+		{
+			// too short for a fixation, part of the saccade
+			if(saccadeCount == 0)
+			{
+				if(afterFixation)
+				{
+					saccadeStart = fixationEnd;
+					saccadeStartX = fixationEndX;
+					saccadeStartY = fixationEndY;
+				}
+				else
+				{
+					saccadeStart = candidateStart;
+					saccadeStartX = candidateFirstX;
+					saccadeStartY = candidateFirstY;
+				}
+			}
+			saccadeCount += candidateCount;
+			saccadeEnd = candidateEnd;
+			saccadeEndX = candidateLastX;
+			saccadeEndY = candidateLastY;
+		}
+
+		candidateCount = 0;
+		confirmed = false;
+	}
+
+
+	private void extendSaccade(double x, double y, double timestamp)
+	{
+		if(saccadeCount == 0)
+		{
+			// the saccade starts at the last sample before the fast one
+			saccadeStart = previousTime;
+			saccadeStartX = previousX;
+			saccadeStartY = previousY;
+		}
+
+		saccadeCount++;
+		saccadeEnd = timestamp;
+		saccadeEndX = x;
+		saccadeEndY = y;
+	}
+
+
+	private void flushSaccade()
+	{
+		if(saccadeCount == 0)
+			return;
+
+		double dx = saccadeEndX - saccadeStartX;
+		double dy = saccadeEndY - saccadeStartY;
+		double amplitude = Math.sqrt(dx * dx + dy * dy);
+
+		saccadeEventCount++;
+		emit(GazeEvent.Type.Saccade, saccadeStart, saccadeEnd, (saccadeStartX + saccadeEndX) / 2,
+				(saccadeStartY + saccadeEndY) / 2, Math.abs(dx) + Math.abs(dy), amplitude, saccadeCount, 0);
+
+		saccadeCount = 0;
+	}
+
+
+	private void emit(GazeEvent.Type type, double start, double end, double x, double y,
+			double dispersion, double amplitude, int sampleCount, long id)
+	{
+		event.set(type, start, end, x, y, dispersion, amplitude, sampleCount, id);
+
+		for(int i=0; i<listeners.size(); i++)
+			listeners.get(i).onGazeEvent(event);
+	}
+}
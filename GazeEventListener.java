@@ -0,0 +1,10 @@
+package eu.opends.drivesense;
+
+public interface GazeEventListener
+{
+	/**
+	 * Called when an event has ended. The event object is reused after the
+	 * call returns.
+	 */
+	void onGazeEvent(GazeEvent event);
+}
@@ -0,0 +1,88 @@
+package eu.opends.drivesense;
+
+/**
+ * Smoothing stage for normalized gaze positions. Samples are passed in one by
+ * one in the order they were recorded; the filtered position is available
+ * through getX() and getY() afterwards. Implementations work on primitive
+ * state only and do not allocate per sample.
+ */
+public abstract class GazeFilter
+{
+	// smoothingFactor values selecting the adaptive filters
+	public static final int ONE_EURO = -1;
+	public static final int KALMAN = -2;
+
+	// sample interval assumed if timestamps are missing or not increasing
+	static final double DEFAULT_INTERVAL = 1.0 / 120.0;
+
+	protected double x = Double.NaN;
+	protected double y = Double.NaN;
+
+
+	/**
+	 * Creates the filter selected by the Eyetracker_smoothingFactor setting:
+	 * 2 or more is the window of a moving average, 0 and 1 disable smoothing,
+	 * -1 selects the One Euro filter and -2 the constant-velocity Kalman
+	 * filter.
+	 */
+	public static GazeFilter create(int smoothingFactor)
+	{
+		switch(smoothingFactor)
+		{
+			case ONE_EURO:
+				return new OneEuroGazeFilter();
+
+			case KALMAN:
+				return new KalmanGazeFilter();
+
+			default:
+				return new MovingAverageGazeFilter(Math.max(1, smoothingFactor));
+		}
+	}
+
+
+	/**
+	 * Adds a sample.
+	 *
+	 * @param timestamp time of the sample in seconds
+	 */
+	public abstract void filter(double rawX, double rawY, double timestamp);
+
+
+	/**
+	 * Forgets all previous samples.
+	 */
+	public abstract void reset();
+
+
+	public double getX()
+	{
+		return x;
+	}
+
+
+	public double getY()
+	{
+		return y;
+	}
+
+
+	/**
+	 * True once at least one sample has been filtered since the last reset.
+	 */
+	public boolean hasValue()
+	{
+		return !Double.isNaN(x);
+	}
+
+
+	static double interval(double previousTimestamp, double timestamp)
+	{
+		double dt = timestamp - previousTimestamp;
+
+		if(!(dt > 0) || dt > 1)
+			return DEFAULT_INTERVAL;
+
+		return dt;
+	}
+}
@@ -0,0 +1,131 @@
+package eu.opends.drivesense;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.jme3.material.Material;
+import com.jme3.material.MaterialDef;
+import com.jme3.math.ColorRGBA;
+import com.jme3.scene.Geometry;
+
+/**
+ * Keeps track of the materials highlighted by the eye tracker. The geometries
+ * to highlight are marked between beginFrame() and commit(); commit() only
+ * touches the materials whose highlight state actually changed since the
+ * previous frame instead of resetting the glow of every material in the scene.
+ *
+ * Whether a material supports "GlowColor" is looked up once per material
+ * definition and cached.
+ */
+public class GazeHighlighter
+{
+	private static final String GLOW_COLOR = "GlowColor";
+
+	private final ColorRGBA glowColor;
+
+	// materials highlighted in the previous frame and marked in the current one
+	private Set<Material> highlighted = newIdentitySet();
+	private Set<Material> marked = newIdentitySet();
+
+	private final Map<MaterialDef, Boolean> glowSupport = new IdentityHashMap<MaterialDef, Boolean>();
+
+
+	public GazeHighlighter(ColorRGBA glowColor)
+	{
+		this.glowColor = glowColor;
+	}
+
+
+	public void beginFrame()
+	{
+		marked.clear();
+	}
+
+
+	public void mark(Geometry geometry)
+	{
+		Material material = geometry.getMaterial();
+
+		if(material != null && supportsGlow(material))
+			marked.add(material);
+	}
+
+
+	/**
+	 * Removes the highlight from materials that are no longer marked and
+	 * highlights the newly marked ones.
+	 */
+	public void commit()
+	{
+		// uncolor first, a material may be shared by the old and the new target
+		for(Material material : highlighted)
+			if(!marked.contains(material))
+				setGlow(material, ColorRGBA.Black);
+
+		for(Material material : marked)
+			if(!highlighted.contains(material))
+				setGlow(material, glowColor);
+
+		Set<Material> previous = highlighted;
+		highlighted = marked;
+		marked = previous;
+	}
+
+
+	/**
+	 * Removes all highlights.
+	 */
+	public void clear()
+	{
+		beginFrame();
+		commit();
+	}
+
+
+	public int getHighlightedCount()
+	{
+		return highlighted.size();
+	}
+
+
+	private boolean supportsGlow(Material material)
+	{
+		MaterialDef def = material.getMaterialDef();
+
+		if(def == null)
+			return true;
+
+		Boolean supported = glowSupport.get(def);
+
+		if(supported == null)
+		{
+			supported = (def.getMaterialParam(GLOW_COLOR) != null);
+			glowSupport.put(def, supported);
+		}
+
+		return supported;
+	}
+
+
+	private void setGlow(Material material, ColorRGBA color)
+	{
+		try {
+
+			material.setColor(GLOW_COLOR, color);
+
+		} catch (IllegalArgumentException e) {
+
+			// parameter type differs from what the definition suggested
+			if(material.getMaterialDef() != null)
+				glowSupport.put(material.getMaterialDef(), Boolean.FALSE);
+		}
+	}
+
+
+	private static Set<Material> newIdentitySet()
+	{
+		return Collections.newSetFromMap(new IdentityHashMap<Material, Boolean>());
+	}
+}
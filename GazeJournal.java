@@ -0,0 +1,424 @@
+package eu.opends.drivesense;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the annotation rows of a recording. Appended text
+ * is buffered and written with one fsync per commit (group commit), so the
+ * CSV file itself does not need to be flushed per row. The journal lives in
+ * segments next to the CSV file:
+ *
+ *   aoi_labels.jnl.000000, aoi_labels.jnl.000001, ...
+ *
+ * Each segment starts with MAGIC and VERSION, followed by records of
+ *
+ *   int length, int crc32, length bytes of text
+ *
+ * The text is encoded with the platform charset, like the CSV file written
+ * by EyeTrackerIO's FileWriter.
+ *
+ * After a clean close the CSV file is synced and the journal deleted. If
+ * the simulator crashed, recover() replays all records up to the first torn
+ * or corrupt one into the CSV file. The journal is locked while it is
+ * written, recovery skips locked journals.
+ */
+public class GazeJournal
+{
+	public static final String FILE_PREFIX = "aoi_labels.jnl.";
+
+	static final int MAGIC = 0x475a4a4c; // "GZJL"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 8;
+	static final int RECORD_HEADER_SIZE = 8;
+
+	// records larger than that are corrupt
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+	private final File dir;
+	private final long segmentSize;
+	private final long commitIntervalNanos;
+
+	private FileChannel channel;
+	private FileLock lock;
+	private int segment = -1;
+	private long segmentLength = 0;
+
+	private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+	private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+	private final CRC32 crc = new CRC32();
+	private long lastCommit = System.nanoTime();
+
+	private long commits = 0;
+
+
+	/**
+	 * Starts a new journal in the given directory.
+	 *
+	 * @param commitIntervalMillis commitIfDue() commits at most this often
+	 */
+	public GazeJournal(File dir, long commitIntervalMillis) throws IOException
+	{
+		this(dir, commitIntervalMillis, 16 * 1024 * 1024);
+	}
+
+
+	public GazeJournal(File dir, long commitIntervalMillis, long segmentSize) throws IOException
+	{
+		this.dir = dir;
+		this.commitIntervalNanos = commitIntervalMillis * 1000000L;
+		this.segmentSize = segmentSize;
+
+		// left over from a recording that was not recovered
+		for(File file : segments(dir))
+			file.delete();
+
+		nextSegment();
+	}
+
+
+	/**
+	 * Buffers the text as one record; it is durable after the next commit.
+	 */
+	public void append(char[] chars, int offset, int length) throws IOException
+	{
+		ensurePending(RECORD_HEADER_SIZE + (int) (length * encoder.maxBytesPerChar()));
+
+		int recordStart = pending.position();
+		pending.position(recordStart + RECORD_HEADER_SIZE);
+
+		encoder.reset();
+		CoderResult result = encoder.encode(CharBuffer.wrap(chars, offset, length), pending, true);
+		if(!result.isUnderflow())
+			result.throwException();
+		encoder.flush(pending);
+
+		int payloadLength = pending.position() - recordStart - RECORD_HEADER_SIZE;
+
+		crc.reset();
+		crc.update(pending.array(), recordStart + RECORD_HEADER_SIZE, payloadLength);
+
+		pending.putInt(recordStart, payloadLength);
+		pending.putInt(recordStart + 4, (int) crc.getValue());
+	}
+
+
+	public void append(String text) throws IOException
+	{
+		append(text.toCharArray(), 0, text.length());
+	}
+
+
+	private void ensurePending(int size)
+	{
+		if(pending.remaining() >= size)
+			return;
+
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + size));
+		pending.flip();
+		larger.put(pending);
+		pending = larger;
+	}
+
+
+	/**
+	 * Commits if the commit interval has elapsed since the last commit.
+	 *
+	 * @return true if committed
+	 */
+	public boolean commitIfDue() throws IOException
+	{
+		if(pending.position() == 0 || System.nanoTime() - lastCommit < commitIntervalNanos)
+			return false;
+
+		commit();
+		return true;
+	}
+
+
+	/**
+	 * Writes all appended records and forces them to the disk.
+	 */
+	public void commit() throws IOException
+	{
+		lastCommit = System.nanoTime();
+
+		if(pending.position() == 0)
+			return;
+
+		if(segmentLength > HEADER_SIZE && segmentLength + pending.position() > segmentSize)
+			nextSegment();
+
+		pending.flip();
+		while(pending.hasRemaining())
+			segmentLength += channel.write(pending);
+		pending.clear();
+
+		channel.force(false);
+
+		commits++;
+	}
+
+
+	private void nextSegment() throws IOException
+	{
+		closeSegment();
+
+		segment++;
+		channel = FileChannel.open(segmentFile(dir, segment).toPath(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
+		lock = channel.lock();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		while(header.hasRemaining())
+			channel.write(header);
+
+		// the segment must exist before its records are committed
+		channel.force(true);
+		segmentLength = HEADER_SIZE;
+	}
+
+
+	private void closeSegment() throws IOException
+	{
+		if(channel == null)
+			return;
+
+		channel.force(false);
+		lock.release();
+		channel.close();
+		channel = null;
+	}
+
+
+	/**
+	 * Commits the remaining records and closes the journal. The journal is
+	 * kept until delete().
+	 */
+	public void close() throws IOException
+	{
+		if(channel == null)
+			return;
+
+		try {
+			commit();
+		} finally {
+			closeSegment();
+		}
+	}
+
+
+	/**
+	 * Deletes the journal once the data is safe in the output file.
+	 */
+	public void delete()
+	{
+		for(File file : segments(dir))
+			if(!file.delete())
+				System.out.println("Could not delete journal " + file + " !!!");
+	}
+
+
+	public long getCommits()
+	{
+		return commits;
+	}
+
+
+	public File getDirectory()
+	{
+		return dir;
+	}
+
+
+	/**
+	 * True if the directory holds a journal, i.e. its recording was not closed.
+	 */
+	public static boolean exists(File dir)
+	{
+		return !segments(dir).isEmpty();
+	}
+
+
+	/**
+	 * Replaces the target file with all intact records of the journal in the
+	 * given directory and deletes the journal. A torn or corrupt record and
+	 * everything after it is dropped; the segment is truncated there.
+	 *
+	 * @return number of lines recovered, -1 if the journal is in use
+	 */
+	public static long recover(File dir, File target) throws IOException
+	{
+		List<File> segments = segments(dir);
+		List<FileChannel> channels = new ArrayList<FileChannel>();
+
+		File temp = new File(target.getPath() + ".recovering");
+		long lines = 0;
+
+		try {
+
+			// a locked segment belongs to a running recording
+			for(File file : segments)
+			{
+				FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+				channels.add(channel);
+
+				try {
+					if(channel.tryLock() == null)
+						return -1;
+				} catch (OverlappingFileLockException e) {
+					return -1;
+				}
+			}
+
+			try(FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+			{
+				for(int i=0; i<channels.size(); i++)
+				{
+					long[] result = replay(channels.get(i), out);
+					lines += result[1];
+
+					if(result[0] >= 0)
+					{
+						System.out.println("Journal " + segments.get(i) + " is torn at " + result[0] + ", truncated");
+						channels.get(i).truncate(result[0]);
+						channels.get(i).force(true);
+						break;
+					}
+				}
+
+				out.force(true);
+			}
+
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+
+		} finally {
+			for(FileChannel channel : channels)
+				channel.close();
+			temp.delete();
+		}
+
+		for(File file : segments)
+			file.delete();
+
+		return lines;
+	}
+
+
+	/**
+	 * Copies the intact records of one segment.
+	 *
+	 * @return { offset of the first bad record or -1, lines copied }
+	 */
+	private static long[] replay(FileChannel in, FileChannel out) throws IOException
+	{
+		long size = in.size();
+		long lines = 0;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if(!readFully(in, header, 0) || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+			return new long[] { 0, 0 };
+
+		CRC32 crc = new CRC32();
+		ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		ByteBuffer payload = ByteBuffer.allocate(64 * 1024);
+		long position = HEADER_SIZE;
+
+		while(position < size)
+		{
+			recordHeader.clear();
+			if(!readFully(in, recordHeader, position))
+				return new long[] { position, lines };
+
+			int length = recordHeader.getInt(0);
+			int checksum = recordHeader.getInt(4);
+
+			if(length < 0 || length > MAX_RECORD_SIZE || position + RECORD_HEADER_SIZE + length > size)
+				return new long[] { position, lines };
+
+			if(payload.capacity() < length)
+				payload = ByteBuffer.allocate(length);
+			payload.clear().limit(length);
+
+			if(!readFully(in, payload, position + RECORD_HEADER_SIZE))
+				return new long[] { position, lines };
+
+			crc.reset();
+			crc.update(payload.array(), 0, length);
+			if((int) crc.getValue() != checksum)
+				return new long[] { position, lines };
+
+			for(int i=0; i<length; i++)
+				if(payload.get(i) == '\n')
+					lines++;
+
+			payload.flip();
+			while(payload.hasRemaining())
+				out.write(payload);
+
+			position += RECORD_HEADER_SIZE + length;
+		}
+
+		return new long[] { -1, lines };
+	}
+
+
+	private static boolean readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			int read = in.read(buffer, position);
+			if(read < 0)
+				return false;
+			position += read;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Forces the content of a file written through a stream to the disk.
+	 */
+	public static void sync(File file) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+		{
+			channel.force(true);
+		}
+	}
+
+
+	static File segmentFile(File dir, int segment)
+	{
+		return new File(dir, FILE_PREFIX + String.format("%06d", segment));
+	}
+
+
+	static List<File> segments(File dir)
+	{
+		File[] files = dir.listFiles((d, name) -> name.startsWith(FILE_PREFIX));
+		if(files == null)
+			return new ArrayList<File>();
+
+		Arrays.sort(files);
+		return new ArrayList<File>(Arrays.asList(files));
+	}
+}
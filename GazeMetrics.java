@@ -0,0 +1,396 @@
+package eu.opends.drivesense;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency instrumentation of the gaze pipeline. Each stage records into its
+ * own LatencyHistogram:
+ *
+ * Decode    - decoding a datagram on the receive thread
+ * Receive   - from the socket receive until the render thread drains the sample
+ * Smoothing - filter and event detector, per frame
+ * Picking   - AOI resolution, per frame
+ * Logging   - annotation rows and AOI statistics, per frame
+ * Age       - from the tracker timestamp until the render thread acts on it
+ *
+ * The tracker clock has an arbitrary epoch, so the age is measured against
+ * the smallest (receive time - tracker timestamp) offset seen so far. That
+ * leaves out the minimal network delay but shows every delay on top of it.
+ * Everything is exposed via JMX and summarized on System.out periodically.
+ */
+public class GazeMetrics implements GazeMetricsMBean
+{
+	public enum Stage
+	{
+		Decode, Receive, Smoothing, Picking, Logging, Age;
+	}
+
+	public static final String JMX_DOMAIN = "eu.opends.drivesense";
+
+	// a larger age means the tracker clock was reset
+	private static final double CLOCK_JUMP = 5.0;
+
+	private final GazeRing ring;
+	private GazeReceiver receiver;
+	private GazePickCache pickCache;
+	private GazeClockSync clockSync;
+	private GazePredictor predictor;
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+	private final long[][] previousCounts = new long[Stage.values().length][];
+	private long[] intervalCounts;
+
+	private volatile double staleThresholdMillis = 100;
+	private volatile long staleSamples = 0;
+	private volatile long processedSamples = 0;
+
+	private double minClockOffset = Double.NaN;
+
+	private long summaryIntervalNanos = 10000000000L;
+	private long lastSummary = 0;
+	private long samplesAtLastSummary = 0;
+	private long staleAtLastSummary = 0;
+	private long droppedAtLastSummary = 0;
+
+	private List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+
+	public GazeMetrics(GazeRing ring)
+	{
+		this.ring = ring;
+
+		for(Stage stage : Stage.values())
+			histograms[stage.ordinal()] = new LatencyHistogram(stage.name());
+	}
+
+
+	public void setReceiver(GazeReceiver receiver)
+	{
+		this.receiver = receiver;
+	}
+
+
+	public void setPickCache(GazePickCache pickCache)
+	{
+		this.pickCache = pickCache;
+	}
+
+
+	public void setClockSync(GazeClockSync clockSync)
+	{
+		this.clockSync = clockSync;
+	}
+
+
+	public void setPredictor(GazePredictor predictor)
+	{
+		this.predictor = predictor;
+	}
+
+
+	public LatencyHistogram getHistogram(Stage stage)
+	{
+		return histograms[stage.ordinal()];
+	}
+
+
+	public void record(Stage stage, long nanos)
+	{
+		histograms[stage.ordinal()].record(nanos);
+	}
+
+
+	/**
+	 * Records receive latency and age of a sample the render thread is about
+	 * to process. Render thread only.
+	 *
+	 * @param timestamp tracker timestamp (s)
+	 * @param receiveNanos System.nanoTime() when the datagram was received, 0 if unknown
+	 * @param now System.nanoTime() of the current frame
+	 */
+	public void recordSample(double timestamp, long receiveNanos, long now)
+	{
+		processedSamples++;
+
+		if(receiveNanos == 0)
+			return;
+
+		record(Stage.Receive, now - receiveNanos);
+
+		if(Double.isNaN(timestamp))
+			return;
+
+		double offset = receiveNanos / 1e9 - timestamp;
+		if(Double.isNaN(minClockOffset) || offset < minClockOffset)
+			minClockOffset = offset;
+
+		double age = now / 1e9 - timestamp - minClockOffset;
+		if(age > CLOCK_JUMP)
+		{
+			// start over with the new tracker epoch
+			minClockOffset = offset;
+			age = now / 1e9 - timestamp - minClockOffset;
+		}
+
+		long ageNanos = (long) (age * 1e9);
+		record(Stage.Age, ageNanos);
+
+		if(ageNanos > staleThresholdMillis * 1e6)
+			staleSamples++;
+	}
+
+
+	/**
+	 * Prints the summary of the past interval if it is due. Render thread only.
+	 */
+	public void update(long now)
+	{
+		if(lastSummary == 0)
+		{
+			startInterval(now);
+			return;
+		}
+
+		if(summaryIntervalNanos <= 0 || now - lastSummary < summaryIntervalNanos)
+			return;
+
+		System.out.println(intervalSummary(now));
+		startInterval(now);
+	}
+
+
+	private void startInterval(long now)
+	{
+		for(Stage stage : Stage.values())
+			previousCounts[stage.ordinal()] = getHistogram(stage).snapshot(previousCounts[stage.ordinal()]);
+
+		lastSummary = now;
+		samplesAtLastSummary = processedSamples;
+		staleAtLastSummary = staleSamples;
+		droppedAtLastSummary = getDroppedDatagrams();
+	}
+
+
+	private String intervalSummary(long now)
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format(Locale.US, "Gaze latency (last %.0f s, %d samples, %d stale, %d dropped)",
+				(now - lastSummary) / 1e9, processedSamples - samplesAtLastSummary,
+				staleSamples - staleAtLastSummary, getDroppedDatagrams() - droppedAtLastSummary));
+
+		for(Stage stage : Stage.values())
+		{
+			intervalCounts = getHistogram(stage).snapshot(intervalCounts);
+			long[] previous = previousCounts[stage.ordinal()];
+			for(int i=0; i<previous.length; i++)
+				intervalCounts[i] -= previous[i];
+
+			builder.append(String.format(Locale.US, " %s p50/p99 %.2f/%.2f ms", stage.name().toLowerCase(),
+					LatencyHistogram.percentile(intervalCounts, 0.5) / 1e6,
+					LatencyHistogram.percentile(intervalCounts, 0.99) / 1e6));
+		}
+
+		return builder.toString();
+	}
+
+
+	/**
+	 * Sets the period of the summary line; 0 disables it.
+	 */
+	public void setSummaryInterval(long millis)
+	{
+		summaryIntervalNanos = millis * 1000000L;
+	}
+
+
+	/**
+	 * Registers the counters and one histogram per stage with the platform
+	 * MBean server, e.g. as "eu.opends.drivesense:type=GazeLatency,port=2010,stage=Age".
+	 */
+	public void registerMBeans(String id)
+	{
+		registerMBeans(id, null);
+	}
+
+
+	/**
+	 * Registers the beans of a participant, e.g. as
+	 * "eu.opends.drivesense:type=GazeLatency,port=2011,participant=p2,stage=Age".
+	 */
+	public void registerMBeans(String id, String participantId)
+	{
+		try {
+
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+			String keys = ",port=" + id + ((participantId == null) ? "" : ",participant=" + ObjectName.quote(participantId));
+
+			ObjectName name = new ObjectName(JMX_DOMAIN + ":type=GazeMetrics" + keys);
+			register(server, this, name);
+
+			for(Stage stage : Stage.values())
+			{
+				name = new ObjectName(JMX_DOMAIN + ":type=GazeLatency" + keys + ",stage=" + stage.name());
+				register(server, getHistogram(stage), name);
+			}
+
+		} catch (Exception e) {
+			System.err.println("Could not register gaze metrics MBeans");
+			e.printStackTrace();
+		}
+	}
+
+
+	private void register(MBeanServer server, Object bean, ObjectName name) throws Exception
+	{
+		// replace the beans of a previous run in the same JVM
+		if(server.isRegistered(name))
+			server.unregisterMBean(name);
+
+		server.registerMBean(bean, name);
+		registeredNames.add(name);
+	}
+
+
+	public void unregisterMBeans()
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		for(ObjectName name : registeredNames)
+		{
+			try {
+				if(server.isRegistered(name))
+					server.unregisterMBean(name);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		registeredNames.clear();
+	}
+
+
+	@Override
+	public long getReceivedDatagrams()
+	{
+		return (receiver == null) ? 0 : receiver.getReceivedCount();
+	}
+
+
+	@Override
+	public long getMalformedDatagrams()
+	{
+		return (receiver == null) ? 0 : receiver.getMalformedCount();
+	}
+
+
+	/**
+	 * Datagrams dropped because the ring was full.
+	 */
+	@Override
+	public long getDroppedDatagrams()
+	{
+		return ring.getOverflowCount();
+	}
+
+
+	@Override
+	public long getDroppedSamples()
+	{
+		return ring.getDroppedSamples();
+	}
+
+
+	@Override
+	public long getStaleSamples()
+	{
+		return staleSamples;
+	}
+
+
+	@Override
+	public long getProcessedSamples()
+	{
+		return processedSamples;
+	}
+
+
+	@Override
+	public long getPickCacheHits()
+	{
+		return (pickCache == null) ? 0 : pickCache.getHits();
+	}
+
+
+	@Override
+	public long getPickCacheMisses()
+	{
+		return (pickCache == null) ? 0 : pickCache.getMisses();
+	}
+
+
+	@Override
+	public double getPickCacheHitRate()
+	{
+		return (pickCache == null) ? 0 : pickCache.getHitRate();
+	}
+
+
+	@Override
+	public double getClockOffsetMillis()
+	{
+		return (clockSync == null) ? Double.NaN : clockSync.getOffsetMillis();
+	}
+
+
+	@Override
+	public double getClockDriftPpm()
+	{
+		return (clockSync == null) ? 0 : clockSync.getDriftPpm();
+	}
+
+
+	@Override
+	public double getPredictionHorizonMillis()
+	{
+		return (predictor == null) ? 0 : predictor.getHorizon() * 1000;
+	}
+
+
+	@Override
+	public double getStaleThresholdMillis()
+	{
+		return staleThresholdMillis;
+	}
+
+
+	@Override
+	public void setStaleThresholdMillis(double millis)
+	{
+		staleThresholdMillis = millis;
+	}
+
+
+	@Override
+	public String getSummary()
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format(Locale.US, "received %d, malformed %d, dropped %d, stale %d of %d;",
+				getReceivedDatagrams(), getMalformedDatagrams(), getDroppedDatagrams(), staleSamples, processedSamples));
+
+		for(Stage stage : Stage.values())
+		{
+			LatencyHistogram histogram = getHistogram(stage);
+			builder.append(String.format(Locale.US, " %s p50/p99/max %.2f/%.2f/%.2f ms", stage.name().toLowerCase(),
+					histogram.getP50Micros() / 1000, histogram.getP99Micros() / 1000, histogram.getMaxMicros() / 1000));
+		}
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,38 @@
+package eu.opends.drivesense;
+
+/**
+ * JMX view of the gaze pipeline counters. The latencies of the single
+ * stages are registered as LatencyHistogramMBeans next to it.
+ */
+public interface GazeMetricsMBean
+{
+	public long getReceivedDatagrams();
+
+	public long getMalformedDatagrams();
+
+	public long getDroppedDatagrams();
+
+	public long getDroppedSamples();
+
+	public long getStaleSamples();
+
+	public long getProcessedSamples();
+
+	public long getPickCacheHits();
+
+	public long getPickCacheMisses();
+
+	public double getPickCacheHitRate();
+
+	public double getClockOffsetMillis();
+
+	public double getClockDriftPpm();
+
+	public double getPredictionHorizonMillis();
+
+	public double getStaleThresholdMillis();
+
+	public void setStaleThresholdMillis(double millis);
+
+	public String getSummary();
+}
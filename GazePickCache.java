@@ -0,0 +1,175 @@
+package eu.opends.drivesense;
+
+import com.jme3.collision.CollisionResult;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Ray;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+
+/**
+ * Frame-coherent cache of the last pick: while the gaze stays within a few
+ * pixels, the camera does not move and the picking index reports no change
+ * along the cached ray, the previous result is reused instead of casting a
+ * new ray. During fixations from a standing or slowly moving car this skips
+ * most ray casts; moving traffic only invalidates the cache if it is on the
+ * gaze ray, appearing and disappearing vehicles always do, and a cached hit
+ * is dropped once its geometry is detached.
+ *
+ * Call lookup() after GazePickingIndex.update() of the frame and store()
+ * after every pick it did not answer. Only picks of every frame
+ * (AoiResolution.PerFrame) use the cache; with PerFixation consecutive
+ * picks are at different fixation centroids and would almost never hit.
+ */
+public class GazePickCache
+{
+	private final GazePickingIndex index;
+
+	// max. distance of the gaze point (px), camera location (world units)
+	// and camera rotation (rad) from the cached pick
+	private float screenTolerance = 1f;
+	private float locationTolerance = 0.001f;
+	private float rotationTolerance = 0.001f;
+	// a cached pick is reused for at most this many frames, 0 = no limit
+	private int maxAge = 60;
+
+	private boolean valid = false;
+	private float screenX;
+	private float screenY;
+	private final Vector3f location = new Vector3f();
+	private final Quaternion rotation = new Quaternion();
+	private final Ray ray = new Ray();
+	private final Vector3f rayOrigin = new Vector3f();
+	private final Vector3f rayDirection = new Vector3f();
+	private CollisionResult result;
+	private float resultDistance;
+	private int resultLeaf;
+	private long epoch;
+	private int age;
+
+	private long hits = 0;
+	private long misses = 0;
+
+
+	public GazePickCache(GazePickingIndex index)
+	{
+		this.index = index;
+	}
+
+
+	public void setScreenTolerance(float pixels)
+	{
+		this.screenTolerance = pixels;
+	}
+
+
+	public void setLocationTolerance(float worldUnits)
+	{
+		this.locationTolerance = worldUnits;
+	}
+
+
+	public void setRotationTolerance(float radians)
+	{
+		this.rotationTolerance = radians;
+	}
+
+
+	public void setMaxAge(int frames)
+	{
+		this.maxAge = frames;
+	}
+
+
+	/**
+	 * Returns true if the cached result can be used for the gaze point and
+	 * camera; it is then available from getResult().
+	 */
+	public boolean lookup(float x, float y, Camera cam)
+	{
+		if(valid && isCoherent(x, y, cam) && (maxAge <= 0 || age < maxAge)
+				&& (result == null || index.isAttached(result.getGeometry()))
+				&& !index.changedAlongRay(ray, resultDistance, resultLeaf, epoch))
+		{
+			// later changes are checked from now on
+			epoch = index.getEpoch();
+			age++;
+			hits++;
+			return true;
+		}
+
+		misses++;
+		return false;
+	}
+
+
+	private boolean isCoherent(float x, float y, Camera cam)
+	{
+		float dx = x - screenX;
+		float dy = y - screenY;
+		if(dx*dx + dy*dy > screenTolerance * screenTolerance)
+			return false;
+
+		if(cam.getLocation().distanceSquared(location) > locationTolerance * locationTolerance)
+			return false;
+
+		// 1 - |cos(angle/2)| is about angle^2/8 for small angles
+		float dot = Math.abs(cam.getRotation().dot(rotation));
+		return 1 - dot <= rotationTolerance * rotationTolerance / 8;
+	}
+
+
+	/**
+	 * Caches the result of a pick for the given gaze point, camera and ray.
+	 */
+	public void store(float x, float y, Camera cam, Ray pickRay, CollisionResult pickResult)
+	{
+		valid = true;
+		screenX = x;
+		screenY = y;
+		location.set(cam.getLocation());
+		rotation.set(cam.getRotation());
+
+		rayOrigin.set(pickRay.getOrigin());
+		rayDirection.set(pickRay.getDirection());
+		ray.setOrigin(rayOrigin);
+		ray.setDirection(rayDirection);
+
+		result = pickResult;
+		resultDistance = (pickResult == null) ? pickRay.getLimit() : pickResult.getDistance();
+		resultLeaf = (pickResult == null) ? -1 : index.getLastHitLeaf();
+		epoch = index.getEpoch();
+		age = 0;
+	}
+
+
+	public CollisionResult getResult()
+	{
+		return result;
+	}
+
+
+	public void invalidate()
+	{
+		valid = false;
+		result = null;
+	}
+
+
+	public long getHits()
+	{
+		return hits;
+	}
+
+
+	public long getMisses()
+	{
+		return misses;
+	}
+
+
+	public double getHitRate()
+	{
+		long lookups = hits + misses;
+		return (lookups == 0) ? 0 : (double) hits / lookups;
+	}
+}
@@ -0,0 +1,1078 @@
+package eu.opends.drivesense;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingSphere;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.collision.CollisionResult;
+import com.jme3.collision.CollisionResults;
+import com.jme3.math.Ray;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+
+import eu.opends.tools.Util;
+
+/**
+ * Bounding volume hierarchy over the geometries of the scene, used to find
+ * the geometry hit by the gaze ray. Unlike Node.collideWith(), which collects
+ * every intersection in the scene, the query visits the nodes front to back
+ * and skips everything farther away than the closest hit found so far.
+ *
+ * The geometries are kept in two trees. The movers - the vehicles of a
+ * VehicleGeometryIndex and spatials registered with addMover() (e.g. the
+ * own car) - have a small tree of their own, which is refit every frame and
+ * rebuilt whenever a vehicle appears or disappears. The rest of the scene
+ * is taken as static: its tree is rebuilt when invalidate() is called or
+ * when spatials are attached to or detached from any node of the scene.
+ * Every frame, the nodes of the scene are checked for a changed number of
+ * children, last child or world bound; the geometries directly below a node
+ * with a changed bound are refit. A geometry that moves without changing
+ * the bound of its parent node is only found by the sweep, which checks a
+ * few leaves per frame, so that all of them are checked within the given
+ * number of frames. Per frame, the cost depends on the number of movers and
+ * of nodes, not on the number of geometries. Hits on geometries that are no
+ * longer attached to the root are dropped.
+ *
+ * Every update() starts a new epoch. Leaves and nodes remember the epoch in
+ * which their bounds last changed, so GazePickCache can ask whether any
+ * change since a given epoch could affect the result of a ray.
+ *
+ * Render thread only: the exact test of a leaf (Geometry.collideWith())
+ * updates the cached world matrix and collision data of the geometry.
+ */
+public class GazePickingIndex
+{
+	private static final int LEAF_SIZE = 4;
+
+	// leaves of the mover tree as returned by getLastHitLeaf()
+	private static final int MOVER_LEAF = 1 << 30;
+
+	private final Node root;
+	private final Set<Spatial> excluded = newIdentitySet();
+
+	// spatials registered with addMover() and the current movers including the vehicles
+	private final List<Spatial> registeredMovers = new ArrayList<Spatial>();
+	private final Set<Spatial> movers = newIdentitySet();
+	private VehicleGeometryIndex vehicleIndex;
+	private long vehicleVersion = -1;
+	private boolean moversChanged = true;
+
+	// children of the root (without movers) the scene tree was built from
+	private Spatial[] topLevel = new Spatial[0];
+	private int topLevelCount = 0;
+
+	// nodes of the scene tree (root first, without movers and excluded spatials)
+	// with their number of children, last child, children signature and world bound
+	// at the last check
+	private Node[] watchedNodes = new Node[0];
+	private int[] watchedQuantity = new int[0];
+	private Spatial[] watchedLast = new Spatial[0];
+	private long[] watchedSignature = new long[0];
+	private float[] watchedBounds = new float[0];
+	// scene leaves of the geometries directly below each node: watchedLeaves[watchedFirst[i] .. watchedFirst[i+1]-1]
+	private int[] watchedFirst = new int[1];
+	private int[] watchedLeaves = new int[0];
+
+	// all scene leaves are checked for moved bounds within this many calls to update(), 0 = never
+	private int sweepInterval;
+	private int sweepPosition = 0;
+	private boolean rebuildRequested = true;
+
+	private final Tree sceneTree = new Tree();
+	private final Tree moverTree = new Tree();
+
+	// epoch of the last update()
+	private long epoch = 0;
+
+	// scratch space of the queries
+	private final Query query = new Query();
+	private final float[] scratchBounds = new float[6];
+	private final AtomicLong visitedNodes = new AtomicLong(0);
+	private final AtomicLong testedGeometries = new AtomicLong(0);
+
+
+	private static class Query
+	{
+		private int[] stack = new int[64];
+		private final CollisionResults leafResults = new CollisionResults();
+
+		private CollisionResult closest;
+		private float closestDistance;
+		// leaf of the result of the last pickClosest(), -1 if nothing was hit
+		private int lastHitLeaf = -1;
+
+		private long visited;
+		private long tested;
+
+
+		private void ensureStack(int size)
+		{
+			if(size > stack.length)
+			{
+				int[] larger = new int[stack.length * 2];
+				System.arraycopy(stack, 0, larger, 0, stack.length);
+				stack = larger;
+			}
+		}
+	}
+
+
+	/**
+	 * One bounding volume hierarchy with its leaves in tree order.
+	 */
+	private static class Tree
+	{
+		private Geometry[] geometries = new Geometry[0];
+		private float[] leafBounds = new float[0];
+
+		// tree nodes: bounds (6 floats each), children or leaf range, parent
+		private float[] nodeBounds = new float[0];
+		private int[] nodeLeft = new int[0];
+		private int[] nodeRight = new int[0];
+		private int[] nodeFirst = new int[0];
+		private int[] nodeCount = new int[0];
+		private int[] nodeParent = new int[0];
+		private int[] leafNode = new int[0];
+		private int nNodes = 0;
+
+		// epoch of the last rebuild and of the last change per leaf/node
+		private long buildEpoch = 0;
+		private long[] leafEpoch = new long[0];
+		private long[] nodeEpoch = new long[0];
+
+
+		private int size()
+		{
+			return geometries.length;
+		}
+
+
+		private void build(List<Geometry> collected, long epoch)
+		{
+			buildEpoch = epoch;
+
+			int n = collected.size();
+
+			geometries = collected.toArray(new Geometry[n]);
+			leafBounds = new float[n * 6];
+			leafNode = new int[n];
+
+			float[] centers = new float[n * 3];
+			int[] order = new int[n];
+
+			for(int i=0; i<n; i++)
+			{
+				readBounds(geometries[i].getWorldBound(), leafBounds, i);
+
+				for(int axis=0; axis<3; axis++)
+					centers[i*3 + axis] = (leafBounds[i*6 + axis] + leafBounds[i*6 + 3 + axis]) * 0.5f;
+
+				order[i] = i;
+			}
+
+			int maxNodes = Math.max(1, 2 * n);
+			nodeBounds = new float[maxNodes * 6];
+			nodeLeft = new int[maxNodes];
+			nodeRight = new int[maxNodes];
+			nodeFirst = new int[maxNodes];
+			nodeCount = new int[maxNodes];
+			nodeParent = new int[maxNodes];
+			nodeEpoch = new long[maxNodes];
+			leafEpoch = new long[n];
+			nNodes = 0;
+
+			if(n > 0)
+				buildNode(order, centers, 0, n, -1);
+
+			// reorder the leaves so every tree leaf covers a contiguous range
+			Geometry[] sortedGeometries = new Geometry[n];
+			float[] sortedBounds = new float[n * 6];
+			for(int i=0; i<n; i++)
+			{
+				sortedGeometries[i] = geometries[order[i]];
+				System.arraycopy(leafBounds, order[i] * 6, sortedBounds, i * 6, 6);
+			}
+			geometries = sortedGeometries;
+			leafBounds = sortedBounds;
+
+			for(int node=0; node<nNodes; node++)
+				for(int i=nodeFirst[node]; i<nodeFirst[node] + nodeCount[node]; i++)
+					leafNode[i] = node;
+		}
+
+
+		private int buildNode(int[] order, float[] centers, int from, int to, int parent)
+		{
+			int node = nNodes++;
+			nodeParent[node] = parent;
+
+			// bounds of all leaves and of their centers
+			float[] centerBounds = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+					-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+			emptyBounds(nodeBounds, node);
+
+			for(int i=from; i<to; i++)
+			{
+				union(nodeBounds, node, leafBounds, order[i]);
+
+				for(int axis=0; axis<3; axis++)
+				{
+					float c = centers[order[i]*3 + axis];
+					centerBounds[axis] = Math.min(centerBounds[axis], c);
+					centerBounds[axis+3] = Math.max(centerBounds[axis+3], c);
+				}
+			}
+
+			if(to - from <= LEAF_SIZE)
+			{
+				nodeFirst[node] = from;
+				nodeCount[node] = to - from;
+				return node;
+			}
+
+			// split at the median of the longest axis of the centers
+			int axis = 0;
+			for(int a=1; a<3; a++)
+				if(centerBounds[a+3] - centerBounds[a] > centerBounds[axis+3] - centerBounds[axis])
+					axis = a;
+
+			int mid = (from + to) >>> 1;
+			select(order, centers, axis, from, to - 1, mid);
+
+			nodeCount[node] = 0;
+			nodeLeft[node] = buildNode(order, centers, from, mid, node);
+			nodeRight[node] = buildNode(order, centers, mid, to, node);
+
+			return node;
+		}
+
+
+		/**
+		 * Refreshes the bounds of one leaf; a change is propagated to the
+		 * root and marked with the epoch.
+		 */
+		private void refit(int leaf, long epoch, float[] scratch)
+		{
+			BoundingVolume bound = geometries[leaf].getWorldBound();
+			if(bound == null)
+				return;
+
+			readBounds(bound, scratch, 0);
+
+			boolean changed = false;
+			for(int k=0; k<6 && !changed; k++)
+				changed = (scratch[k] != leafBounds[leaf*6 + k]);
+
+			if(changed)
+			{
+				System.arraycopy(scratch, 0, leafBounds, leaf*6, 6);
+				propagate(leafNode[leaf], scratch);
+
+				leafEpoch[leaf] = epoch;
+				for(int node=leafNode[leaf]; node >= 0 && nodeEpoch[node] != epoch; node=nodeParent[node])
+					nodeEpoch[node] = epoch;
+			}
+		}
+
+
+		/**
+		 * Recomputes the bounds of a node and its ancestors until they no
+		 * longer change.
+		 */
+		private void propagate(int node, float[] previous)
+		{
+			while(node >= 0)
+			{
+				System.arraycopy(nodeBounds, node*6, previous, 0, 6);
+				emptyBounds(nodeBounds, node);
+
+				if(nodeCount[node] > 0)
+				{
+					for(int i=nodeFirst[node]; i<nodeFirst[node] + nodeCount[node]; i++)
+						union(nodeBounds, node, leafBounds, i);
+				}
+				else
+				{
+					union(nodeBounds, node, nodeBounds, nodeLeft[node]);
+					union(nodeBounds, node, nodeBounds, nodeRight[node]);
+				}
+
+				boolean changed = false;
+				for(int k=0; k<6 && !changed; k++)
+					changed = (previous[k] != nodeBounds[node*6 + k]);
+
+				if(!changed)
+					return;
+
+				node = nodeParent[node];
+			}
+		}
+
+
+		/**
+		 * See GazePickingIndex.changedAlongRay(), for a leaf of this tree.
+		 */
+		private boolean changedAlongRay(float ox, float oy, float oz, float ix, float iy, float iz,
+				float maxDistance, int hitLeaf, long sinceEpoch, Query query)
+		{
+			if(buildEpoch > sinceEpoch)
+				return true;
+
+			if(hitLeaf >= 0 && (hitLeaf >= leafEpoch.length || leafEpoch[hitLeaf] > sinceEpoch))
+				return true;
+
+			if(nNodes == 0 || nodeEpoch[0] <= sinceEpoch)
+				return false;
+
+			int[] stack = query.stack;
+
+			int top = 0;
+			stack[top++] = 0;
+
+			while(top > 0)
+			{
+				int node = stack[--top];
+
+				if(nodeEpoch[node] <= sinceEpoch
+						|| entryDistance(nodeBounds, node, ox, oy, oz, ix, iy, iz, maxDistance) < 0)
+					continue;
+
+				if(nodeCount[node] > 0)
+				{
+					int first = nodeFirst[node];
+					for(int i=first; i<first+nodeCount[node]; i++)
+						if(leafEpoch[i] > sinceEpoch
+								&& entryDistance(leafBounds, i, ox, oy, oz, ix, iy, iz, maxDistance) >= 0)
+							return true;
+				}
+				else
+				{
+					query.ensureStack(top + 2);
+					stack = query.stack;
+					stack[top++] = nodeLeft[node];
+					stack[top++] = nodeRight[node];
+				}
+			}
+
+			return false;
+		}
+	}
+
+
+	/**
+	 * @param sweepInterval all geometries outside of the movers are checked
+	 *        for moved bounds within this many frames, 0 = never (the scene
+	 *        is then taken as fixed and only its top level is watched)
+	 */
+	public GazePickingIndex(Node root, int sweepInterval)
+	{
+		this.root = root;
+		this.sweepInterval = sweepInterval;
+	}
+
+
+	/**
+	 * Geometries below the given spatial are never picked (e.g. the gaze
+	 * marker itself).
+	 */
+	public void exclude(Spatial spatial)
+	{
+		excluded.add(spatial);
+		rebuildRequested = true;
+	}
+
+
+	/**
+	 * Takes the traffic and multi-driver vehicles of the given index as
+	 * movers. The vehicle index is updated by update().
+	 */
+	public void setVehicleIndex(VehicleGeometryIndex vehicleIndex)
+	{
+		this.vehicleIndex = vehicleIndex;
+		moversChanged = true;
+	}
+
+
+	/**
+	 * Refits the geometries below the given spatial every frame, e.g. the
+	 * own car.
+	 */
+	public void addMover(Spatial spatial)
+	{
+		if(spatial != null && !registeredMovers.contains(spatial))
+		{
+			registeredMovers.add(spatial);
+			moversChanged = true;
+		}
+	}
+
+
+	public void removeMover(Spatial spatial)
+	{
+		if(registeredMovers.remove(spatial))
+			moversChanged = true;
+	}
+
+
+	/**
+	 * Requests a rebuild with the next call of update(), e.g. after a
+	 * geometry has been moved within the bound of its parent node, which
+	 * would otherwise only be found by the sweep.
+	 */
+	public void invalidate()
+	{
+		rebuildRequested = true;
+	}
+
+
+	public int size()
+	{
+		return sceneTree.size() + moverTree.size();
+	}
+
+
+	/**
+	 * Brings the trees up to date. Call once per frame before picking.
+	 */
+	public void update()
+	{
+		epoch++;
+
+		if(vehicleIndex != null)
+			vehicleIndex.update();
+
+		boolean newMovers = updateMovers();
+
+		if(rebuildRequested || topLevelChanged() || watchNodes())
+		{
+			rebuildScene();
+			rebuildMovers();
+		}
+		else if(newMovers)
+			rebuildMovers();
+		else
+		{
+			for(int i=0; i<moverTree.size(); i++)
+				moverTree.refit(i, epoch, scratchBounds);
+		}
+
+		sweep();
+	}
+
+
+	/**
+	 * Returns the closest intersection of the ray with the indexed geometries,
+	 * or null if nothing is hit. The result is only valid until the next call.
+	 */
+	public CollisionResult pickClosest(Ray ray)
+	{
+		Vector3f origin = ray.getOrigin();
+		Vector3f direction = ray.getDirection();
+
+		float ox = origin.x, oy = origin.y, oz = origin.z;
+		float ix = 1f / direction.x, iy = 1f / direction.y, iz = 1f / direction.z;
+
+		query.closest = null;
+		query.closestDistance = ray.getLimit();
+		query.lastHitLeaf = -1;
+		query.visited = 0;
+		query.tested = 0;
+
+		pickClosest(sceneTree, 0, ray, ox, oy, oz, ix, iy, iz);
+		pickClosest(moverTree, MOVER_LEAF, ray, ox, oy, oz, ix, iy, iz);
+
+		visitedNodes.addAndGet(query.visited);
+		testedGeometries.addAndGet(query.tested);
+
+		return query.closest;
+	}
+
+
+	private void pickClosest(Tree tree, int leafTag, Ray ray, float ox, float oy, float oz,
+			float ix, float iy, float iz)
+	{
+		if(tree.nNodes == 0)
+			return;
+
+		int[] stack = query.stack;
+
+		int top = 0;
+		stack[top++] = 0;
+
+		while(top > 0)
+		{
+			int node = stack[--top];
+			query.visited++;
+
+			if(entryDistance(tree.nodeBounds, node, ox, oy, oz, ix, iy, iz, query.closestDistance) < 0)
+				continue;
+
+			if(tree.nodeCount[node] > 0)
+			{
+				// leaf: exact test against the triangles of each geometry
+				int first = tree.nodeFirst[node];
+				for(int i=first; i<first+tree.nodeCount[node]; i++)
+				{
+					if(entryDistance(tree.leafBounds, i, ox, oy, oz, ix, iy, iz, query.closestDistance) < 0)
+						continue;
+
+					Geometry geometry = tree.geometries[i];
+					if(!isPickable(geometry, tree == sceneTree))
+						continue;
+
+					query.tested++;
+
+					query.leafResults.clear();
+					geometry.collideWith(ray, query.leafResults);
+
+					if(query.leafResults.size() > 0)
+					{
+						CollisionResult hit = query.leafResults.getClosestCollision();
+						if(hit.getDistance() < query.closestDistance)
+						{
+							query.closest = hit;
+							query.closestDistance = hit.getDistance();
+							query.lastHitLeaf = leafTag | i;
+						}
+					}
+				}
+			}
+			else
+			{
+				int left = tree.nodeLeft[node];
+				int right = tree.nodeRight[node];
+
+				float leftDistance = entryDistance(tree.nodeBounds, left, ox, oy, oz, ix, iy, iz, query.closestDistance);
+				float rightDistance = entryDistance(tree.nodeBounds, right, ox, oy, oz, ix, iy, iz, query.closestDistance);
+
+				query.ensureStack(top + 2);
+				stack = query.stack;
+
+				// push the farther child first so the nearer one is visited next
+				if(leftDistance <= rightDistance)
+				{
+					if(rightDistance >= 0)
+						stack[top++] = right;
+					if(leftDistance >= 0)
+						stack[top++] = left;
+				}
+				else
+				{
+					if(leftDistance >= 0)
+						stack[top++] = left;
+					if(rightDistance >= 0)
+						stack[top++] = right;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * True if the spatial is attached to the root of the index.
+	 */
+	public boolean isAttached(Spatial spatial)
+	{
+		for(Spatial s = spatial; s != null; s = s.getParent())
+			if(s == root)
+				return true;
+
+		return false;
+	}
+
+
+	/**
+	 * True if the geometry is attached to the root and, for a leaf of the
+	 * scene tree, not part of a mover, which is picked in the mover tree.
+	 */
+	private boolean isPickable(Geometry geometry, boolean sceneLeaf)
+	{
+		for(Spatial s = geometry; s != null; s = s.getParent())
+		{
+			if(s == root)
+				return true;
+
+			if(sceneLeaf && movers.contains(s))
+				return false;
+		}
+
+		return false;
+	}
+
+
+	public long getEpoch()
+	{
+		return epoch;
+	}
+
+
+	/**
+	 * Leaf of the last pickClosest() result, for changedAlongRay().
+	 */
+	public int getLastHitLeaf()
+	{
+		return query.lastHitLeaf;
+	}
+
+
+	/**
+	 * Returns true if the result of the ray may have changed since the given
+	 * epoch: a tree was rebuilt, the hit leaf changed or a changed leaf now
+	 * lies on the ray closer than maxDistance. Only nodes with changes since
+	 * the epoch are visited.
+	 *
+	 * @param hitLeaf leaf of the previous result, -1 if nothing was hit
+	 */
+	public boolean changedAlongRay(Ray ray, float maxDistance, int hitLeaf, long sinceEpoch)
+	{
+		Vector3f origin = ray.getOrigin();
+		Vector3f direction = ray.getDirection();
+
+		float ox = origin.x, oy = origin.y, oz = origin.z;
+		float ix = 1f / direction.x, iy = 1f / direction.y, iz = 1f / direction.z;
+
+		int sceneHit = (hitLeaf >= 0 && (hitLeaf & MOVER_LEAF) == 0) ? hitLeaf : -1;
+		int moverHit = (hitLeaf >= 0 && (hitLeaf & MOVER_LEAF) != 0) ? (hitLeaf & ~MOVER_LEAF) : -1;
+
+		return sceneTree.changedAlongRay(ox, oy, oz, ix, iy, iz, maxDistance, sceneHit, sinceEpoch, query)
+				|| moverTree.changedAlongRay(ox, oy, oz, ix, iy, iz, maxDistance, moverHit, sinceEpoch, query);
+	}
+
+
+	public long getVisitedNodes()
+	{
+		return visitedNodes.get();
+	}
+
+
+	public long getTestedGeometries()
+	{
+		return testedGeometries.get();
+	}
+
+
+	/**
+	 * Distance at which the ray enters the box, or -1 if it misses the box
+	 * or enters it beyond maxDistance.
+	 */
+	private static float entryDistance(float[] bounds, int index, float ox, float oy, float oz,
+			float ix, float iy, float iz, float maxDistance)
+	{
+		int b = index * 6;
+
+		float t1 = (bounds[b] - ox) * ix;
+		float t2 = (bounds[b+3] - ox) * ix;
+		float tmin = Math.min(t1, t2);
+		float tmax = Math.max(t1, t2);
+
+		t1 = (bounds[b+1] - oy) * iy;
+		t2 = (bounds[b+4] - oy) * iy;
+		tmin = Math.max(tmin, Math.min(t1, t2));
+		tmax = Math.min(tmax, Math.max(t1, t2));
+
+		t1 = (bounds[b+2] - oz) * iz;
+		t2 = (bounds[b+5] - oz) * iz;
+		tmin = Math.max(tmin, Math.min(t1, t2));
+		tmax = Math.min(tmax, Math.max(t1, t2));
+
+		// NaN (ray parallel to and on a slab plane) counts as a hit
+		if(tmax < Math.max(tmin, 0) || tmin > maxDistance)
+			return -1;
+
+		return Math.max(tmin, 0);
+	}
+
+
+	/**
+	 * Collects the current movers.
+	 *
+	 * @return true if they changed since the last call
+	 */
+	private boolean updateMovers()
+	{
+		long version = (vehicleIndex == null) ? -1 : vehicleIndex.getVersion();
+
+		if(!moversChanged && version == vehicleVersion)
+			return false;
+
+		moversChanged = false;
+		vehicleVersion = version;
+
+		movers.clear();
+		movers.addAll(registeredMovers);
+
+		if(vehicleIndex != null)
+			for(VehicleGeometryIndex.Vehicle vehicle : vehicleIndex.getVehicles())
+				movers.add(vehicle.getNode());
+
+		return true;
+	}
+
+
+	/**
+	 * Compares the children of the root (without movers and excluded
+	 * spatials) with those the scene tree was built from.
+	 */
+	private boolean topLevelChanged()
+	{
+		List<Spatial> children = root.getChildren();
+		int n = 0;
+
+		for(int i=0; i<children.size(); i++)
+		{
+			Spatial child = children.get(i);
+
+			if(movers.contains(child) || excluded.contains(child))
+				continue;
+
+			if(n >= topLevelCount || topLevel[n] != child)
+				return true;
+
+			n++;
+		}
+
+		return n != topLevelCount;
+	}
+
+
+	private void rebuildScene()
+	{
+		rebuildRequested = false;
+		sweepPosition = 0;
+
+		List<Spatial> children = root.getChildren();
+		topLevel = new Spatial[children.size()];
+		topLevelCount = 0;
+
+		for(int i=0; i<children.size(); i++)
+		{
+			Spatial child = children.get(i);
+			if(!movers.contains(child) && !excluded.contains(child))
+				topLevel[topLevelCount++] = child;
+		}
+
+		List<Geometry> collected = new ArrayList<Geometry>();
+		for(Geometry geometry : Util.getAllGeometries(root))
+			if(!isExcluded(geometry, true) && geometry.getWorldBound() != null)
+				collected.add(geometry);
+
+		sceneTree.build(collected, epoch);
+
+		collectWatchedNodes();
+	}
+
+
+	/**
+	 * Takes a snapshot of the nodes of the scene tree and of the leaves of
+	 * their direct geometry children, see watchNodes().
+	 */
+	private void collectWatchedNodes()
+	{
+		List<Node> nodes = new ArrayList<Node>();
+		if(sweepInterval > 0)
+			collectNodes(root, nodes);
+
+		IdentityHashMap<Geometry, Integer> leaves = new IdentityHashMap<Geometry, Integer>();
+		for(int i=0; i<sceneTree.size(); i++)
+			leaves.put(sceneTree.geometries[i], i);
+
+		int n = nodes.size();
+		watchedNodes = nodes.toArray(new Node[n]);
+		watchedQuantity = new int[n];
+		watchedLast = new Spatial[n];
+		watchedSignature = new long[n];
+		watchedBounds = new float[n * 6];
+		watchedFirst = new int[n + 1];
+
+		int[] nodeLeaves = new int[sceneTree.size()];
+		int nLeaves = 0;
+
+		for(int i=0; i<n; i++)
+		{
+			Node node = watchedNodes[i];
+			List<Spatial> children = node.getChildren();
+
+			watchedQuantity[i] = children.size();
+			watchedLast[i] = children.isEmpty() ? null : children.get(children.size() - 1);
+			watchedSignature[i] = childrenSignature(node);
+			readWorldBounds(node, watchedBounds, i);
+			watchedFirst[i] = nLeaves;
+
+			for(int k=0; k<children.size(); k++)
+			{
+				Integer leaf = leaves.get(children.get(k));
+				if(leaf != null)
+					nodeLeaves[nLeaves++] = leaf.intValue();
+			}
+		}
+
+		watchedFirst[n] = nLeaves;
+		watchedLeaves = nodeLeaves;
+	}
+
+
+	private void collectNodes(Node node, List<Node> nodes)
+	{
+		nodes.add(node);
+
+		List<Spatial> children = node.getChildren();
+		for(int i=0; i<children.size(); i++)
+		{
+			Spatial child = children.get(i);
+			if(child instanceof Node && !movers.contains(child) && !excluded.contains(child))
+				collectNodes((Node) child, nodes);
+		}
+	}
+
+
+	/**
+	 * Checks all nodes of the scene tree. Attaching or detaching a spatial
+	 * changes the number or the last of the children of its parent (the
+	 * children of the root are compared by topLevelChanged(), which ignores
+	 * movers). A node whose world bound has changed has its direct geometry
+	 * children refit; nodes further down are checked on their own.
+	 *
+	 * @return true if the scene tree has to be rebuilt
+	 */
+	private boolean watchNodes()
+	{
+		for(int i=0; i<watchedNodes.length; i++)
+		{
+			Node node = watchedNodes[i];
+			List<Spatial> children = node.getChildren();
+			int quantity = children.size();
+
+			if(i > 0 && (quantity != watchedQuantity[i]
+					|| (quantity > 0 && children.get(quantity - 1) != watchedLast[i])))
+			{
+				if(childrenChanged(i))
+					return true;
+
+				// a mover came or went
+				watchedQuantity[i] = quantity;
+				watchedLast[i] = (quantity > 0) ? children.get(quantity - 1) : null;
+			}
+
+			readWorldBounds(node, scratchBounds, 0);
+
+			boolean changed = false;
+			for(int k=0; k<6 && !changed; k++)
+				changed = (scratchBounds[k] != watchedBounds[i*6 + k]);
+
+			if(changed)
+			{
+				System.arraycopy(scratchBounds, 0, watchedBounds, i*6, 6);
+
+				for(int k=watchedFirst[i]; k<watchedFirst[i+1]; k++)
+					sceneTree.refit(watchedLeaves[k], epoch, scratchBounds);
+			}
+		}
+
+		return false;
+	}
+
+
+	/**
+	 * Compares the children of a watched node (without movers and excluded
+	 * spatials) with those the scene tree was built from.
+	 */
+	private boolean childrenChanged(int watched)
+	{
+		return childrenSignature(watchedNodes[watched]) != watchedSignature[watched];
+	}
+
+
+	/**
+	 * Number and identities of the children without movers and excluded
+	 * spatials.
+	 */
+	private long childrenSignature(Node node)
+	{
+		List<Spatial> children = node.getChildren();
+		int count = 0;
+		int hash = 0;
+
+		for(int i=0; i<children.size(); i++)
+		{
+			Spatial child = children.get(i);
+			if(!movers.contains(child) && !excluded.contains(child))
+			{
+				count++;
+				hash += System.identityHashCode(child);
+			}
+		}
+
+		return ((long) count << 32) | (hash & 0xffffffffL);
+	}
+
+
+	private void rebuildMovers()
+	{
+		List<Geometry> collected = new ArrayList<Geometry>();
+
+		for(Spatial mover : movers)
+			if(isAttached(mover))
+				for(Geometry geometry : Util.getAllGeometries(mover))
+					if(!isExcluded(geometry, false) && geometry.getWorldBound() != null)
+						collected.add(geometry);
+
+		moverTree.build(collected, epoch);
+	}
+
+
+	/**
+	 * Checks the next few leaves of the scene tree for moved bounds.
+	 */
+	private void sweep()
+	{
+		int n = sceneTree.size();
+		if(sweepInterval <= 0 || n == 0)
+			return;
+
+		int count = (n + sweepInterval - 1) / sweepInterval;
+
+		for(int k=0; k<count; k++)
+		{
+			if(sweepPosition >= n)
+				sweepPosition = 0;
+
+			sceneTree.refit(sweepPosition++, epoch, scratchBounds);
+		}
+	}
+
+
+	/**
+	 * True if the spatial is below an excluded spatial or, with skipMovers
+	 * set, below a mover.
+	 */
+	private boolean isExcluded(Spatial spatial, boolean skipMovers)
+	{
+		for(Spatial s = spatial; s != null; s = s.getParent())
+			if(excluded.contains(s) || (skipMovers && movers.contains(s)))
+				return true;
+
+		return false;
+	}
+
+
+	/**
+	 * Reads the world bound of a spatial, an empty box if it has none.
+	 */
+	private static void readWorldBounds(Spatial spatial, float[] target, int index)
+	{
+		BoundingVolume bound = spatial.getWorldBound();
+
+		if(bound == null)
+			emptyBounds(target, index);
+		else
+			readBounds(bound, target, index);
+	}
+
+
+	private static void readBounds(BoundingVolume bound, float[] target, int index)
+	{
+		Vector3f center = bound.getCenter();
+		float ex, ey, ez;
+
+		if(bound instanceof BoundingBox)
+		{
+			BoundingBox box = (BoundingBox) bound;
+			ex = box.getXExtent();
+			ey = box.getYExtent();
+			ez = box.getZExtent();
+		}
+		else if(bound instanceof BoundingSphere)
+		{
+			ex = ey = ez = ((BoundingSphere) bound).getRadius();
+		}
+		else
+		{
+			// unknown volume: never prune it
+			ex = ey = ez = Float.MAX_VALUE / 4;
+		}
+
+		int b = index * 6;
+		target[b] = center.x - ex;
+		target[b+1] = center.y - ey;
+		target[b+2] = center.z - ez;
+		target[b+3] = center.x + ex;
+		target[b+4] = center.y + ey;
+		target[b+5] = center.z + ez;
+	}
+
+
+	/**
+	 * Partially sorts order[from..to] so that order[k] has the k-th smallest
+	 * center on the given axis (quickselect).
+	 */
+	private static void select(int[] order, float[] centers, int axis, int from, int to, int k)
+	{
+		while(from < to)
+		{
+			float pivot = centers[order[(from + to) >>> 1]*3 + axis];
+			int i = from, j = to;
+
+			while(i <= j)
+			{
+				while(centers[order[i]*3 + axis] < pivot)
+					i++;
+				while(centers[order[j]*3 + axis] > pivot)
+					j--;
+
+				if(i <= j)
+				{
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+
+			if(k <= j)
+				to = j;
+			else if(k >= i)
+				from = i;
+			else
+				return;
+		}
+	}
+
+
+	private static void emptyBounds(float[] bounds, int index)
+	{
+		int b = index * 6;
+		for(int k=0; k<3; k++)
+		{
+			bounds[b+k] = Float.MAX_VALUE;
+			bounds[b+3+k] = -Float.MAX_VALUE;
+		}
+	}
+
+
+	private static void union(float[] target, int targetIndex, float[] source, int sourceIndex)
+	{
+		int t = targetIndex * 6;
+		int s = sourceIndex * 6;
+
+		for(int k=0; k<3; k++)
+		{
+			target[t+k] = Math.min(target[t+k], source[s+k]);
+			target[t+3+k] = Math.max(target[t+3+k], source[s+3+k]);
+		}
+	}
+
+
+	private static Set<Spatial> newIdentitySet()
+	{
+		return Collections.newSetFromMap(new IdentityHashMap<Spatial, Boolean>());
+	}
+}
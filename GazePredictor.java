@@ -0,0 +1,212 @@
+package eu.opends.drivesense;
+
+/**
+ * Estimates the gaze position at a given time from the latest raw
+ * samples: between two samples it interpolates, after the newest one it
+ * extrapolates along a least-squares line through the samples of the last
+ * few dozen milliseconds. The line averages the noise of the raw samples
+ * without the lag of a smoothing filter, whose output would already be
+ * about (N-1)/2 samples old. The horizon of an extrapolation is limited, as
+ * a saccade ends long before a linear model would notice.
+ *
+ * Times are in tracker seconds. Like the filters, the predictor works on
+ * primitive state only and does not allocate per sample.
+ */
+public class GazePredictor
+{
+	private static final int CAPACITY = 32;
+
+	private final double[] t = new double[CAPACITY];
+	private final double[] px = new double[CAPACITY];
+	private final double[] py = new double[CAPACITY];
+	private int count = 0;
+	private int newest = -1;
+
+	// samples the line is fitted to
+	private double velocityWindow = 0.05;
+	// longest extrapolation
+	private double maxHorizon = 0.05;
+	// no extrapolation from samples older than that
+	private double maxSampleAge = 0.1;
+
+	private double x = Double.NaN;
+	private double y = Double.NaN;
+	private double horizon = 0;
+
+
+	/**
+	 * Adds a sample, timestamps must not decrease.
+	 */
+	public void addSample(double sampleX, double sampleY, double timestamp)
+	{
+		if(count > 0 && timestamp < t[newest])
+			return;
+
+		newest = (newest + 1) % CAPACITY;
+		count = Math.min(count + 1, CAPACITY);
+		t[newest] = timestamp;
+		px[newest] = sampleX;
+		py[newest] = sampleY;
+	}
+
+
+	public boolean hasSamples()
+	{
+		return count > 0;
+	}
+
+
+	/**
+	 * Forgets all samples, e.g. when the pupil is lost.
+	 */
+	public void reset()
+	{
+		count = 0;
+		newest = -1;
+		x = Double.NaN;
+		y = Double.NaN;
+		horizon = 0;
+	}
+
+
+	/**
+	 * Estimates the position at the given time, available through getX()
+	 * and getY() afterwards.
+	 *
+	 * @return false if there are no samples
+	 */
+	public boolean predict(double time)
+	{
+		if(count == 0)
+			return false;
+
+		double newestTime = t[newest];
+		horizon = time - newestTime;
+
+		if(Double.isNaN(time) || horizon > maxSampleAge)
+		{
+			// no sensible prediction, stay with the newest sample
+			horizon = 0;
+			x = px[newest];
+			y = py[newest];
+			return true;
+		}
+
+		if(horizon <= 0)
+		{
+			interpolate(time);
+			return true;
+		}
+
+		horizon = Math.min(horizon, maxHorizon);
+
+		// least-squares line over the window before the newest sample
+		double sumT = 0, sumX = 0, sumY = 0;
+		int n = 0;
+		for(int i=0; i<count; i++)
+		{
+			int k = (newest - i + CAPACITY) % CAPACITY;
+			if(newestTime - t[k] > velocityWindow)
+				break;
+
+			sumT += t[k] - newestTime;
+			sumX += px[k];
+			sumY += py[k];
+			n++;
+		}
+
+		double vx = 0, vy = 0;
+		double meanT = 0, meanX = px[newest], meanY = py[newest];
+		if(n > 1)
+		{
+			meanT = sumT / n;
+			meanX = sumX / n;
+			meanY = sumY / n;
+			double covX = 0, covY = 0, varT = 0;
+
+			for(int i=0; i<n; i++)
+			{
+				int k = (newest - i + CAPACITY) % CAPACITY;
+				double dt = t[k] - newestTime - meanT;
+				covX += dt * (px[k] - meanX);
+				covY += dt * (py[k] - meanY);
+				varT += dt * dt;
+			}
+
+			if(varT > 0)
+			{
+				vx = covX / varT;
+				vy = covY / varT;
+			}
+		}
+
+		// the line at the given time (times relative to the newest sample)
+		x = meanX + vx * (horizon - meanT);
+		y = meanY + vy * (horizon - meanT);
+		return true;
+	}
+
+
+	private void interpolate(double time)
+	{
+		int later = newest;
+
+		for(int i=1; i<count; i++)
+		{
+			int k = (newest - i + CAPACITY) % CAPACITY;
+
+			if(t[k] <= time)
+			{
+				double span = t[later] - t[k];
+				double w = (span > 0) ? (time - t[k]) / span : 1;
+				x = px[k] + w * (px[later] - px[k]);
+				y = py[k] + w * (py[later] - py[k]);
+				return;
+			}
+
+			later = k;
+		}
+
+		// older than all samples
+		x = px[later];
+		y = py[later];
+	}
+
+
+	public double getX()
+	{
+		return x;
+	}
+
+
+	public double getY()
+	{
+		return y;
+	}
+
+
+	/**
+	 * Time (s) the last prediction reached beyond the newest sample, 0 for
+	 * interpolations.
+	 */
+	public double getHorizon()
+	{
+		return Math.max(0, horizon);
+	}
+
+
+	public void setVelocityWindow(double millis)
+	{
+		velocityWindow = millis / 1000;
+	}
+
+
+	/**
+	 * Limits extrapolations to the given time beyond the newest sample, 0
+	 * disables them.
+	 */
+	public void setMaxHorizon(double millis)
+	{
+		maxHorizon = millis / 1000;
+	}
+}
@@ -0,0 +1,230 @@
+package eu.opends.drivesense;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Receive thread for the eye-tracker datagrams. Every datagram is decoded on
+ * this thread and its samples are published to a GazeRing, from which the
+ * render thread drains all samples that arrived since the previous frame.
+ *
+ * In Channel mode the datagrams are read by a non-blocking DatagramChannel
+ * into a direct ByteBuffer and decoded from the buffer bytes, so no byte
+ * array copy or String is created per datagram. Socket mode keeps the
+ * classic DatagramSocket. Both modes accept JSON and GazeWireFormat.
+ */
+public class GazeReceiver extends Thread
+{
+	public enum ReceiveMode
+	{
+		Socket, Channel;
+	}
+
+	// socket timeout (ms) after which the stop flag is checked again
+	private static final int RECEIVE_TIMEOUT = 500;
+
+	private final int port;
+	private final int packetSize;
+	private final GazeRing ring;
+	private final ReceiveMode mode;
+
+	private final GazeDatagramDecoder decoder = new GazeDatagramDecoder();
+	private final GazeBatch batch = new GazeBatch(64);
+
+	private volatile boolean stopRequested = false;
+	private volatile long receivedCount = 0;
+	private volatile long malformedCount = 0;
+
+	private GazeMetrics metrics;
+
+	private DatagramSocket socket;
+
+
+	public GazeReceiver(int port, int packetSize, GazeRing ring)
+	{
+		this(port, packetSize, ring, ReceiveMode.Channel);
+	}
+
+
+	public GazeReceiver(int port, int packetSize, GazeRing ring, ReceiveMode mode)
+	{
+		super("GazeReceiver-" + port);
+		setDaemon(true);
+
+		this.port = port;
+		this.packetSize = packetSize;
+		this.ring = ring;
+		this.mode = mode;
+	}
+
+
+	@Override
+	public void run()
+	{
+		if(mode == ReceiveMode.Channel)
+			receiveFromChannel();
+		else
+			receiveFromSocket();
+	}
+
+
+	private void receiveFromChannel()
+	{
+		DatagramChannel channel = null;
+		Selector selector = null;
+
+		try {
+
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().bind(new InetSocketAddress(port));
+
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(packetSize);
+
+			while(!stopRequested)
+			{
+				if(selector.select(RECEIVE_TIMEOUT) == 0)
+					continue;
+
+				selector.selectedKeys().clear();
+
+				// read everything that is pending before waiting again
+				while(!stopRequested)
+				{
+					buffer.clear();
+
+					if(channel.receive(buffer) == null)
+						break;
+
+					long receiveNanos = System.nanoTime();
+					buffer.flip();
+					handleDatagram(buffer, receiveNanos);
+				}
+			}
+
+		} catch (IOException e) {
+			System.err.println("Could not receive on eye-tracker port " + port);
+			e.printStackTrace();
+		} finally {
+			try {
+				if(selector != null)
+					selector.close();
+				if(channel != null)
+					channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	private void receiveFromSocket()
+	{
+		try {
+
+			socket = new DatagramSocket(port);
+			socket.setSoTimeout(RECEIVE_TIMEOUT);
+
+		} catch (SocketException e) {
+			System.err.println("Could not open eye-tracker port " + port);
+			e.printStackTrace();
+			return;
+		}
+
+		byte[] buffer = new byte[packetSize];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		ByteBuffer view = ByteBuffer.wrap(buffer);
+
+		while(!stopRequested)
+		{
+			try {
+
+				packet.setLength(buffer.length);
+				socket.receive(packet);
+
+			} catch (SocketTimeoutException e) {
+				continue;
+			} catch (IOException e) {
+				if(!stopRequested)
+					e.printStackTrace();
+				continue;
+			}
+
+			long receiveNanos = System.nanoTime();
+			view.clear();
+			view.limit(packet.getLength());
+			handleDatagram(view, receiveNanos);
+		}
+
+		socket.close();
+	}
+
+
+	private void handleDatagram(ByteBuffer datagram, long receiveNanos)
+	{
+		receivedCount++;
+
+		batch.clear();
+		if(!decoder.decode(datagram, batch))
+		{
+			malformedCount++;
+			return;
+		}
+
+		batch.setReceiveNanos(0, batch.size(), receiveNanos);
+
+		if(metrics != null)
+			metrics.record(GazeMetrics.Stage.Decode, System.nanoTime() - receiveNanos);
+
+		ring.offer(batch);
+	}
+
+
+	/**
+	 * Records the decode latency of every datagram. Must be set before the
+	 * thread is started.
+	 */
+	public void setMetrics(GazeMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+
+	public GazeRing getRing()
+	{
+		return ring;
+	}
+
+
+	public long getReceivedCount()
+	{
+		return receivedCount;
+	}
+
+
+	/**
+	 * Number of datagrams neither the streaming decoder nor the fallback
+	 * parser could read.
+	 */
+	public long getMalformedCount()
+	{
+		return malformedCount;
+	}
+
+
+	public void requestStop()
+	{
+		stopRequested = true;
+	}
+}
@@ -0,0 +1,245 @@
+package eu.opends.drivesense;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Node;
+
+import eu.opends.drivesense.domain.GazePosition;
+
+/**
+ * Headless re-annotation of a recording: reads its gaze track (see
+ * GazeTrack) and runs the samples of every frame through the same steps as
+ * EyeTrackerProc.update() - a GazeSurface per surface with smoothing
+ * filter, event detector, screen mapping, picking and AOI resolution - from
+ * the recorded camera poses. The screen is picked from the main camera,
+ * mirrors and other surfaces from the views recorded for them; surfaces
+ * without view are logged without AOI, as live. Nothing is rendered, so a
+ * session replays as fast as the picking allows. The new aoi_labels.csv
+ * (and AOI statistics) are written by an EyeTrackerIO of its own, so a
+ * replay may run while the simulator is recording.
+ *
+ * The scene is taken as is: objects that moved during the session (traffic,
+ * other drivers) are picked where they are in the given scene, not where
+ * they were when the gaze was recorded.
+ */
+public class GazeReplay
+{
+	private final Node scene;
+
+	private int smoothingFactor = 10;
+	private EyeTrackerProc.AoiResolution aoiResolution = EyeTrackerProc.AoiResolution.PerFrame;
+	private GazeEventDetector.Algorithm algorithm = GazeEventDetector.Algorithm.IVT;
+
+	private final Camera cam = new Camera(1, 1);
+	private final GazeBatch batch = new GazeBatch(64);
+
+	private GazePickingIndex pickingIndex;
+	private AoiDictionary aoiDictionary;
+	private AoiRegistry aoiRegistry;
+	private GazeSurfaceRegistry surfaceRegistry;
+	private GazeSurface screenSurface;
+
+	private long frameCount;
+	private long sampleCount;
+	private long pickCount;
+
+
+	/**
+	 * @param scene scene to pick from, loaded by the caller (no renderer needed)
+	 */
+	public GazeReplay(Node scene)
+	{
+		this.scene = scene;
+	}
+
+
+	public void setSmoothingFactor(int smoothingFactor)
+	{
+		this.smoothingFactor = smoothingFactor;
+	}
+
+
+	public void setAoiResolution(EyeTrackerProc.AoiResolution aoiResolution)
+	{
+		this.aoiResolution = aoiResolution;
+	}
+
+
+	public void setAlgorithm(GazeEventDetector.Algorithm algorithm)
+	{
+		this.algorithm = algorithm;
+	}
+
+
+	/**
+	 * Replays the gaze track of the recording directory and writes the new
+	 * annotations to the output directory.
+	 *
+	 * @return number of replayed frames
+	 */
+	public long replay(File recordingDir, File outputDir) throws IOException
+	{
+		return replay(new File(recordingDir, GazeTrack.FILE_NAME), outputDir.getPath() + File.separator);
+	}
+
+
+	/**
+	 * @param outputDir directory path ending with a separator
+	 * @return number of replayed frames
+	 */
+	public long replay(File track, String outputDir) throws IOException
+	{
+		frameCount = 0;
+		sampleCount = 0;
+		pickCount = 0;
+
+		// a fresh pipeline per run, the scene may have changed in between
+		scene.updateGeometricState();
+		pickingIndex = new GazePickingIndex(scene, 0);
+		pickingIndex.update();
+		aoiDictionary = new AoiDictionary();
+		aoiRegistry = new AoiRegistry(aoiDictionary);
+		surfaceRegistry = new GazeSurfaceRegistry(pickingIndex, smoothingFactor);
+		screenSurface = register("screen", cam, Homography.flipY());
+
+		AoiAggregator aggregator = new AoiAggregator(aoiDictionary);
+
+		GazeTrackReader reader = new GazeTrackReader(track);
+		EyeTrackerIO eyeTrackerIO = new EyeTrackerIO("replay");
+		eyeTrackerIO.writeHeaderData(outputDir);
+
+		try {
+
+			while(reader.next(cam, batch))
+			{
+				frameCount++;
+
+				registerViews(reader);
+
+				// every surface smooths and detects events on its own samples
+				surfaceRegistry.beginFrame();
+
+				for(int i=0; i<batch.size(); i++)
+				{
+					GazeSurface surface = surfaceRegistry.get(batch.getSurface(i));
+					sampleCount++;
+
+					if(surface != null)
+						surface.addSample(batch.getNormX(i), batch.getNormY(i), batch.getConfidence(i), batch.getTimestamp(i));
+				}
+
+				// the recording holds no presentation times, gaze is the smoothed sample
+				surfaceRegistry.predict(Double.NaN);
+				pickCount += surfaceRegistry.pick(aoiResolution, null, aoiRegistry);
+
+				if(screenSurface.getFrameSamples() > 0)
+				{
+					writeRow(eyeTrackerIO, "screen", aoiDictionary.nameOf(screenSurface.getAoiId()));
+					aggregator.addSample(screenSurface.getAoiId(), screenSurface.getLastTimestamp());
+				}
+
+				writeOtherSurfaces(eyeTrackerIO);
+			}
+
+			for(GazeSurface surface : surfaceRegistry.getSurfaces())
+				surface.getEventDetector().flush();
+
+			if(reader.isTruncated())
+				System.out.println("Gaze track " + track + " is truncated, replayed " + frameCount + " frames !!!");
+
+		} finally {
+			reader.close();
+			eyeTrackerIO.closeStream();
+		}
+
+		aggregator.writeSnapshot(new File(outputDir));
+
+		return frameCount;
+	}
+
+
+	private GazeSurface register(String name, Camera surfaceCam, Homography transform)
+	{
+		return surfaceRegistry.register(new GazeSurface(name, surfaceCam, transform,
+				GazeFilter.create(smoothingFactor), new GazeEventDetector(algorithm)));
+	}
+
+
+	/**
+	 * Registers the surfaces whose view appeared in the track, again if its
+	 * transform changed.
+	 */
+	private void registerViews(GazeTrackReader reader)
+	{
+		for(GazeTrackReader.View view : reader.getViews())
+		{
+			GazeSurface surface = surfaceRegistry.get(view.getSurface());
+
+			if(surface == null || surface.getTransform() != view.getTransform())
+				register(view.getSurface(), view.getCamera(), view.getTransform());
+		}
+	}
+
+
+	private void writeRow(EyeTrackerIO eyeTrackerIO, String srf, String aoi)
+	{
+		GazePosition gazePos = new GazePosition(srf, aoi);
+
+		for(int i=0; i<batch.size(); i++)
+			if(srf.equals(batch.getSurface(i)))
+				gazePos.getTimestamps().add(batch.getTimestamp(i));
+
+		eyeTrackerIO.writeGazeToCSV(gazePos);
+	}
+
+
+	/**
+	 * Writes the samples of all surfaces other than "screen", with the AOI
+	 * of the surfaces that have a view.
+	 */
+	private void writeOtherSurfaces(EyeTrackerIO eyeTrackerIO)
+	{
+		for(int i=0; i<batch.size(); i++)
+		{
+			String srf = batch.getSurface(i);
+
+			if(srf == null || srf.equals("screen"))
+				continue;
+
+			boolean firstOccurrence = true;
+			for(int j=0; j<i && firstOccurrence; j++)
+				firstOccurrence = !srf.equals(batch.getSurface(j));
+
+			if(firstOccurrence)
+			{
+				GazeSurface surface = surfaceRegistry.get(srf);
+				int aoiId = (surface == null) ? AoiDictionary.NO_AOI : surface.getAoiId();
+
+				writeRow(eyeTrackerIO, srf, aoiDictionary.nameOf(aoiId));
+			}
+		}
+	}
+
+
+	public long getFrameCount()
+	{
+		return frameCount;
+	}
+
+
+	public long getSampleCount()
+	{
+		return sampleCount;
+	}
+
+
+	/**
+	 * Number of ray casts of the last replay; with PerFixation one per fixation.
+	 */
+	public long getPickCount()
+	{
+		return pickCount;
+	}
+}
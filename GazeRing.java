@@ -0,0 +1,163 @@
+package eu.opends.drivesense;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer ring of preallocated gaze slots.
+ * The UDP receive thread publishes the samples of each datagram, the render
+ * thread drains everything that arrived since the last frame. Neither side
+ * takes a lock; the head and tail counters are published with ordered
+ * writes only.
+ *
+ * If a datagram does not fit into the free slots it is dropped as a whole,
+ * so the consumer never sees half a datagram.
+ */
+public class GazeRing
+{
+	private final int mask;
+
+	private final String[] surface;
+	private final double[] normX;
+	private final double[] normY;
+	private final double[] confidence;
+	private final double[] timestamp;
+	private final long[] receiveNanos;
+
+	// next slot to be read, written by the consumer only
+	private final AtomicLong head = new AtomicLong(0);
+
+	// next slot to be written, written by the producer only
+	private final AtomicLong tail = new AtomicLong(0);
+
+	// producer-side copy of head, refreshed only when the ring looks full
+	private long cachedHead = 0;
+
+	// datagrams that did not fit and the samples lost with them
+	private final AtomicLong overflowCount = new AtomicLong(0);
+	private final AtomicLong droppedSamples = new AtomicLong(0);
+	private final AtomicLong publishedSamples = new AtomicLong(0);
+
+
+	/**
+	 * @param capacity number of samples; rounded up to a power of two
+	 */
+	public GazeRing(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		mask = size - 1;
+
+		surface = new String[size];
+		normX = new double[size];
+		normY = new double[size];
+		confidence = new double[size];
+		timestamp = new double[size];
+		receiveNanos = new long[size];
+	}
+
+
+	public int capacity()
+	{
+		return mask + 1;
+	}
+
+
+	/**
+	 * Producer side: publishes all samples of the given batch.
+	 *
+	 * @return false if the batch was dropped because the ring is full
+	 */
+	public boolean offer(GazeBatch batch)
+	{
+		int n = batch.size();
+		if(n == 0)
+			return true;
+
+		long t = tail.get();
+
+		if(t + n - cachedHead > capacity())
+		{
+			cachedHead = head.get();
+
+			if(t + n - cachedHead > capacity())
+			{
+				overflowCount.lazySet(overflowCount.get() + 1);
+				droppedSamples.lazySet(droppedSamples.get() + n);
+				return false;
+			}
+		}
+
+		for(int i=0; i<n; i++)
+		{
+			int slot = (int) (t + i) & mask;
+
+			surface[slot] = batch.getSurface(i);
+			normX[slot] = batch.getNormX(i);
+			normY[slot] = batch.getNormY(i);
+			confidence[slot] = batch.getConfidence(i);
+			timestamp[slot] = batch.getTimestamp(i);
+			receiveNanos[slot] = batch.getReceiveNanos(i);
+		}
+
+		// make the slots visible to the consumer
+		tail.lazySet(t + n);
+		publishedSamples.lazySet(publishedSamples.get() + n);
+
+		return true;
+	}
+
+
+	/**
+	 * Consumer side: appends all samples published so far to the given batch.
+	 *
+	 * @return number of samples drained
+	 */
+	public int drainTo(GazeBatch batch)
+	{
+		long h = head.get();
+		long t = tail.get();
+
+		int n = (int) (t - h);
+
+		for(int i=0; i<n; i++)
+		{
+			int slot = (int) (h + i) & mask;
+			batch.add(surface[slot], normX[slot], normY[slot], confidence[slot], timestamp[slot], receiveNanos[slot]);
+		}
+
+		// hand the slots back to the producer
+		if(n > 0)
+			head.lazySet(t);
+
+		return n;
+	}
+
+
+	public int available()
+	{
+		return (int) (tail.get() - head.get());
+	}
+
+
+	/**
+	 * Number of datagrams dropped because the ring was full.
+	 */
+	public long getOverflowCount()
+	{
+		return overflowCount.get();
+	}
+
+
+	/**
+	 * Number of samples lost with the dropped datagrams.
+	 */
+	public long getDroppedSamples()
+	{
+		return droppedSamples.get();
+	}
+
+
+	public long getPublishedSamples()
+	{
+		return publishedSamples.get();
+	}
+}
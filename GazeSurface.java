@@ -0,0 +1,291 @@
+package eu.opends.drivesense;
+
+import com.jme3.collision.CollisionResult;
+import com.jme3.math.Ray;
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+
+/**
+ * A named gaze surface of the eye-tracker (screen, mirrors, instrument
+ * cluster, ...) with its own smoothing filter, event detector and AOI. The
+ * precomputed homography maps the normalized surface coordinates to the
+ * viewport of the camera that renders the surface (0..1, origin bottom
+ * left); the AOI is picked with a ray from that camera. Surfaces without
+ * camera are smoothed and logged, but get no AOI.
+ *
+ * The gaze of a frame is predicted from the raw samples to the time the
+ * frame is presented (see GazePredictor), also on frames without new
+ * samples, or the smoothed position if there is no such time.
+ *
+ * Render thread only.
+ */
+public class GazeSurface
+{
+	private final String name;
+	private final Camera cam;
+	private final Homography transform;
+	private final GazeFilter filter;
+	private final GazeEventDetector detector;
+	private GazePickCache pickCache;
+	private final GazePredictor predictor = new GazePredictor();
+
+	// samples of the current frame
+	private int frameSamples = 0;
+	private double lastTimestamp = Double.NaN;
+	private double gazeX = Double.NaN;
+	private double gazeY = Double.NaN;
+
+	private final double[] viewport = new double[2];
+	private final Vector2f screenPos = new Vector2f();
+	private final Ray ray = new Ray();
+	private final Vector3f worldPosNear = new Vector3f();
+	private final Vector3f worldPosFar = new Vector3f();
+	private final Vector3f direction = new Vector3f();
+
+	private boolean pickPending = false;
+	private boolean pickCached = false;
+	private CollisionResult hit;
+	private long resolvedFixationId = 0;
+	private int aoiId = AoiDictionary.NO_AOI;
+
+
+	public GazeSurface(String name, Camera cam, Homography transform, GazeFilter filter, GazeEventDetector detector)
+	{
+		this.name = name;
+		this.cam = cam;
+		this.transform = transform;
+		this.filter = filter;
+		this.detector = detector;
+	}
+
+
+	public String getName()
+	{
+		return name;
+	}
+
+
+	public Camera getCamera()
+	{
+		return cam;
+	}
+
+
+	public Homography getTransform()
+	{
+		return transform;
+	}
+
+
+	public GazeFilter getFilter()
+	{
+		return filter;
+	}
+
+
+	public GazeEventDetector getEventDetector()
+	{
+		return detector;
+	}
+
+
+	void setPickCache(GazePickCache pickCache)
+	{
+		this.pickCache = pickCache;
+	}
+
+
+	public GazePickCache getPickCache()
+	{
+		return pickCache;
+	}
+
+
+	public GazePredictor getPredictor()
+	{
+		return predictor;
+	}
+
+	public void beginFrame()
+	{
+		frameSamples = 0;
+		pickPending = false;
+	}
+
+
+	/**
+	 * Smooths the sample for display and picking and feeds the raw sample to
+	 * the event detector, whose velocity and dispersion thresholds apply to
+	 * the decoded stream: smoothing would spread saccades over the filter
+	 * window and shift fixation onsets and centroids by its lag.
+	 *
+	 * @return false if the sample has no position (lost pupil)
+	 */
+	public boolean addSample(double normX, double normY, double confidence, double timestamp)
+	{
+		// NaN is sent while the tracker has lost the pupil
+		if(Double.isNaN(normX) || Double.isNaN(normY))
+		{
+			detector.addSample(normX, normY, confidence, timestamp);
+			predictor.reset();
+			return false;
+		}
+
+		filter.filter(normX, normY, timestamp);
+		detector.addSample(normX, normY, confidence, timestamp);
+		// the smoothed position lags behind its timestamp
+		predictor.addSample(normX, normY, timestamp);
+
+		frameSamples++;
+		lastTimestamp = timestamp;
+		return true;
+	}
+
+
+	/**
+	 * Number of valid samples of the current frame.
+	 */
+	public int getFrameSamples()
+	{
+		return frameSamples;
+	}
+
+
+	public double getLastTimestamp()
+	{
+		return lastTimestamp;
+	}
+
+
+	/**
+	 * Sets the gaze of the current frame.
+	 *
+	 * @param presentationTime tracker time the frame will be presented at, NaN if unknown
+	 */
+	public void predict(double presentationTime)
+	{
+		if(!Double.isNaN(presentationTime) && predictor.predict(presentationTime))
+		{
+			gazeX = predictor.getX();
+			gazeY = predictor.getY();
+		}
+		else
+		{
+			gazeX = filter.getX();
+			gazeY = filter.getY();
+		}
+	}
+
+
+	/**
+	 * Normalized gaze of the current frame, see predict().
+	 */
+	public double getGazeX()
+	{
+		return gazeX;
+	}
+
+
+	public double getGazeY()
+	{
+		return gazeY;
+	}
+
+
+	/**
+	 * Converts normalized surface coordinates to the screen coordinates of
+	 * the surface camera. Points outside the surface are clamped to it.
+	 */
+	public void toScreen(double normX, double normY, Vector2f store)
+	{
+		transform.apply(normX, normY, viewport);
+
+		double x = Math.min(1, Math.max(0, viewport[0]));
+		double y = Math.min(1, Math.max(0, viewport[1]));
+
+		float left = cam.getViewPortLeft();
+		float bottom = cam.getViewPortBottom();
+
+		store.set((float) ((left + x * (cam.getViewPortRight() - left)) * cam.getWidth()),
+				(float) ((bottom + y * (cam.getViewPortTop() - bottom)) * cam.getHeight()));
+	}
+
+
+	/**
+	 * Decides whether the AOI of the current frame needs a new pick: every
+	 * frame with samples (PerFrame) or once per fixation (PerFixation).
+	 */
+	boolean preparePick(EyeTrackerProc.AoiResolution resolution)
+	{
+		pickPending = false;
+		// successive fixations rarely share their centroid
+		pickCached = (resolution == EyeTrackerProc.AoiResolution.PerFrame);
+
+		if(cam == null || frameSamples == 0)
+			return false;
+
+		if(resolution == EyeTrackerProc.AoiResolution.PerFrame)
+		{
+			toScreen(gazeX, gazeY, screenPos);
+			pickPending = true;
+		}
+		else if(!detector.isFixating())
+			aoiId = AoiDictionary.NO_AOI;
+		else if(detector.getFixationId() != resolvedFixationId)
+		{
+			resolvedFixationId = detector.getFixationId();
+			toScreen(detector.getCentroidX(), detector.getCentroidY(), screenPos);
+			pickPending = true;
+		}
+
+		return pickPending;
+	}
+
+
+	/**
+	 * Casts the gaze ray of the prepared pick and maps the hit to its AOI.
+	 */
+	void pick(GazePickingIndex index, AoiRegistry registry)
+	{
+		pickPending = false;
+
+		boolean cached = pickCached && pickCache != null;
+
+		if(cached && pickCache.lookup(screenPos.getX(), screenPos.getY(), cam))
+			hit = pickCache.getResult();
+		else
+		{
+			cam.getWorldCoordinates(screenPos, 1, worldPosFar);
+			cam.getWorldCoordinates(screenPos, 0, worldPosNear);
+
+			direction.set(worldPosFar).subtractLocal(worldPosNear);
+			direction.normalizeLocal();
+
+			ray.setOrigin(worldPosNear);
+			ray.setDirection(direction);
+
+			hit = index.pickClosest(ray);
+
+			if(cached)
+				pickCache.store(screenPos.getX(), screenPos.getY(), cam, ray, hit);
+		}
+
+		aoiId = (hit == null) ? AoiDictionary.NO_AOI : registry.idOf(hit.getGeometry());
+	}
+
+
+	public CollisionResult getHit()
+	{
+		return hit;
+	}
+
+
+	/**
+	 * AOI of the current frame, NO_AOI between fixations.
+	 */
+	public int getAoiId()
+	{
+		return aoiId;
+	}
+}
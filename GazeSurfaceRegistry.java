@@ -0,0 +1,131 @@
+package eu.opends.drivesense;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.jme3.renderer.Camera;
+
+/**
+ * The gaze surfaces known to the simulator by name. Samples of surfaces
+ * that are not registered are logged without AOI.
+ *
+ * The AOIs are picked on the render thread, one surface after the other:
+ * the exact ray test (Geometry.collideWith()) updates lazily computed state
+ * of the scene graph, so no two picks may run at once.
+ */
+public class GazeSurfaceRegistry
+{
+	private final GazePickingIndex pickingIndex;
+	private final int smoothingFactor;
+	private double maxPredictionMillis = 50;
+
+	private final Map<String, GazeSurface> surfaces = new LinkedHashMap<String, GazeSurface>();
+
+
+	public GazeSurfaceRegistry(GazePickingIndex pickingIndex, int smoothingFactor)
+	{
+		this.pickingIndex = pickingIndex;
+		this.smoothingFactor = smoothingFactor;
+	}
+
+
+	/**
+	 * Registers a surface with a new smoothing filter and event detector.
+	 *
+	 * @param cam camera rendering the surface, null for surfaces without AOI
+	 * @param transform surface coordinates to viewport coordinates of the camera
+	 */
+	public GazeSurface register(String name, Camera cam, Homography transform)
+	{
+		return register(new GazeSurface(name, cam, transform, GazeFilter.create(smoothingFactor), new GazeEventDetector()));
+	}
+
+
+	public synchronized GazeSurface register(GazeSurface surface)
+	{
+		if(surface.getCamera() != null)
+			surface.setPickCache(new GazePickCache(pickingIndex));
+
+		surface.getPredictor().setMaxHorizon(maxPredictionMillis);
+		surfaces.put(surface.getName(), surface);
+		return surface;
+	}
+
+
+	public synchronized void unregister(String name)
+	{
+		surfaces.remove(name);
+	}
+
+
+	public synchronized GazeSurface get(String name)
+	{
+		return (name == null) ? null : surfaces.get(name);
+	}
+
+
+	public synchronized Collection<GazeSurface> getSurfaces()
+	{
+		return new ArrayList<GazeSurface>(surfaces.values());
+	}
+
+
+	public synchronized void beginFrame()
+	{
+		for(GazeSurface surface : surfaces.values())
+			surface.beginFrame();
+	}
+
+
+	/**
+	 * Limits the gaze prediction of all surfaces, 0 disables extrapolation.
+	 */
+	public synchronized void setMaxPrediction(double millis)
+	{
+		if(millis == maxPredictionMillis)
+			return;
+
+		maxPredictionMillis = millis;
+		for(GazeSurface surface : surfaces.values())
+			surface.getPredictor().setMaxHorizon(millis);
+	}
+
+
+	/**
+	 * Predicts the gaze of all surfaces to the presentation time of the
+	 * frame (tracker time), including surfaces without new samples in this
+	 * frame. Without such time (NaN) the gaze is the newest smoothed sample.
+	 */
+	public synchronized void predict(double presentationTime)
+	{
+		for(GazeSurface surface : surfaces.values())
+			if(surface.getFrameSamples() > 0 || surface.getPredictor().hasSamples())
+				surface.predict(presentationTime);
+	}
+
+
+	/**
+	 * Picks the AOIs of all surfaces except the given one, which the caller
+	 * picks itself. Render thread only.
+	 *
+	 * @return number of picks
+	 */
+	public synchronized int pick(EyeTrackerProc.AoiResolution resolution, GazeSurface callerSurface,
+			AoiRegistry aoiRegistry)
+	{
+		int picks = 0;
+
+		for(GazeSurface surface : surfaces.values())
+		{
+			if(surface != callerSurface && surface.preparePick(resolution))
+			{
+				surface.pick(pickingIndex, aoiRegistry);
+				picks++;
+			}
+		}
+
+		return picks;
+	}
+}
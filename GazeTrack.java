@@ -0,0 +1,47 @@
+package eu.opends.drivesense;
+
+/**
+ * Layout of the gaze track (gaze_track.bin), the raw input of a recording:
+ * every gaze sample drained by the render thread together with the camera
+ * pose of that frame and the views of the other gaze surfaces (mirrors).
+ * GazeReplay re-runs the AOI pipeline from it.
+ * All values are big-endian, as written by a DataOutputStream.
+ *
+ * header:  int MAGIC, int VERSION
+ * records: byte type followed by
+ *          SURFACE - short id, UTF name (defines a surface id, 0 is null)
+ *          CAMERA  - int width, int height, boolean parallel, float near,
+ *                    far, left, right, top, bottom (written before the
+ *                    first frame and whenever the frustum changes)
+ *          VIEW    - short surface id, double[9] homography, then the
+ *                    camera of the surface like CAMERA followed by float
+ *                    viewport left, right, bottom, top (written before the
+ *                    first POSE of the surface and whenever one changes)
+ *          POSE    - short surface id, float location x/y/z, float
+ *                    rotation x/y/z/w (camera of the surface, before every
+ *                    FRAME)
+ *          FRAME   - float location x/y/z, float rotation x/y/z/w,
+ *                    int sample count, per sample short surface id,
+ *                    double normX, normY, confidence, timestamp
+ *
+ * Version 1 tracks have no VIEW and POSE records.
+ *
+ * The file has no trailer, so a track cut off by a crash can be read up
+ * to its last complete frame.
+ */
+public class GazeTrack
+{
+	public static final String FILE_NAME = "gaze_track.bin";
+
+	// "GZTR"
+	public static final int MAGIC = 0x475A5452;
+	public static final int VERSION = 2;
+
+	public static final byte SURFACE = 1;
+	public static final byte CAMERA = 2;
+	public static final byte FRAME = 3;
+	public static final byte VIEW = 4;
+	public static final byte POSE = 5;
+
+	public static final int NULL_ID = 0;
+}
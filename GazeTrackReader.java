@@ -0,0 +1,261 @@
+package eu.opends.drivesense;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+
+/**
+ * Reads a gaze track frame by frame, see GazeTrack for the layout. The
+ * views of the other surfaces are kept in cameras of the reader, moved to
+ * the recorded pose with every frame.
+ */
+public class GazeTrackReader
+{
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final DataInputStream in;
+
+	private final List<String> surfaces = new ArrayList<String>();
+	private final Map<String, View> views = new LinkedHashMap<String, View>();
+
+	private final Vector3f location = new Vector3f();
+	private final Quaternion rotation = new Quaternion();
+
+	private boolean truncated = false;
+
+
+	/**
+	 * The recorded view of a surface rendered by its own camera.
+	 */
+	public static class View
+	{
+		private final String surface;
+		private final Camera camera = new Camera(1, 1);
+		private Homography transform;
+
+
+		private View(String surface)
+		{
+			this.surface = surface;
+		}
+
+
+		public String getSurface()
+		{
+			return surface;
+		}
+
+
+		public Camera getCamera()
+		{
+			return camera;
+		}
+
+
+		/**
+		 * Replaced by a new instance whenever the recorded transform changes.
+		 */
+		public Homography getTransform()
+		{
+			return transform;
+		}
+	}
+
+
+	public GazeTrackReader(File file) throws IOException
+	{
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+
+		try {
+
+			if(in.readInt() != GazeTrack.MAGIC)
+				throw new IOException("Not a gaze track: " + file);
+
+			// version 1 only lacks the VIEW and POSE records
+			int version = in.readInt();
+			if(version != GazeTrack.VERSION && version != 1)
+				throw new IOException("Unsupported gaze track version " + version + ": " + file);
+
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+
+		// id 0 stands for null
+		surfaces.add(null);
+	}
+
+
+	/**
+	 * Reads the next frame: the camera is moved to the recorded pose (and
+	 * resized if the frustum changed) and the batch is refilled with the
+	 * samples of the frame.
+	 *
+	 * @return false at the end of the track
+	 */
+	public boolean next(Camera cam, GazeBatch batch) throws IOException
+	{
+		batch.clear();
+
+		try {
+
+			while(true)
+			{
+				int type = in.read();
+
+				if(type == -1)
+					return false;
+				else if(type == GazeTrack.SURFACE)
+					readSurface();
+				else if(type == GazeTrack.CAMERA)
+					readCamera(cam);
+				else if(type == GazeTrack.VIEW)
+					readView();
+				else if(type == GazeTrack.POSE)
+					readPose();
+				else if(type == GazeTrack.FRAME)
+				{
+					readFrame(cam, batch);
+					return true;
+				}
+				else
+					throw new IOException("Unknown gaze track record " + type);
+			}
+
+		} catch (EOFException e) {
+			// the recording was cut off within the last record
+			truncated = true;
+			batch.clear();
+			return false;
+		}
+	}
+
+
+	private void readSurface() throws IOException
+	{
+		int id = in.readShort();
+		String name = in.readUTF();
+
+		while(surfaces.size() <= id)
+			surfaces.add(null);
+
+		surfaces.set(id, name);
+	}
+
+
+	private void readCamera(Camera cam) throws IOException
+	{
+		int width = in.readInt();
+		int height = in.readInt();
+		boolean parallel = in.readBoolean();
+		float near = in.readFloat();
+		float far = in.readFloat();
+		float left = in.readFloat();
+		float right = in.readFloat();
+		float top = in.readFloat();
+		float bottom = in.readFloat();
+
+		cam.resize(width, height, false);
+		cam.setParallelProjection(parallel);
+		cam.setFrustum(near, far, left, right, top, bottom);
+	}
+
+
+	private void readView() throws IOException
+	{
+		String surface = surfaceName(in.readShort());
+
+		double[] m = new double[9];
+		for(int i=0; i<m.length; i++)
+			m[i] = in.readDouble();
+
+		View view = views.get(surface);
+		if(view == null)
+		{
+			view = new View(surface);
+			views.put(surface, view);
+		}
+
+		if(view.transform == null || !Arrays.equals(view.transform.getMatrix(), m))
+			view.transform = new Homography(m);
+		readCamera(view.camera);
+		view.camera.setViewPort(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+	}
+
+
+	private void readPose() throws IOException
+	{
+		View view = views.get(surfaceName(in.readShort()));
+
+		location.set(in.readFloat(), in.readFloat(), in.readFloat());
+		rotation.set(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+
+		if(view != null)
+		{
+			view.camera.setLocation(location);
+			view.camera.setRotation(rotation);
+		}
+	}
+
+
+	private String surfaceName(int id)
+	{
+		return (id < surfaces.size()) ? surfaces.get(id) : null;
+	}
+
+
+	private void readFrame(Camera cam, GazeBatch batch) throws IOException
+	{
+		location.set(in.readFloat(), in.readFloat(), in.readFloat());
+		rotation.set(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+
+		cam.setLocation(location);
+		cam.setRotation(rotation);
+
+		int n = in.readInt();
+		for(int i=0; i<n; i++)
+		{
+			String surface = surfaceName(in.readShort());
+
+			batch.add(surface, in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+		}
+	}
+
+
+	/**
+	 * The views of the surfaces with a camera of their own read so far, in
+	 * the order they first appeared.
+	 */
+	public Collection<View> getViews()
+	{
+		return views.values();
+	}
+
+
+	/**
+	 * True if the track ended within a record, e.g. after a crash.
+	 */
+	public boolean isTruncated()
+	{
+		return truncated;
+	}
+
+
+	public void close() throws IOException
+	{
+		in.close();
+	}
+}
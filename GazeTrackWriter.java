@@ -0,0 +1,241 @@
+package eu.opends.drivesense;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+
+/**
+ * Appends frames to a gaze track, see GazeTrack for the layout. Called from
+ * the render thread; the stream is buffered, so a frame costs a few dozen
+ * bytes of copying and only every few hundred frames a write.
+ */
+public class GazeTrackWriter
+{
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final File file;
+	private final DataOutputStream out;
+
+	private final Map<String, Integer> surfaceIds = new HashMap<String, Integer>();
+	// last written view per surface
+	private final Map<String, View> views = new HashMap<String, View>();
+
+	// last written frustum
+	private int width = -1;
+	private int height = -1;
+	private boolean parallel;
+	private final float[] frustum = new float[6];
+
+	private long frameCount = 0;
+
+
+	private static class View
+	{
+		private Homography transform;
+		// width, height, parallel, frustum, viewport
+		private final float[] values = new float[13];
+		private final float[] current = new float[13];
+	}
+
+
+	public GazeTrackWriter(File file) throws IOException
+	{
+		this.file = file;
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		out.writeInt(GazeTrack.MAGIC);
+		out.writeInt(GazeTrack.VERSION);
+	}
+
+
+	public File getFile()
+	{
+		return file;
+	}
+
+
+	/**
+	 * Writes the camera pose and all samples of the batch as one frame.
+	 */
+	public void writeFrame(Camera cam, GazeBatch batch) throws IOException
+	{
+		writeFrame(cam, batch, null);
+	}
+
+
+	/**
+	 * Writes the frame, preceded by the views of all surfaces of the
+	 * registry that are rendered by a camera other than the given one.
+	 */
+	public void writeFrame(Camera cam, GazeBatch batch, GazeSurfaceRegistry surfaces) throws IOException
+	{
+		writeCameraIfChanged(cam);
+
+		if(surfaces != null)
+		{
+			for(GazeSurface surface : surfaces.getSurfaces())
+				if(surface.getCamera() != null && surface.getCamera() != cam)
+					writeView(surface);
+		}
+
+		int n = batch.size();
+		for(int i=0; i<n; i++)
+			surfaceId(batch.getSurface(i));
+
+		Vector3f location = cam.getLocation();
+		Quaternion rotation = cam.getRotation();
+
+		out.writeByte(GazeTrack.FRAME);
+		out.writeFloat(location.getX());
+		out.writeFloat(location.getY());
+		out.writeFloat(location.getZ());
+		out.writeFloat(rotation.getX());
+		out.writeFloat(rotation.getY());
+		out.writeFloat(rotation.getZ());
+		out.writeFloat(rotation.getW());
+
+		out.writeInt(n);
+		for(int i=0; i<n; i++)
+		{
+			out.writeShort(surfaceId(batch.getSurface(i)));
+			out.writeDouble(batch.getNormX(i));
+			out.writeDouble(batch.getNormY(i));
+			out.writeDouble(batch.getConfidence(i));
+			out.writeDouble(batch.getTimestamp(i));
+		}
+
+		frameCount++;
+	}
+
+
+	private int surfaceId(String surface) throws IOException
+	{
+		if(surface == null)
+			return GazeTrack.NULL_ID;
+
+		Integer id = surfaceIds.get(surface);
+		if(id == null)
+		{
+			id = surfaceIds.size() + 1;
+			surfaceIds.put(surface, id);
+
+			out.writeByte(GazeTrack.SURFACE);
+			out.writeShort(id);
+			out.writeUTF(surface);
+		}
+
+		return id;
+	}
+
+
+	private void writeView(GazeSurface surface) throws IOException
+	{
+		Camera cam = surface.getCamera();
+		int id = surfaceId(surface.getName());
+
+		View view = views.get(surface.getName());
+		if(view == null)
+		{
+			view = new View();
+			views.put(surface.getName(), view);
+		}
+
+		float[] current = view.current;
+		current[0] = cam.getWidth();
+		current[1] = cam.getHeight();
+		current[2] = cam.isParallelProjection() ? 1 : 0;
+		current[3] = cam.getFrustumNear();
+		current[4] = cam.getFrustumFar();
+		current[5] = cam.getFrustumLeft();
+		current[6] = cam.getFrustumRight();
+		current[7] = cam.getFrustumTop();
+		current[8] = cam.getFrustumBottom();
+		current[9] = cam.getViewPortLeft();
+		current[10] = cam.getViewPortRight();
+		current[11] = cam.getViewPortBottom();
+		current[12] = cam.getViewPortTop();
+
+		if(view.transform != surface.getTransform() || !Arrays.equals(view.values, current))
+		{
+			view.transform = surface.getTransform();
+			System.arraycopy(current, 0, view.values, 0, current.length);
+
+			out.writeByte(GazeTrack.VIEW);
+			out.writeShort(id);
+			for(double element : view.transform.getMatrix())
+				out.writeDouble(element);
+			out.writeInt(cam.getWidth());
+			out.writeInt(cam.getHeight());
+			out.writeBoolean(cam.isParallelProjection());
+			for(int i=3; i<current.length; i++)
+				out.writeFloat(current[i]);
+		}
+
+		Vector3f location = cam.getLocation();
+		Quaternion rotation = cam.getRotation();
+
+		out.writeByte(GazeTrack.POSE);
+		out.writeShort(id);
+		out.writeFloat(location.getX());
+		out.writeFloat(location.getY());
+		out.writeFloat(location.getZ());
+		out.writeFloat(rotation.getX());
+		out.writeFloat(rotation.getY());
+		out.writeFloat(rotation.getZ());
+		out.writeFloat(rotation.getW());
+	}
+
+
+	private void writeCameraIfChanged(Camera cam) throws IOException
+	{
+		if(cam.getWidth() == width && cam.getHeight() == height && cam.isParallelProjection() == parallel
+				&& cam.getFrustumNear() == frustum[0] && cam.getFrustumFar() == frustum[1]
+				&& cam.getFrustumLeft() == frustum[2] && cam.getFrustumRight() == frustum[3]
+				&& cam.getFrustumTop() == frustum[4] && cam.getFrustumBottom() == frustum[5])
+			return;
+
+		width = cam.getWidth();
+		height = cam.getHeight();
+		parallel = cam.isParallelProjection();
+		frustum[0] = cam.getFrustumNear();
+		frustum[1] = cam.getFrustumFar();
+		frustum[2] = cam.getFrustumLeft();
+		frustum[3] = cam.getFrustumRight();
+		frustum[4] = cam.getFrustumTop();
+		frustum[5] = cam.getFrustumBottom();
+
+		out.writeByte(GazeTrack.CAMERA);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeBoolean(parallel);
+		for(int i=0; i<frustum.length; i++)
+			out.writeFloat(frustum[i]);
+	}
+
+
+	public long getFrameCount()
+	{
+		return frameCount;
+	}
+
+
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
+
+	public void close() throws IOException
+	{
+		out.close();
+	}
+}
@@ -0,0 +1,72 @@
+package eu.opends.drivesense;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary alternative to the JSON gaze datagram. All values are
+ * little-endian:
+ *
+ * int32   magic "GAZ1"
+ * uint16  length of the surface name in bytes
+ * byte[]  surface name (UTF-8)
+ * uint16  number of samples
+ * then per sample: float64 norm_x, float64 norm_y, float64 confidence, float64 timestamp
+ *
+ * The first byte of the magic can never start a JSON datagram, so both
+ * formats can be sent to the same port.
+ */
+public class GazeWireFormat
+{
+	// "GAZ1" read as little-endian int
+	public static final int MAGIC = 'G' | ('A' << 8) | ('Z' << 16) | ('1' << 24);
+
+	public static final int HEADER_SIZE = 4 + 2 + 2;
+	public static final int RECORD_SIZE = 4 * 8;
+
+
+	/**
+	 * Checks whether the remaining bytes of the buffer start with the magic.
+	 */
+	public static boolean isBinary(ByteBuffer buffer)
+	{
+		int p = buffer.position();
+
+		return buffer.remaining() >= 4
+				&& buffer.get(p) == 'G' && buffer.get(p + 1) == 'A'
+				&& buffer.get(p + 2) == 'Z' && buffer.get(p + 3) == '1';
+	}
+
+
+	/**
+	 * Encodes the given samples, e.g. for a tracker plugin or a replay tool.
+	 * The buffer is left positioned after the datagram.
+	 */
+	public static void encode(ByteBuffer buffer, String srf, double[] normX, double[] normY,
+			double[] confidence, double[] timestamp, int count)
+	{
+		byte[] name = (srf == null) ? new byte[0] : srf.getBytes(StandardCharsets.UTF_8);
+
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putShort((short) name.length);
+		buffer.put(name);
+		buffer.putShort((short) count);
+
+		for(int i=0; i<count; i++)
+		{
+			buffer.putDouble(normX[i]);
+			buffer.putDouble(normY[i]);
+			buffer.putDouble(confidence[i]);
+			buffer.putDouble(timestamp[i]);
+		}
+	}
+
+
+	public static int encodedSize(String srf, int count)
+	{
+		int nameLength = (srf == null) ? 0 : srf.getBytes(StandardCharsets.UTF_8).length;
+		return HEADER_SIZE + nameLength + count * RECORD_SIZE;
+	}
+}
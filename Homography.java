@@ -0,0 +1,126 @@
+package eu.opends.drivesense;
+
+/**
+ * Projective transform of the plane (3x3 matrix, row-major), used to map
+ * the normalized coordinates of a gaze surface to the viewport of the
+ * camera that renders it. Immutable and thread-safe.
+ */
+public class Homography
+{
+	private final double[] m;
+
+
+	public Homography(double... m)
+	{
+		if(m.length != 9)
+			throw new IllegalArgumentException("A homography has 9 elements, not " + m.length);
+
+		this.m = m.clone();
+	}
+
+
+	public static Homography identity()
+	{
+		return new Homography(1, 0, 0, 0, 1, 0, 0, 0, 1);
+	}
+
+
+	/**
+	 * (x, y) -> (x, 1 - y), for surfaces with the origin at the top.
+	 */
+	public static Homography flipY()
+	{
+		return new Homography(1, 0, 0, 0, -1, 1, 0, 0, 1);
+	}
+
+
+	/**
+	 * The homography that maps the four source corners onto the four
+	 * destination corners, e.g. the corners of a mirror in surface
+	 * coordinates onto the corners of its viewport.
+	 *
+	 * @param src x0, y0, ... x3, y3
+	 * @param dst x0, y0, ... x3, y3
+	 */
+	public static Homography fromCorners(double[] src, double[] dst)
+	{
+		if(src.length != 8 || dst.length != 8)
+			throw new IllegalArgumentException("Four corners (8 values) are needed");
+
+		// h33 = 1, two equations per correspondence
+		double[][] a = new double[8][9];
+		for(int i=0; i<4; i++)
+		{
+			double x = src[2*i], y = src[2*i + 1];
+			double u = dst[2*i], v = dst[2*i + 1];
+
+			a[2*i] = new double[] { x, y, 1, 0, 0, 0, -u*x, -u*y, u };
+			a[2*i + 1] = new double[] { 0, 0, 0, x, y, 1, -v*x, -v*y, v };
+		}
+
+		double[] h = solve(a);
+		return new Homography(h[0], h[1], h[2], h[3], h[4], h[5], h[6], h[7], 1);
+	}
+
+
+	/**
+	 * Gaussian elimination with partial pivoting of the augmented 8x9 system.
+	 */
+	private static double[] solve(double[][] a)
+	{
+		int n = a.length;
+
+		for(int col=0; col<n; col++)
+		{
+			int pivot = col;
+			for(int row=col+1; row<n; row++)
+				if(Math.abs(a[row][col]) > Math.abs(a[pivot][col]))
+					pivot = row;
+
+			if(Math.abs(a[pivot][col]) < 1e-12)
+				throw new IllegalArgumentException("Degenerate corners, three of them are collinear");
+
+			double[] tmp = a[col];
+			a[col] = a[pivot];
+			a[pivot] = tmp;
+
+			for(int row=col+1; row<n; row++)
+			{
+				double factor = a[row][col] / a[col][col];
+				for(int k=col; k<=n; k++)
+					a[row][k] -= factor * a[col][k];
+			}
+		}
+
+		double[] x = new double[n];
+		for(int row=n-1; row>=0; row--)
+		{
+			double sum = a[row][n];
+			for(int k=row+1; k<n; k++)
+				sum -= a[row][k] * x[k];
+			x[row] = sum / a[row][row];
+		}
+
+		return x;
+	}
+
+
+	/**
+	 * The 9 elements, row-major.
+	 */
+	public double[] getMatrix()
+	{
+		return m.clone();
+	}
+
+
+	/**
+	 * Maps (x, y) and stores the result in store[0], store[1].
+	 */
+	public void apply(double x, double y, double[] store)
+	{
+		double w = m[6]*x + m[7]*y + m[8];
+		store[0] = (m[0]*x + m[1]*y + m[2]) / w;
+		store[1] = (m[3]*x + m[4]*y + m[5]) / w;
+	}
+}
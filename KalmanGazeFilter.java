@@ -0,0 +1,124 @@
+package eu.opends.drivesense;
+
+/**
+ * Kalman filter with a constant-velocity model, run independently on both
+ * axes. The state of each axis is position and velocity with a 2x2
+ * covariance, all held in primitive fields.
+ */
+public class KalmanGazeFilter extends GazeFilter
+{
+	// acceleration noise density and measurement variance, normalized units
+	public static final double DEFAULT_PROCESS_NOISE = 0.5;
+	public static final double DEFAULT_MEASUREMENT_NOISE = 1e-4;
+
+	// initial velocity variance
+	private static final double INITIAL_VELOCITY_VARIANCE = 1.0;
+
+	private final double processNoise;
+	private final double measurementNoise;
+
+	private final Axis axisX = new Axis();
+	private final Axis axisY = new Axis();
+	private double previousTimestamp = Double.NaN;
+
+
+	public KalmanGazeFilter()
+	{
+		this(DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE);
+	}
+
+
+	public KalmanGazeFilter(double processNoise, double measurementNoise)
+	{
+		this.processNoise = processNoise;
+		this.measurementNoise = measurementNoise;
+	}
+
+
+	@Override
+	public void filter(double rawX, double rawY, double timestamp)
+	{
+		if(!hasValue())
+		{
+			axisX.init(rawX, measurementNoise);
+			axisY.init(rawY, measurementNoise);
+		}
+		else
+		{
+			double dt = interval(previousTimestamp, timestamp);
+
+			axisX.predict(dt, processNoise);
+			axisY.predict(dt, processNoise);
+			axisX.correct(rawX, measurementNoise);
+			axisY.correct(rawY, measurementNoise);
+		}
+
+		previousTimestamp = timestamp;
+		x = axisX.position;
+		y = axisY.position;
+	}
+
+
+	@Override
+	public void reset()
+	{
+		x = Double.NaN;
+		y = Double.NaN;
+		previousTimestamp = Double.NaN;
+	}
+
+
+	public double getVelocityX()
+	{
+		return axisX.velocity;
+	}
+
+
+	public double getVelocityY()
+	{
+		return axisY.velocity;
+	}
+
+
+	private static class Axis
+	{
+		double position;
+		double velocity;
+		double p00, p01, p11;
+
+		void init(double z, double r)
+		{
+			position = z;
+			velocity = 0;
+			p00 = r;
+			p01 = 0;
+			p11 = INITIAL_VELOCITY_VARIANCE;
+		}
+
+		void predict(double dt, double q)
+		{
+			position += velocity * dt;
+
+			// P = F P F' + Q for a white acceleration model
+			double dt2 = dt * dt;
+			p00 += 2 * dt * p01 + dt2 * p11 + q * dt2 * dt / 3;
+			p01 += dt * p11 + q * dt2 / 2;
+			p11 += q * dt;
+		}
+
+		void correct(double z, double r)
+		{
+			double s = p00 + r;
+			double k0 = p00 / s;
+			double k1 = p01 / s;
+			double innovation = z - position;
+
+			position += k0 * innovation;
+			velocity += k1 * innovation;
+
+			p11 -= k1 * p01;
+			p01 -= k0 * p01;
+			p00 -= k0 * p00;
+		}
+	}
+}
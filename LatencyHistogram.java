@@ -0,0 +1,199 @@
+package eu.opends.drivesense;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets: every power of two
+ * is split into 8 linear sub-buckets, so a recorded value is off by at most
+ * 12.5%. Recording is a few atomic adds and never allocates, so it can be
+ * called from the receive and the render thread for every sample.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean
+{
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong sum = new AtomicLong(0);
+	private final AtomicLong max = new AtomicLong(0);
+
+
+	public LatencyHistogram(String name)
+	{
+		this.name = name;
+	}
+
+
+	public String getName()
+	{
+		return name;
+	}
+
+
+	/**
+	 * Records one latency in nanoseconds; negative values count as 0.
+	 */
+	public void record(long nanos)
+	{
+		if(nanos < 0)
+			nanos = 0;
+
+		counts.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long currentMax = max.get();
+		while(nanos > currentMax && !max.compareAndSet(currentMax, nanos))
+			currentMax = max.get();
+	}
+
+
+	/**
+	 * Copies the bucket counts into the given array (created if null or too
+	 * small), e.g. to compute the percentiles of an interval from two copies.
+	 */
+	public long[] snapshot(long[] store)
+	{
+		if(store == null || store.length < BUCKETS)
+			store = new long[BUCKETS];
+
+		for(int i=0; i<BUCKETS; i++)
+			store[i] = counts.get(i);
+
+		return store;
+	}
+
+
+	/**
+	 * Upper bound (ns) of the bucket that contains the given quantile of the
+	 * bucket counts, or 0 if the counts are empty.
+	 */
+	public static long percentile(long[] bucketCounts, double quantile)
+	{
+		long total = 0;
+		for(int i=0; i<BUCKETS; i++)
+			total += bucketCounts[i];
+
+		if(total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(quantile * total);
+		if(rank < 1)
+			rank = 1;
+
+		long seen = 0;
+		for(int i=0; i<BUCKETS; i++)
+		{
+			seen += bucketCounts[i];
+			if(seen >= rank)
+				return upperBound(i);
+		}
+
+		return upperBound(BUCKETS - 1);
+	}
+
+
+	public long percentile(double quantile)
+	{
+		// the bucket bound may lie above the largest recorded value
+		return Math.min(percentile(snapshot(null), quantile), max.get());
+	}
+
+
+	public void reset()
+	{
+		for(int i=0; i<BUCKETS; i++)
+			counts.set(i, 0);
+
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+
+	@Override
+	public long getCount()
+	{
+		return count.get();
+	}
+
+
+	@Override
+	public double getMeanMicros()
+	{
+		long n = count.get();
+		return (n == 0) ? 0 : sum.get() / (n * 1000.0);
+	}
+
+
+	@Override
+	public double getMaxMicros()
+	{
+		return max.get() / 1000.0;
+	}
+
+
+	@Override
+	public double getP50Micros()
+	{
+		return percentile(0.5) / 1000.0;
+	}
+
+
+	@Override
+	public double getP90Micros()
+	{
+		return percentile(0.9) / 1000.0;
+	}
+
+
+	@Override
+	public double getP99Micros()
+	{
+		return percentile(0.99) / 1000.0;
+	}
+
+
+	@Override
+	public double getP999Micros()
+	{
+		return percentile(0.999) / 1000.0;
+	}
+
+
+	static int bucketOf(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+
+	static long lowerBound(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+	}
+
+
+	static long upperBound(int bucket)
+	{
+		if(bucket == BUCKETS - 1)
+			return Long.MAX_VALUE;
+
+		return lowerBound(bucket + 1) - 1;
+	}
+}
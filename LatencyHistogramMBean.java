@@ -0,0 +1,23 @@
+package eu.opends.drivesense;
+
+/**
+ * JMX view of a LatencyHistogram. All times in microseconds.
+ */
+public interface LatencyHistogramMBean
+{
+	public long getCount();
+
+	public double getMeanMicros();
+
+	public double getMaxMicros();
+
+	public double getP50Micros();
+
+	public double getP90Micros();
+
+	public double getP99Micros();
+
+	public double getP999Micros();
+
+	public void reset();
+}
@@ -0,0 +1,171 @@
+package eu.opends.drivesense;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from long keys to long counts without boxing.
+ * Entries cannot be removed. Iterate with slot indices:
+ *
+ * for(int slot=0; slot<map.capacity(); slot++)
+ *     if(map.isUsed(slot)) ... map.keyAt(slot), map.valueAt(slot)
+ */
+public class LongCountMap
+{
+	private long[] keys;
+	private long[] values;
+	private boolean[] used;
+	private int size = 0;
+
+
+	public LongCountMap()
+	{
+		this(64);
+	}
+
+
+	public LongCountMap(int expectedSize)
+	{
+		int capacity = Integer.highestOneBit(Math.max(8, expectedSize * 2) - 1) << 1;
+		keys = new long[capacity];
+		values = new long[capacity];
+		used = new boolean[capacity];
+	}
+
+
+	public static long pair(int high, int low)
+	{
+		return ((long) high << 32) | (low & 0xFFFFFFFFL);
+	}
+
+
+	public static int high(long key)
+	{
+		return (int) (key >>> 32);
+	}
+
+
+	public static int low(long key)
+	{
+		return (int) key;
+	}
+
+
+	/**
+	 * Adds delta to the count of key and returns the new count.
+	 */
+	public long add(long key, long delta)
+	{
+		int slot = slotOf(key);
+
+		if(!used[slot])
+		{
+			used[slot] = true;
+			keys[slot] = key;
+			values[slot] = delta;
+
+			if(++size * 2 > keys.length)
+				rehash();
+
+			return delta;
+		}
+
+		return values[slot] += delta;
+	}
+
+
+	public long get(long key)
+	{
+		int slot = slotOf(key);
+		return used[slot] ? values[slot] : 0;
+	}
+
+
+	public int size()
+	{
+		return size;
+	}
+
+
+	public int capacity()
+	{
+		return keys.length;
+	}
+
+
+	public boolean isUsed(int slot)
+	{
+		return used[slot];
+	}
+
+
+	public long keyAt(int slot)
+	{
+		return keys[slot];
+	}
+
+
+	public long valueAt(int slot)
+	{
+		return values[slot];
+	}
+
+
+	public void clear()
+	{
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+
+	/**
+	 * Adds all counts of the other map to this one.
+	 */
+	public void addAll(LongCountMap other)
+	{
+		for(int slot=0; slot<other.capacity(); slot++)
+			if(other.isUsed(slot))
+				add(other.keyAt(slot), other.valueAt(slot));
+	}
+
+
+	private int slotOf(long key)
+	{
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+
+		while(used[slot] && keys[slot] != key)
+			slot = (slot + 1) & mask;
+
+		return slot;
+	}
+
+
+	private void rehash()
+	{
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		boolean[] oldUsed = used;
+
+		keys = new long[oldKeys.length * 2];
+		values = new long[oldKeys.length * 2];
+		used = new boolean[oldKeys.length * 2];
+
+		for(int i=0; i<oldKeys.length; i++)
+		{
+			if(oldUsed[i])
+			{
+				int slot = slotOf(oldKeys[i]);
+				used[slot] = true;
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+
+	private static int mix(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,377 @@
+package eu.opends.drivesense;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streaming reader for aoi_labels.csv recordings. The file is memory-mapped
+ * window by window and every row is handed to a RowVisitor as a reused
+ * AoiCsvCodec.Row, so memory use does not depend on the file size and no
+ * timestamp is boxed.
+ *
+ * forEachParallel() splits the file at line boundaries and scans the parts
+ * on several threads, each with its own visitor.
+ */
+public class MappedAoiCsvReader
+{
+	// max. size of a single mapping; lines never span two windows
+	private static final long MAX_WINDOW = 256L << 20;
+
+	private final File file;
+
+
+	public interface RowVisitor
+	{
+		/**
+		 * Called for every row. The row and its timestamp array are reused,
+		 * copy what needs to outlive the call.
+		 */
+		void visit(AoiCsvCodec.Row row);
+	}
+
+
+	public interface VisitorFactory<V extends RowVisitor>
+	{
+		V create();
+	}
+
+
+	public MappedAoiCsvReader(File file)
+	{
+		this.file = file;
+	}
+
+
+	/**
+	 * Visits all rows of the file in order.
+	 *
+	 * @return number of rows visited
+	 */
+	public long forEach(RowVisitor visitor) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		try {
+			return new RangeScanner(channel).scan(0, channel.size(), visitor);
+		} finally {
+			channel.close();
+		}
+	}
+
+
+	/**
+	 * Visits all rows on up to the given number of threads. The file is split
+	 * into one range per thread; every range gets its own visitor.
+	 *
+	 * @return the visitors in file order, ready to be merged by the caller
+	 */
+	public <V extends RowVisitor> List<V> forEachParallel(VisitorFactory<V> factory, int parallelism)
+			throws IOException
+	{
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		ExecutorService executor = null;
+
+		try {
+
+			long[] bounds = splitPoints(channel, Math.max(1, parallelism));
+			int nRanges = bounds.length - 1;
+
+			List<V> visitors = new ArrayList<V>(nRanges);
+			List<Future<Long>> results = new ArrayList<Future<Long>>(nRanges);
+
+			executor = Executors.newFixedThreadPool(nRanges);
+
+			for(int i=0; i<nRanges; i++)
+			{
+				final V visitor = factory.create();
+				final long start = bounds[i];
+				final long end = bounds[i+1];
+
+				visitors.add(visitor);
+				results.add(executor.submit(() -> new RangeScanner(channel).scan(start, end, visitor)));
+			}
+
+			for(Future<Long> result : results)
+				result.get();
+
+			return visitors;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading " + file, e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Could not read " + file, e.getCause());
+		} finally {
+			if(executor != null)
+				executor.shutdownNow();
+			channel.close();
+		}
+	}
+
+
+	/**
+	 * Returns range boundaries, each one directly after a line separator.
+	 */
+	private static long[] splitPoints(FileChannel channel, int nRanges) throws IOException
+	{
+		long size = channel.size();
+		long[] bounds = new long[nRanges + 1];
+		int n = 0;
+
+		bounds[n++] = 0;
+
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+
+		for(int i=1; i<nRanges; i++)
+		{
+			long pos = Math.max(bounds[n-1], size * i / nRanges);
+			long boundary = -1;
+
+			// search for the next line separator
+			while(boundary < 0 && pos < size)
+			{
+				probe.clear();
+				int read = channel.read(probe, pos);
+				if(read <= 0)
+					break;
+
+				for(int j=0; j<read; j++)
+				{
+					if(probe.get(j) == '\n')
+					{
+						boundary = pos + j + 1;
+						break;
+					}
+				}
+
+				pos += read;
+			}
+
+			if(boundary < 0 || boundary >= size)
+				break;
+
+			if(boundary > bounds[n-1])
+				bounds[n++] = boundary;
+		}
+
+		bounds[n++] = size;
+
+		long[] result = new long[n];
+		System.arraycopy(bounds, 0, result, 0, n);
+		return result;
+	}
+
+
+	/**
+	 * Scans one byte range of the file, or buffers holding whole lines (see
+	 * BlockGzipReader). Not thread-safe; every thread uses its own scanner.
+	 */
+	static class RangeScanner
+	{
+		private final FileChannel channel;
+		private final AoiCsvCodec codec = new AoiCsvCodec();
+		private final AoiCsvCodec.Row row = new AoiCsvCodec.Row();
+		private final LineBuffer line = new LineBuffer();
+
+
+		RangeScanner()
+		{
+			this(null);
+		}
+
+
+		RangeScanner(FileChannel channel)
+		{
+			this.channel = channel;
+		}
+
+
+		long scan(long start, long end, RowVisitor visitor) throws IOException
+		{
+			long rows = 0;
+			long pos = start;
+			boolean firstLine = (start == 0);
+
+			while(pos < end)
+			{
+				long windowSize = Math.min(MAX_WINDOW, end - pos);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, windowSize);
+
+				int limit = (int) windowSize;
+
+				// cut the window after its last complete line
+				if(pos + windowSize < end)
+				{
+					limit = lastIndexOf(buffer, (byte) '\n', limit) + 1;
+					if(limit == 0)
+						throw new IOException("Line too long in " + pos);
+				}
+
+				rows += scanLines(buffer, limit, firstLine, visitor);
+				firstLine = false;
+
+				pos += limit;
+			}
+
+			return rows;
+		}
+
+
+		/**
+		 * Visits the rows of buffer[0, limit).
+		 *
+		 * @param firstLine true if the buffer starts with the first line of the file, which may be the header
+		 */
+		long scanLines(ByteBuffer buffer, int limit, boolean firstLine, RowVisitor visitor)
+		{
+			long rows = 0;
+			int lineStart = 0;
+
+			while(lineStart < limit)
+			{
+				int lineEnd = indexOf(buffer, (byte) '\n', lineStart, limit);
+				if(lineEnd < 0)
+					lineEnd = limit;
+
+				line.set(buffer, lineStart, lineEnd);
+
+				boolean isHeader = firstLine && startsWith(line, AoiCsvCodec.FILE_HEADER);
+				firstLine = false;
+
+				if(!isHeader && codec.parseLine(line, row))
+				{
+					visitor.visit(row);
+					rows++;
+				}
+
+				lineStart = lineEnd + 1;
+			}
+
+			return rows;
+		}
+
+
+		private static int indexOf(ByteBuffer buffer, byte b, int from, int limit)
+		{
+			for(int i=from; i<limit; i++)
+				if(buffer.get(i) == b)
+					return i;
+
+			return -1;
+		}
+
+
+		private static int lastIndexOf(ByteBuffer buffer, byte b, int limit)
+		{
+			for(int i=limit-1; i>=0; i--)
+				if(buffer.get(i) == b)
+					return i;
+
+			return -1;
+		}
+
+
+		private static boolean startsWith(CharSequence s, String prefix)
+		{
+			if(s.length() < prefix.length())
+				return false;
+
+			for(int i=0; i<prefix.length(); i++)
+				if(s.charAt(i) != prefix.charAt(i))
+					return false;
+
+			return true;
+		}
+	}
+
+
+	/**
+	 * Reusable char view of one line. ASCII lines are widened byte by byte,
+	 * lines with other characters are decoded with the platform charset that
+	 * EyeTrackerIO's FileWriter uses.
+	 */
+	static class LineBuffer implements CharSequence
+	{
+		private char[] chars = new char[256];
+		private int length = 0;
+
+
+		void set(ByteBuffer buffer, int start, int end)
+		{
+			int n = end - start;
+			if(n > chars.length)
+				chars = new char[Math.max(n, chars.length * 2)];
+
+			for(int i=0; i<n; i++)
+			{
+				byte b = buffer.get(start + i);
+
+				if(b < 0)
+				{
+					decodeLine(buffer, start, end);
+					return;
+				}
+
+				chars[i] = (char) b;
+			}
+
+			length = n;
+		}
+
+
+		private void decodeLine(ByteBuffer buffer, int start, int end)
+		{
+			byte[] bytes = new byte[end - start];
+			for(int i=0; i<bytes.length; i++)
+				bytes[i] = buffer.get(start + i);
+
+			String s = new String(bytes, Charset.defaultCharset());
+			if(s.length() > chars.length)
+				chars = new char[s.length()];
+
+			s.getChars(0, s.length(), chars, 0);
+			length = s.length();
+		}
+
+
+		@Override
+		public int length()
+		{
+			return length;
+		}
+
+
+		@Override
+		public char charAt(int index)
+		{
+			return chars[index];
+		}
+
+
+		@Override
+		public CharSequence subSequence(int start, int end)
+		{
+			return new String(chars, start, end - start);
+		}
+
+
+		@Override
+		public String toString()
+		{
+			return new String(chars, 0, length);
+		}
+	}
+}
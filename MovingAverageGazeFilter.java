@@ -0,0 +1,78 @@
+package eu.opends.drivesense;
+
+/**
+ * Mean of the last n samples. The samples are kept in primitive ring buffers
+ * and the sums are updated incrementally, so each sample costs O(1)
+ * regardless of the window. Until the window is full the mean is taken over
+ * the samples received so far.
+ */
+public class MovingAverageGazeFilter extends GazeFilter
+{
+	private final double[] windowX;
+	private final double[] windowY;
+
+	private int next = 0;
+	private int count = 0;
+	private double sumX = 0;
+	private double sumY = 0;
+
+
+	public MovingAverageGazeFilter(int window)
+	{
+		windowX = new double[Math.max(1, window)];
+		windowY = new double[Math.max(1, window)];
+	}
+
+
+	public int getWindow()
+	{
+		return windowX.length;
+	}
+
+
+	@Override
+	public void filter(double rawX, double rawY, double timestamp)
+	{
+		if(count == windowX.length)
+		{
+			sumX -= windowX[next];
+			sumY -= windowY[next];
+		}
+		else
+			count++;
+
+		windowX[next] = rawX;
+		windowY[next] = rawY;
+		sumX += rawX;
+		sumY += rawY;
+
+		if(++next == windowX.length)
+		{
+			next = 0;
+
+			// recompute once per pass so rounding errors cannot accumulate
+			sumX = 0;
+			sumY = 0;
+			for(int i=0; i<count; i++)
+			{
+				sumX += windowX[i];
+				sumY += windowY[i];
+			}
+		}
+
+		x = sumX / count;
+		y = sumY / count;
+	}
+
+
+	@Override
+	public void reset()
+	{
+		next = 0;
+		count = 0;
+		sumX = 0;
+		sumY = 0;
+		x = Double.NaN;
+		y = Double.NaN;
+	}
+}
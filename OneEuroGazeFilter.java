@@ -0,0 +1,86 @@
+package eu.opends.drivesense;
+
+/**
+ * One Euro filter (Casiez et al., CHI 2012): a low-pass filter whose cutoff
+ * frequency rises with the speed of the signal. Slow movements and jitter
+ * during fixations are smoothed strongly, saccades pass with little lag.
+ *
+ * The defaults are tuned for normalized screen coordinates.
+ */
+public class OneEuroGazeFilter extends GazeFilter
+{
+	public static final double DEFAULT_MIN_CUTOFF = 1.0;
+	public static final double DEFAULT_BETA = 10.0;
+	public static final double DEFAULT_DERIVATIVE_CUTOFF = 1.0;
+
+	private final double minCutoff;
+	private final double beta;
+	private final double derivativeCutoff;
+
+	private double speedX = 0;
+	private double speedY = 0;
+	private double previousTimestamp = Double.NaN;
+
+
+	public OneEuroGazeFilter()
+	{
+		this(DEFAULT_MIN_CUTOFF, DEFAULT_BETA, DEFAULT_DERIVATIVE_CUTOFF);
+	}
+
+
+	/**
+	 * @param minCutoff cutoff frequency (Hz) while the gaze rests
+	 * @param beta increase of the cutoff frequency per unit of speed
+	 * @param derivativeCutoff cutoff frequency (Hz) of the speed estimate
+	 */
+	public OneEuroGazeFilter(double minCutoff, double beta, double derivativeCutoff)
+	{
+		this.minCutoff = minCutoff;
+		this.beta = beta;
+		this.derivativeCutoff = derivativeCutoff;
+	}
+
+
+	@Override
+	public void filter(double rawX, double rawY, double timestamp)
+	{
+		if(!hasValue())
+		{
+			x = rawX;
+			y = rawY;
+			previousTimestamp = timestamp;
+			return;
+		}
+
+		double dt = interval(previousTimestamp, timestamp);
+		previousTimestamp = timestamp;
+
+		double derivativeAlpha = alpha(derivativeCutoff, dt);
+		speedX += derivativeAlpha * ((rawX - x) / dt - speedX);
+		speedY += derivativeAlpha * ((rawY - y) / dt - speedY);
+
+		double speed = Math.sqrt(speedX * speedX + speedY * speedY);
+		double alpha = alpha(minCutoff + beta * speed, dt);
+
+		x += alpha * (rawX - x);
+		y += alpha * (rawY - y);
+	}
+
+
+	@Override
+	public void reset()
+	{
+		x = Double.NaN;
+		y = Double.NaN;
+		speedX = 0;
+		speedY = 0;
+		previousTimestamp = Double.NaN;
+	}
+
+
+	private static double alpha(double cutoff, double dt)
+	{
+		double tau = 1.0 / (2 * Math.PI * cutoff);
+		return 1.0 / (1.0 + tau / dt);
+	}
+}
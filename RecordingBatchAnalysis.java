@@ -0,0 +1,453 @@
+package eu.opends.drivesense;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Analyses all sessions below a recordings root (yyyy_MM_dd/NNN/, as
+ * created by EyeTrackerIO) in parallel. Every session is read by one task
+ * of a bounded ForkJoinPool - aoi_labels.aoic if present, else
+ * aoi_labels.csv - and its AOI statistics are computed with an
+ * AoiAggregator. The calling thread merges the session results in order
+ * of completion, so only the running sessions are held in memory.
+ *
+ * Usage: RecordingBatchAnalysis &lt;recordings root&gt; [threads] [aoi table.csv]
+ */
+public class RecordingBatchAnalysis
+{
+	public static final String TABLE_HEADER = "AOI,DwellTime,Glances,Sessions";
+
+	private final int parallelism;
+
+
+	public RecordingBatchAnalysis(int parallelism)
+	{
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+
+	/**
+	 * Dwell time and glances of one AOI, summed over sessions.
+	 */
+	public static class AoiTotals
+	{
+		private double dwellTime = 0;
+		private long glances = 0;
+		private int sessions = 0;
+
+
+		public double getDwellTime()
+		{
+			return dwellTime;
+		}
+
+
+		public long getGlances()
+		{
+			return glances;
+		}
+
+
+		public int getSessions()
+		{
+			return sessions;
+		}
+	}
+
+
+	/**
+	 * Result of one session, or of all sessions after merging.
+	 */
+	public static class Summary
+	{
+		private int sessions = 0;
+		private int failedSessions = 0;
+		private long rows = 0;
+		private long samples = 0;
+		private double firstTimestamp = Double.NaN;
+		private double lastTimestamp = Double.NaN;
+		private double gazeDuration = 0;
+		private final Map<String, AoiTotals> aois = new HashMap<String, AoiTotals>();
+
+
+		void addSample(double timestamp)
+		{
+			samples++;
+
+			if(!(timestamp >= firstTimestamp))
+				firstTimestamp = timestamp;
+			if(!(timestamp <= lastTimestamp))
+				lastTimestamp = timestamp;
+		}
+
+
+		void merge(Summary other)
+		{
+			sessions += other.sessions;
+			failedSessions += other.failedSessions;
+			rows += other.rows;
+			samples += other.samples;
+			gazeDuration += other.gazeDuration;
+
+			if(!Double.isNaN(other.firstTimestamp))
+			{
+				if(!(other.firstTimestamp >= firstTimestamp))
+					firstTimestamp = other.firstTimestamp;
+				if(!(other.lastTimestamp <= lastTimestamp))
+					lastTimestamp = other.lastTimestamp;
+			}
+
+			for(Map.Entry<String, AoiTotals> entry : other.aois.entrySet())
+			{
+				AoiTotals totals = aois.get(entry.getKey());
+				if(totals == null)
+				{
+					totals = new AoiTotals();
+					aois.put(entry.getKey(), totals);
+				}
+
+				totals.dwellTime += entry.getValue().dwellTime;
+				totals.glances += entry.getValue().glances;
+				totals.sessions += entry.getValue().sessions;
+			}
+		}
+
+
+		public int getSessions()
+		{
+			return sessions;
+		}
+
+
+		public int getFailedSessions()
+		{
+			return failedSessions;
+		}
+
+
+		public long getRows()
+		{
+			return rows;
+		}
+
+
+		public long getSamples()
+		{
+			return samples;
+		}
+
+
+		/**
+		 * Smallest tracker timestamp of all sessions; NaN without samples.
+		 */
+		public double getFirstTimestamp()
+		{
+			return firstTimestamp;
+		}
+
+
+		public double getLastTimestamp()
+		{
+			return lastTimestamp;
+		}
+
+
+		/**
+		 * Sum of the timestamp ranges of the single sessions (s).
+		 */
+		public double getGazeDuration()
+		{
+			return gazeDuration;
+		}
+
+
+		public Map<String, AoiTotals> getAois()
+		{
+			return aois;
+		}
+
+
+		/**
+		 * Writes the merged AOI table, sorted by AOI.
+		 */
+		public void writeAoiTable(File file) throws IOException
+		{
+			Writer writer = new BufferedWriter(new FileWriter(file));
+			try {
+				writer.write(TABLE_HEADER);
+				writer.write(AoiCsvCodec.NEW_LINE_SEPARATOR);
+
+				for(Map.Entry<String, AoiTotals> entry : new TreeMap<String, AoiTotals>(aois).entrySet())
+				{
+					AoiTotals totals = entry.getValue();
+					writer.write(entry.getKey() + AoiCsvCodec.COLUMN_DELIMITER
+							+ String.format(Locale.US, "%.3f", totals.dwellTime) + AoiCsvCodec.COLUMN_DELIMITER
+							+ totals.glances + AoiCsvCodec.COLUMN_DELIMITER + totals.sessions);
+					writer.write(AoiCsvCodec.NEW_LINE_SEPARATOR);
+				}
+			} finally {
+				writer.close();
+			}
+		}
+
+
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.US, "%d sessions (%d failed), %d rows, %d samples, %.1f h of gaze, %d AOIs, timestamps %.3f - %.3f",
+					sessions, failedSessions, rows, samples, gazeDuration / 3600, aois.size(), firstTimestamp, lastTimestamp);
+		}
+	}
+
+
+	/**
+	 * Returns the session directories below the recordings root that have an
+	 * annotation file, and the participant directories within them. Taken
+	 * from the session catalog if the root has one, else all second-level
+	 * directories, sorted by path.
+	 */
+	public static List<File> findSessions(File root)
+	{
+		List<File> sessions = new ArrayList<File>();
+
+		SessionCatalog catalog = new SessionCatalog(root);
+		if(catalog.exists())
+		{
+			try {
+
+				for(SessionCatalog.Session session : catalog.getSessions())
+				{
+					addRecordings(catalog.getDirectory(session), sessions);
+				}
+				return sessions;
+
+			} catch (IOException e) {
+				System.out.println("Could not read session catalog, listing " + root + " !!!");
+				e.printStackTrace();
+				sessions.clear();
+			}
+		}
+
+		File[] dateDirs = root.listFiles();
+		if(dateDirs == null)
+			return sessions;
+
+		Arrays.sort(dateDirs);
+
+		for(File dateDir : dateDirs)
+		{
+			File[] sessionDirs = dateDir.listFiles();
+			if(sessionDirs == null)
+				continue;
+
+			Arrays.sort(sessionDirs);
+
+			for(File sessionDir : sessionDirs)
+				addRecordings(sessionDir, sessions);
+		}
+
+		return sessions;
+	}
+
+
+	/**
+	 * Adds the session directory and the directories of its participants
+	 * (see EyeTrackerManager) that have an annotation file.
+	 */
+	private static void addRecordings(File sessionDir, List<File> recordings)
+	{
+		if(annotationFile(sessionDir) != null)
+			recordings.add(sessionDir);
+
+		File[] participantDirs = sessionDir.listFiles(File::isDirectory);
+		if(participantDirs == null)
+			return;
+
+		Arrays.sort(participantDirs);
+
+		for(File participantDir : participantDirs)
+			if(annotationFile(participantDir) != null)
+				recordings.add(participantDir);
+	}
+
+
+	/**
+	 * The columnar file of a session if present, else its compressed or plain
+	 * CSV file, or null.
+	 */
+	public static File annotationFile(File sessionDir)
+	{
+		File columnar = new File(sessionDir, ColumnarRecording.FILE_NAME);
+		if(columnar.isFile())
+			return columnar;
+
+		// before the CSV file, which createRecDir() leaves empty
+		File compressed = new File(sessionDir, BlockGzip.FILE_NAME);
+		if(compressed.isFile())
+			return compressed;
+
+		File csv = new File(sessionDir, EyeTrackerIO.ANNOTATIONS_FILENAME);
+		if(csv.isFile())
+			return csv;
+
+		return null;
+	}
+
+
+	/**
+	 * Reads one session. The AOI statistics are computed over the rows of
+	 * the "screen" surface; rows and samples are counted on all surfaces.
+	 */
+	public static Summary analyseSession(File sessionDir) throws IOException
+	{
+		final Summary summary = new Summary();
+		final AoiAggregator aggregator = new AoiAggregator();
+		final double[] screenRange = {Double.NaN, Double.NaN};
+
+		MappedAoiCsvReader.RowVisitor visitor = new MappedAoiCsvReader.RowVisitor() {
+			@Override
+			public void visit(AoiCsvCodec.Row row) {
+				summary.rows++;
+
+				boolean screen = "screen".equals(row.getSurface());
+				// rows without AOI have an empty AOI column
+				String aoi = row.getAOI();
+				int aoiId = (screen && aoi != null && !aoi.isEmpty()) ? aggregator.getDictionary().idOf(aoi) : AoiDictionary.NO_AOI;
+
+				double[] timestamps = row.getTimestamps();
+				for(int i=0; i<row.getTimestampCount(); i++)
+				{
+					summary.addSample(timestamps[i]);
+
+					if(screen)
+					{
+						aggregator.addSample(aoiId, timestamps[i]);
+
+						if(Double.isNaN(screenRange[0]))
+							screenRange[0] = timestamps[i];
+						screenRange[1] = timestamps[i];
+					}
+				}
+			}
+		};
+
+		File file = annotationFile(sessionDir);
+		if(file == null)
+			throw new IOException("No annotations in " + sessionDir);
+
+		if(file.getName().equals(ColumnarRecording.FILE_NAME))
+		{
+			ColumnarRecordingReader reader = new ColumnarRecordingReader(file);
+			try {
+				reader.forEach(visitor);
+			} finally {
+				reader.close();
+			}
+		}
+		else if(file.getName().equals(BlockGzip.FILE_NAME))
+			new BlockGzipReader(file).forEach(visitor, 2);
+		else
+			new MappedAoiCsvReader(file).forEach(visitor);
+
+		summary.sessions = 1;
+		if(!Double.isNaN(screenRange[0]))
+			summary.gazeDuration = screenRange[1] - screenRange[0];
+
+		AoiDictionary dictionary = aggregator.getDictionary();
+		for(int id=1; id<dictionary.size(); id++)
+		{
+			String aoi = dictionary.nameOf(id);
+
+			AoiTotals totals = new AoiTotals();
+			totals.dwellTime = aggregator.getDwellTime(aoi);
+			totals.glances = aggregator.getGlanceCount(aoi);
+			totals.sessions = 1;
+			summary.aois.put(aoi, totals);
+		}
+
+		return summary;
+	}
+
+
+	/**
+	 * Analyses all sessions below the root and merges their results.
+	 * Sessions that cannot be read are counted as failed.
+	 */
+	public Summary analyse(File root)
+	{
+		return analyse(findSessions(root));
+	}
+
+
+	public Summary analyse(List<File> sessions)
+	{
+		Summary total = new Summary();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+		try {
+
+			CompletionService<Summary> completion = new ExecutorCompletionService<Summary>(pool);
+			for(final File session : sessions)
+				completion.submit(() -> analyseSession(session));
+
+			for(int i=0; i<sessions.size(); i++)
+			{
+				Future<Summary> result = completion.take();
+				try {
+					total.merge(result.get());
+				} catch (ExecutionException e) {
+					total.failedSessions++;
+					System.out.println("Error in RecordingBatchAnalysis !!!");
+					e.getCause().printStackTrace();
+				}
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdownNow();
+		}
+
+		return total;
+	}
+
+
+	public static void main(String[] args)
+	{
+		if(args.length < 1 || args.length > 3)
+		{
+			System.err.println("Usage: RecordingBatchAnalysis <recordings root> [threads] [aoi table.csv]");
+			return;
+		}
+
+		int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		long start = System.currentTimeMillis();
+		Summary summary = new RecordingBatchAnalysis(threads).analyse(new File(args[0]));
+		System.out.println(summary + " in " + (System.currentTimeMillis() - start) + " ms");
+
+		if(args.length > 2)
+		{
+			try {
+				summary.writeAoiTable(new File(args[2]));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
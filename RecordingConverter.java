@@ -0,0 +1,114 @@
+package eu.opends.drivesense;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Converts recordings between aoi_labels.csv and the columnar format.
+ *
+ * Usage: RecordingConverter &lt;input&gt; &lt;output&gt;
+ * The direction is taken from the extension of the input file.
+ */
+public class RecordingConverter
+{
+	public static long csvToColumnar(File csvFile, File columnarFile) throws IOException
+	{
+		final ColumnarRecordingWriter writer = new ColumnarRecordingWriter(columnarFile);
+		final IOException[] error = new IOException[1];
+
+		try {
+
+			long rows = new MappedAoiCsvReader(csvFile).forEach(new MappedAoiCsvReader.RowVisitor() {
+				@Override
+				public void visit(AoiCsvCodec.Row row) {
+					if(error[0] != null)
+						return;
+					try {
+						writer.writeRow(row.getSurface(), row.getAOI(), row.getTimestamps(), 0, row.getTimestampCount());
+					} catch (IOException e) {
+						error[0] = e;
+					}
+				}
+			});
+
+			if(error[0] != null)
+				throw error[0];
+
+			return rows;
+
+		} finally {
+			writer.close();
+		}
+	}
+
+
+	public static long columnarToCsv(File columnarFile, File csvFile) throws IOException
+	{
+		ColumnarRecordingReader reader = new ColumnarRecordingReader(columnarFile);
+		final Writer writer = new BufferedWriter(new FileWriter(csvFile), 64 * 1024);
+		final AoiCsvCodec codec = new AoiCsvCodec();
+		final IOException[] error = new IOException[1];
+		final long[] rows = new long[1];
+
+		try {
+
+			writer.write(AoiCsvCodec.FILE_HEADER);
+			writer.write(AoiCsvCodec.NEW_LINE_SEPARATOR);
+
+			reader.forEach(new MappedAoiCsvReader.RowVisitor() {
+				@Override
+				public void visit(AoiCsvCodec.Row row) {
+					if(error[0] != null)
+						return;
+					try {
+						codec.reset();
+						codec.appendRow(row.getSurface(), row.getAOI(), row.getTimestamps(), 0, row.getTimestampCount());
+						writer.write(codec.getChars(), 0, codec.length());
+						rows[0]++;
+					} catch (IOException e) {
+						error[0] = e;
+					}
+				}
+			});
+
+			if(error[0] != null)
+				throw error[0];
+
+			return rows[0];
+
+		} finally {
+			writer.close();
+			reader.close();
+		}
+	}
+
+
+	public static void main(String[] args)
+	{
+		if(args.length != 2)
+		{
+			System.err.println("Usage: RecordingConverter <input> <output>");
+			return;
+		}
+
+		File input = new File(args[0]);
+		File output = new File(args[1]);
+
+		try {
+
+			long rows;
+			if(input.getName().endsWith(".csv"))
+				rows = csvToColumnar(input, output);
+			else
+				rows = columnarToCsv(input, output);
+
+			System.out.println("Converted " + rows + " rows: " + input.length() + " -> " + output.length() + " bytes");
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
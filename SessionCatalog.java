@@ -0,0 +1,427 @@
+package eu.opends.drivesense;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Persistent index of the sessions below a recordings root
+ * (yyyy_MM_dd/NNN/). The index (sessions.idx) is an append-only text file
+ * with one record per line:
+ *
+ *   START,date,number,startTime
+ *   END,date,number,endTime,csvBytes,columnarBytes,rows
+ *
+ * Session numbers are allocated under an exclusive lock on sessions.lock,
+ * so simulators sharing a disk never get the same directory. Every catalog
+ * keeps the parsed index in memory and only reads the records appended
+ * since its last read, so creating a session does not list any directory.
+ * Dates without catalog entries (recorded before the catalog existed) are
+ * listed once to continue their numbering.
+ */
+public class SessionCatalog
+{
+	public static final String FILE_NAME = "sessions.idx";
+	public static final String LOCK_FILE_NAME = "sessions.lock";
+
+	private static final String START = "START";
+	private static final String END = "END";
+
+	// FileLock is per JVM, threads of the same JVM are serialized here
+	private static final Object JVM_LOCK = new Object();
+
+	private final File root;
+	private final File indexFile;
+	private final File lockFile;
+
+	private final List<Session> sessions = new ArrayList<Session>();
+	private final Map<String, Session> byPath = new HashMap<String, Session>();
+	// highest session number per date
+	private final Map<String, Integer> lastNumber = new HashMap<String, Integer>();
+	private long readOffset = 0;
+
+
+	public static class Session
+	{
+		private final String date;
+		private final int number;
+		private final long startTime;
+		private long endTime = -1;
+		private long csvBytes = -1;
+		private long columnarBytes = -1;
+		private long rows = -1;
+
+
+		Session(String date, int number, long startTime)
+		{
+			this.date = date;
+			this.number = number;
+			this.startTime = startTime;
+		}
+
+
+		public String getDate()
+		{
+			return date;
+		}
+
+
+		public int getNumber()
+		{
+			return number;
+		}
+
+
+		/**
+		 * Path relative to the recordings root, e.g. "2017_05_30/003".
+		 */
+		public String getPath()
+		{
+			return path(date, number);
+		}
+
+
+		public long getStartTime()
+		{
+			return startTime;
+		}
+
+
+		/**
+		 * Time the session was closed, -1 while open (or after a crash).
+		 */
+		public long getEndTime()
+		{
+			return endTime;
+		}
+
+
+		public boolean isClosed()
+		{
+			return endTime >= 0;
+		}
+
+
+		public long getCsvBytes()
+		{
+			return csvBytes;
+		}
+
+
+		public long getColumnarBytes()
+		{
+			return columnarBytes;
+		}
+
+
+		public long getRows()
+		{
+			return rows;
+		}
+	}
+
+
+	public SessionCatalog(File root)
+	{
+		this.root = root;
+		this.indexFile = new File(root, FILE_NAME);
+		this.lockFile = new File(root, LOCK_FILE_NAME);
+	}
+
+
+	public File getRoot()
+	{
+		return root;
+	}
+
+
+	public File getDirectory(Session session)
+	{
+		return new File(new File(root, session.date), dirName(session.number));
+	}
+
+
+	public boolean exists()
+	{
+		return indexFile.isFile();
+	}
+
+
+	/**
+	 * Allocates the next session number of the date, creates its directory
+	 * and appends the START record.
+	 */
+	public synchronized Session createSession(String date) throws IOException
+	{
+		synchronized(JVM_LOCK)
+		{
+			root.mkdirs();
+
+			FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock lock = lockChannel.lock();
+
+			try {
+
+				readNewRecords();
+
+				Integer last = lastNumber.get(date);
+				int number = (last == null) ? scanDateDir(date) + 1 : last + 1;
+
+				File dir = new File(new File(root, date), dirName(number));
+
+				// directories created without catalog are skipped
+				while(!dir.mkdirs())
+				{
+					if(!dir.exists())
+						throw new IOException("Could not create session directory " + dir);
+
+					number++;
+					dir = new File(new File(root, date), dirName(number));
+				}
+
+				Session session = new Session(date, number, System.currentTimeMillis());
+				append(START + "," + date + "," + number + "," + session.startTime);
+				add(session);
+
+				return session;
+
+			} finally {
+				lock.release();
+				lockChannel.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Appends the END record with the file sizes of the session directory,
+	 * including the recordings of the participants in its subdirectories.
+	 */
+	public synchronized void closeSession(Session session, long rows) throws IOException
+	{
+		File dir = getDirectory(session);
+		long csvBytes = fileSize(dir, EyeTrackerIO.ANNOTATIONS_FILENAME);
+		long columnarBytes = fileSize(dir, ColumnarRecording.FILE_NAME);
+		long endTime = System.currentTimeMillis();
+
+		synchronized(JVM_LOCK)
+		{
+			root.mkdirs();
+
+			FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock lock = lockChannel.lock();
+
+			try {
+
+				readNewRecords();
+				append(END + "," + session.date + "," + session.number + "," + endTime + ","
+						+ csvBytes + "," + columnarBytes + "," + rows);
+
+			} finally {
+				lock.release();
+				lockChannel.close();
+			}
+		}
+
+		session.endTime = endTime;
+		session.csvBytes = csvBytes;
+		session.columnarBytes = columnarBytes;
+		session.rows = rows;
+	}
+
+
+	/**
+	 * All sessions of the catalog in order of creation.
+	 */
+	public synchronized List<Session> getSessions() throws IOException
+	{
+		readNewRecords();
+		return new ArrayList<Session>(sessions);
+	}
+
+
+	/**
+	 * The session of the date created last, by any simulator, or null.
+	 */
+	public synchronized Session getLastSession(String date) throws IOException
+	{
+		readNewRecords();
+
+		Integer last = lastNumber.get(date);
+		return (last == null) ? null : byPath.get(path(date, last));
+	}
+
+
+	/**
+	 * Reads the records appended since the previous read. Incomplete last
+	 * lines (a writer crashed mid-record) are skipped until completed.
+	 */
+	private void readNewRecords() throws IOException
+	{
+		if(!indexFile.isFile())
+			return;
+
+		RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+		try {
+
+			long length = file.length();
+			if(length <= readOffset)
+				return;
+
+			byte[] bytes = new byte[(int) (length - readOffset)];
+			file.seek(readOffset);
+			file.readFully(bytes);
+
+			int lineStart = 0;
+			for(int i=0; i<bytes.length; i++)
+			{
+				if(bytes[i] != '\n')
+					continue;
+
+				parseRecord(new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8).trim());
+				lineStart = i + 1;
+			}
+
+			readOffset += lineStart;
+
+		} finally {
+			file.close();
+		}
+	}
+
+
+	private void parseRecord(String line)
+	{
+		String[] fields = line.split(",");
+
+		try {
+
+			if(fields[0].equals(START) && fields.length >= 4)
+				add(new Session(fields[1], Integer.parseInt(fields[2]), Long.parseLong(fields[3])));
+
+			else if(fields[0].equals(END) && fields.length >= 7)
+			{
+				Session session = byPath.get(path(fields[1], Integer.parseInt(fields[2])));
+				if(session != null)
+				{
+					session.endTime = Long.parseLong(fields[3]);
+					session.csvBytes = Long.parseLong(fields[4]);
+					session.columnarBytes = Long.parseLong(fields[5]);
+					session.rows = Long.parseLong(fields[6]);
+				}
+			}
+
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid record in session catalog: " + line + " !!!");
+		}
+	}
+
+
+	private void add(Session session)
+	{
+		sessions.add(session);
+		byPath.put(session.getPath(), session);
+
+		Integer last = lastNumber.get(session.date);
+		if(last == null || session.number > last)
+			lastNumber.put(session.date, session.number);
+	}
+
+
+	private void append(String record) throws IOException
+	{
+		// terminate a record left incomplete by a crashed writer
+		if(indexFile.length() > readOffset)
+			record = "\n" + record;
+
+		FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+
+		// the caller applies the record itself
+		readOffset = indexFile.length();
+	}
+
+
+	/**
+	 * Highest numeric directory name of a date without catalog entries, -1
+	 * if there is none.
+	 */
+	private int scanDateDir(String date)
+	{
+		int last = -1;
+
+		String[] names = new File(root, date).list();
+		if(names == null)
+			return last;
+
+		for(String name : names)
+		{
+			try {
+				last = Math.max(last, Integer.parseInt(name));
+			} catch (NumberFormatException e) {
+				// not a session directory
+			}
+		}
+
+		return last;
+	}
+
+
+	private static long fileSize(File file)
+	{
+		return file.isFile() ? file.length() : -1;
+	}
+
+
+	/**
+	 * Total size of the named file in dir and its subdirectories, -1 if
+	 * there is none.
+	 */
+	private static long fileSize(File dir, String name)
+	{
+		long size = fileSize(new File(dir, name));
+
+		File[] subDirs = dir.listFiles(File::isDirectory);
+		if(subDirs != null)
+		{
+			for(File subDir : subDirs)
+			{
+				long subSize = fileSize(new File(subDir, name));
+				if(subSize >= 0)
+					size = Math.max(size, 0) + subSize;
+			}
+		}
+
+		return size;
+	}
+
+
+	private static String path(String date, int number)
+	{
+		return date + "/" + dirName(number);
+	}
+
+
+	private static String dirName(int number)
+	{
+		return String.format(Locale.ROOT, "%03d", number);
+	}
+}
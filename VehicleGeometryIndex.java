@@ -0,0 +1,233 @@
+package eu.opends.drivesense;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+
+import eu.opends.car.Car;
+import eu.opends.main.Simulator;
+import eu.opends.tools.Util;
+import eu.opends.traffic.PhysicalTraffic;
+import eu.opends.traffic.TrafficCar;
+import eu.opends.traffic.TrafficObject;
+
+/**
+ * Maps every geometry of the traffic and multi-driver vehicles to its
+ * vehicle, so the vehicle a gaze hit belongs to is found with a single
+ * identity lookup. update() reconciles the index with the vehicles currently
+ * in the simulation; the geometries of a vehicle are only collected when the
+ * vehicle appears. getVersion() changes whenever vehicles appear or
+ * disappear.
+ */
+public class VehicleGeometryIndex
+{
+	public enum VehicleType
+	{
+		Traffic, MultiDriver;
+	}
+
+
+	public static class Vehicle
+	{
+		private final String name;
+		private final VehicleType type;
+		private final Node node;
+		private final List<Geometry> geometries;
+		private int generation;
+
+		private Vehicle(String name, VehicleType type, Node node)
+		{
+			this.name = name;
+			this.type = type;
+			this.node = node;
+			this.geometries = Util.getAllGeometries(node);
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public VehicleType getType()
+		{
+			return type;
+		}
+
+		public Node getNode()
+		{
+			return node;
+		}
+
+		public List<Geometry> getGeometries()
+		{
+			return geometries;
+		}
+	}
+
+
+	private final Simulator sim;
+	private final Node sceneNode;
+
+	private final Map<Node, Vehicle> vehicles = new IdentityHashMap<Node, Vehicle>();
+	private final Map<Geometry, Vehicle> vehicleByGeometry = new IdentityHashMap<Geometry, Vehicle>();
+
+	// multi-driver vehicles are looked up by name only once
+	private final HashMap<String, Node> multiDriverNodes = new HashMap<String, Node>();
+
+	private int generation = 0;
+	private long version = 0;
+
+
+	public VehicleGeometryIndex(Simulator sim)
+	{
+		this.sim = sim;
+		this.sceneNode = sim.getSceneNode();
+	}
+
+
+	/**
+	 * Adds vehicles that appeared and removes vehicles that disappeared since
+	 * the last call. Call once per frame before getVehicle().
+	 */
+	public void update()
+	{
+		generation++;
+
+		List<TrafficObject> trafficObjects = PhysicalTraffic.getTrafficObjectList();
+		if(trafficObjects != null)
+		{
+			for(int i=0; i<trafficObjects.size(); i++)
+			{
+				TrafficObject trafficObject = trafficObjects.get(i);
+
+				if(trafficObject instanceof TrafficCar)
+					touch(trafficObject.getName(), VehicleType.Traffic, ((Car) trafficObject).getCarNode());
+			}
+		}
+
+		if(sim.getMultiDriverClient() != null)
+		{
+			ArrayList<String> registeredVehicles = sim.getMultiDriverClient().getRegisteredVehicles();
+
+			if(registeredVehicles != null)
+			{
+				for(int i=0; i<registeredVehicles.size(); i++)
+				{
+					String vehicleID = registeredVehicles.get(i);
+					touch(vehicleID, VehicleType.MultiDriver, multiDriverNode(vehicleID));
+				}
+
+				if(multiDriverNodes.size() > registeredVehicles.size())
+					multiDriverNodes.keySet().retainAll(registeredVehicles);
+			}
+		}
+		else
+			multiDriverNodes.clear();
+
+		// remove vehicles not seen in this update
+		Iterator<Vehicle> it = vehicles.values().iterator();
+		while(it.hasNext())
+		{
+			Vehicle vehicle = it.next();
+			if(vehicle.generation != generation)
+			{
+				for(Geometry geometry : vehicle.geometries)
+					if(vehicleByGeometry.get(geometry) == vehicle)
+						vehicleByGeometry.remove(geometry);
+
+				it.remove();
+				version++;
+			}
+		}
+	}
+
+
+	/**
+	 * Forgets all vehicles, e.g. after the model of a vehicle has been
+	 * exchanged. They are indexed again by the next update().
+	 */
+	public void clear()
+	{
+		vehicles.clear();
+		vehicleByGeometry.clear();
+		multiDriverNodes.clear();
+		version++;
+	}
+
+
+	/**
+	 * Returns the vehicle the given geometry belongs to, or null.
+	 */
+	public Vehicle getVehicle(Geometry geometry)
+	{
+		return vehicleByGeometry.get(geometry);
+	}
+
+
+	public int size()
+	{
+		return vehicles.size();
+	}
+
+
+	public Collection<Vehicle> getVehicles()
+	{
+		return vehicles.values();
+	}
+
+
+	public long getVersion()
+	{
+		return version;
+	}
+
+
+	private void touch(String name, VehicleType type, Node node)
+	{
+		if(node == null)
+			return;
+
+		Vehicle vehicle = vehicles.get(node);
+
+		if(vehicle == null)
+		{
+			vehicle = new Vehicle(name, type, node);
+			vehicles.put(node, vehicle);
+
+			for(Geometry geometry : vehicle.geometries)
+				vehicleByGeometry.put(geometry, vehicle);
+
+			version++;
+		}
+
+		vehicle.generation = generation;
+	}
+
+
+	private Node multiDriverNode(String vehicleID)
+	{
+		Node node = multiDriverNodes.get(vehicleID);
+
+		// look up again if the node has been removed from the scene
+		if(node == null || node.getParent() == null)
+		{
+			Spatial child = sceneNode.getChild(vehicleID);
+			node = (child instanceof Node) ? (Node) child : null;
+
+			if(node != null)
+				multiDriverNodes.put(vehicleID, node);
+			else
+				multiDriverNodes.remove(vehicleID);
+		}
+
+		return node;
+	}
+}
@@ -0,0 +1,25 @@
+package eu.opends.drivesense.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so allocation rates are reported
+ * next to the timings. Accepts the usual JMH command line options, e.g. a
+ * benchmark name pattern; without one all benchmarks are run.
+ */
+public class BenchmarkMain
+{
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,98 @@
+package eu.opends.drivesense.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import eu.opends.drivesense.AoiCsvCodec;
+import eu.opends.drivesense.EyeTrackerIO;
+import eu.opends.drivesense.MappedAoiCsvReader;
+import eu.opends.drivesense.domain.GazePosition;
+
+/**
+ * Reading a whole aoi_labels.csv: into GazePosition objects, streamed to a
+ * visitor, and split over all cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CsvReadBenchmark
+{
+	@Param({"100000", "1000000"})
+	public int rows;
+
+	private File file;
+
+
+	@Setup
+	public void setup() throws IOException
+	{
+		file = Fixtures.annotationFile(rows);
+	}
+
+
+	@TearDown
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+
+	static class CountingVisitor implements MappedAoiCsvReader.RowVisitor
+	{
+		long timestamps = 0;
+
+		@Override
+		public void visit(AoiCsvCodec.Row row)
+		{
+			timestamps += row.getTimestampCount();
+		}
+	}
+
+
+	@Benchmark
+	public List<GazePosition> readCsvFile()
+	{
+		return EyeTrackerIO.readCsvFile(file.getPath());
+	}
+
+
+	@Benchmark
+	public long readCsvFileVisitor()
+	{
+		CountingVisitor visitor = new CountingVisitor();
+		EyeTrackerIO.readCsvFile(file.getPath(), visitor);
+		return visitor.timestamps;
+	}
+
+
+	@Benchmark
+	public long readParallel() throws IOException
+	{
+		List<CountingVisitor> visitors = new MappedAoiCsvReader(file).forEachParallel(
+				new MappedAoiCsvReader.VisitorFactory<CountingVisitor>() {
+					@Override
+					public CountingVisitor create()
+					{
+						return new CountingVisitor();
+					}
+				}, Runtime.getRuntime().availableProcessors());
+
+		long timestamps = 0;
+		for(CountingVisitor visitor : visitors)
+			timestamps += visitor.timestamps;
+
+		return timestamps;
+	}
+}
@@ -0,0 +1,118 @@
+package eu.opends.drivesense.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import eu.opends.drivesense.AoiCsvCodec;
+import eu.opends.drivesense.EyeTrackerIO;
+import eu.opends.drivesense.GazeBatch;
+import eu.opends.drivesense.domain.GazePosition;
+
+/**
+ * Writing one annotation row: the synchronous EyeTrackerIO.writeGazeToCSV()
+ * path (which flushes every row), the row formatting of the former
+ * implementation and the formatting of AoiCsvCodec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CsvWriteBenchmark
+{
+	private static final String AOI = "/Root Node/scene/trafficCar1/body-geom-0";
+
+	private GazePosition[] rows;
+	private int next = 0;
+
+	private File dir;
+	private File file;
+	private EyeTrackerIO eyeTrackerIO;
+	private final AoiCsvCodec codec = new AoiCsvCodec();
+	private final StringBuilder legacy = new StringBuilder();
+
+
+	@Setup
+	public void setup() throws IOException
+	{
+		GazeBatch samples = Fixtures.samples();
+
+		rows = new GazePosition[samples.size() / 4];
+		for(int r=0; r<rows.length; r++)
+		{
+			rows[r] = new GazePosition("screen", AOI);
+			for(int i=0; i<4; i++)
+				rows[r].getTimestamps().add(samples.getTimestamp(r * 4 + i));
+		}
+
+		dir = Files.createTempDirectory("aoi_labels").toFile();
+		file = new File(dir, EyeTrackerIO.ANNOTATIONS_FILENAME);
+
+		EyeTrackerIO.setAsyncWriting(false);
+		eyeTrackerIO = new EyeTrackerIO("bench");
+		eyeTrackerIO.writeHeaderData(dir.getPath() + File.separator);
+	}
+
+
+	@TearDown
+	public void tearDown() throws IOException
+	{
+		eyeTrackerIO.closeStream();
+		file.delete();
+		dir.delete();
+	}
+
+
+	private GazePosition nextRow()
+	{
+		GazePosition row = rows[next];
+		next = (next + 1) % rows.length;
+		return row;
+	}
+
+
+	@Benchmark
+	public void writeGazeToCSV()
+	{
+		eyeTrackerIO.writeGazeToCSV(nextRow());
+	}
+
+
+	@Benchmark
+	public int formatLegacy()
+	{
+		GazePosition etData = nextRow();
+
+		// the appends of the former writeGazeToCSV(), into memory
+		legacy.setLength(0);
+		legacy.append(etData.getSrf()).append(',').append(etData.getAOI()).append(',');
+
+		int nTimestamps = etData.getTimestamps().size();
+		for(int i=0; i<nTimestamps-1; i++)
+			legacy.append(String.valueOf((double) etData.getTimestamps().get(i))).append(',');
+
+		legacy.append(String.valueOf((double) etData.getTimestamps().get(nTimestamps-1))).append('\n');
+
+		return legacy.length();
+	}
+
+
+	@Benchmark
+	public int formatCodec()
+	{
+		GazePosition etData = nextRow();
+
+		codec.reset();
+		codec.appendRow(etData.getSrf(), etData.getAOI(), etData.getTimestamps());
+		return codec.length();
+	}
+}
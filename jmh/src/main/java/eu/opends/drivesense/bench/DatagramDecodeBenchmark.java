@@ -0,0 +1,106 @@
+package eu.opends.drivesense.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import eu.opends.drivesense.GazeBatch;
+import eu.opends.drivesense.GazeDatagramDecoder;
+
+/**
+ * Decoding of one recorded datagram: the json-simple tree used by update()
+ * before, the streaming decoder on a String and on the received bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DatagramDecodeBenchmark
+{
+	private String[] datagrams;
+	private ByteBuffer[] buffers;
+	private int next = 0;
+
+	private final GazeDatagramDecoder decoder = new GazeDatagramDecoder();
+	private final GazeBatch batch = new GazeBatch(64);
+
+
+	@Setup
+	public void setup() throws IOException
+	{
+		List<String> lines = Fixtures.datagrams();
+
+		datagrams = lines.toArray(new String[lines.size()]);
+		buffers = new ByteBuffer[datagrams.length];
+
+		for(int i=0; i<datagrams.length; i++)
+		{
+			byte[] bytes = datagrams[i].getBytes(StandardCharsets.UTF_8);
+			buffers[i] = ByteBuffer.allocateDirect(bytes.length);
+			buffers[i].put(bytes).flip();
+		}
+	}
+
+
+	private int nextIndex()
+	{
+		int index = next;
+		next = (next + 1) % datagrams.length;
+		return index;
+	}
+
+
+	@Benchmark
+	public void jsonSimple(Blackhole blackhole) throws ParseException
+	{
+		// what update() did for every datagram
+		JSONObject jsonObj = (JSONObject) new JSONParser().parse(datagrams[nextIndex()]);
+		blackhole.consume(jsonObj.get("srf"));
+
+		JSONArray jsonArray = (JSONArray) jsonObj.get("data");
+		for(int i=0; i<jsonArray.size(); i++)
+		{
+			JSONObject jsonGaze = (JSONObject) jsonArray.get(i);
+			JSONArray normPos = (JSONArray) jsonGaze.get("norm_pos");
+
+			blackhole.consume((double) (Double) jsonGaze.get("confidence"));
+			blackhole.consume((double) (Double) jsonGaze.get("timestamp"));
+			blackhole.consume((double) (Double) normPos.get(0));
+			blackhole.consume((double) (Double) normPos.get(1));
+		}
+	}
+
+
+	@Benchmark
+	public int streamingString()
+	{
+		batch.clear();
+		decoder.decode(datagrams[nextIndex()], batch);
+		return batch.size();
+	}
+
+
+	@Benchmark
+	public int streamingBytes()
+	{
+		ByteBuffer buffer = buffers[nextIndex()];
+
+		batch.clear();
+		decoder.decode(buffer.duplicate(), batch);
+		return batch.size();
+	}
+}
@@ -0,0 +1,162 @@
+package eu.opends.drivesense.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.shape.Box;
+
+import eu.opends.drivesense.AoiCsvCodec;
+import eu.opends.drivesense.GazeBatch;
+import eu.opends.drivesense.GazeDatagramDecoder;
+
+/**
+ * Shared inputs of the benchmarks: the recorded gaze datagrams, annotation
+ * files generated from them and synthetic scenes for picking.
+ */
+public class Fixtures
+{
+	public static final String DATAGRAMS = "/fixtures/gaze_datagrams.jsonl";
+
+	private static List<String> datagrams;
+
+
+	/**
+	 * One datagram per line, as sent by the eye-tracker.
+	 */
+	public static synchronized List<String> datagrams() throws IOException
+	{
+		if(datagrams == null)
+		{
+			InputStream in = Fixtures.class.getResourceAsStream(DATAGRAMS);
+			if(in == null)
+				throw new IOException("Fixture not found: " + DATAGRAMS);
+
+			List<String> lines = new ArrayList<String>();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			try {
+				String line;
+				while((line = reader.readLine()) != null)
+					if(!line.isEmpty())
+						lines.add(line);
+			} finally {
+				reader.close();
+			}
+
+			datagrams = lines;
+		}
+
+		return datagrams;
+	}
+
+
+	/**
+	 * All samples of the datagram fixture in one batch.
+	 */
+	public static GazeBatch samples() throws IOException
+	{
+		GazeBatch batch = new GazeBatch(4096);
+		GazeDatagramDecoder decoder = new GazeDatagramDecoder();
+
+		for(String datagram : datagrams())
+			decoder.decode(datagram, batch);
+
+		return batch;
+	}
+
+
+	/**
+	 * Writes an aoi_labels.csv with the given number of rows. The timestamps
+	 * are taken from the datagram fixture, the AOIs from a small set of
+	 * scene paths.
+	 */
+	public static File annotationFile(int rows) throws IOException
+	{
+		GazeBatch samples = samples();
+		String[] aois = {
+			null,
+			"/Root Node/scene/Models/Road/road-geom-0",
+			"/Root Node/scene/Models/Car/chassis-geom-3",
+			"/Root Node/scene/trafficCar1/body-geom-0",
+			"/Root Node/scene/Models/Buildings/house12-geom-1",
+			"/Root Node/scene/Models/Signs/speedLimit50-geom-0"
+		};
+
+		File file = File.createTempFile("aoi_labels", ".csv");
+		file.deleteOnExit();
+
+		AoiCsvCodec codec = new AoiCsvCodec();
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(AoiCsvCodec.FILE_HEADER);
+			writer.write(AoiCsvCodec.NEW_LINE_SEPARATOR);
+
+			double[] timestamps = new double[8];
+			int sample = 0;
+			double offset = 0;
+
+			for(int row=0; row<rows; row++)
+			{
+				int count = 2 + row % 5;
+				for(int i=0; i<count; i++)
+				{
+					if(sample == samples.size())
+					{
+						// continue the recording after its last sample
+						sample = 0;
+						offset += samples.getTimestamp(samples.size() - 1) - samples.getTimestamp(0);
+					}
+					timestamps[i] = samples.getTimestamp(sample++) + offset;
+				}
+
+				codec.reset();
+				codec.appendRow("screen", aois[(row / 40) % aois.length], timestamps, 0, count);
+				writer.write(codec.getChars(), 0, codec.length());
+			}
+		} finally {
+			writer.close();
+		}
+
+		return file;
+	}
+
+
+	/**
+	 * A scene of boxes on a square grid in the x/z plane, in front of a
+	 * camera at the origin looking down the z axis. Every box gets its own
+	 * group node, like the models of a driving scene.
+	 */
+	public static Node scene(int size)
+	{
+		Node root = new Node("Root Node");
+		Random random = new Random(size);
+
+		int side = (int) Math.ceil(Math.sqrt(size));
+
+		for(int i=0; i<size; i++)
+		{
+			Node model = new Node("model" + i);
+
+			Geometry geometry = new Geometry("box" + i, new Box(0.5f + random.nextFloat(), 0.5f + random.nextFloat(), 0.5f));
+			model.attachChild(geometry);
+
+			float x = (i % side - side / 2f) * 4;
+			float z = 5 + (i / side) * 4;
+			model.setLocalTranslation(x, random.nextFloat() * 3 - 1.5f, z);
+
+			root.attachChild(model);
+		}
+
+		root.updateGeometricState();
+		return root;
+	}
+}
@@ -0,0 +1,118 @@
+package eu.opends.drivesense.bench;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.jme3.math.Vector2f;
+
+import eu.opends.drivesense.GazeBatch;
+import eu.opends.drivesense.GazeFilter;
+
+/**
+ * Smoothing of one gaze sample: the LinkedList window of the former
+ * EyeTrackerProc.processGazeLIFO() against the GazeFilter implementations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GazeSmoothingBenchmark
+{
+	@Param({"10", "50", "200"})
+	public int smoothingFactor;
+
+	private double[] x, y, t;
+	private int next = 0;
+
+	private final LinkedList<Vector2f> gazeStorage = new LinkedList<Vector2f>();
+	private GazeFilter movingAverage;
+	private GazeFilter oneEuro;
+	private GazeFilter kalman;
+
+
+	@Setup
+	public void setup() throws IOException
+	{
+		GazeBatch samples = Fixtures.samples();
+
+		x = new double[samples.size()];
+		y = new double[samples.size()];
+		t = new double[samples.size()];
+
+		for(int i=0; i<samples.size(); i++)
+		{
+			x[i] = samples.getNormX(i);
+			y[i] = samples.getNormY(i);
+			t[i] = samples.getTimestamp(i);
+		}
+
+		movingAverage = GazeFilter.create(smoothingFactor);
+		oneEuro = GazeFilter.create(GazeFilter.ONE_EURO);
+		kalman = GazeFilter.create(GazeFilter.KALMAN);
+	}
+
+
+	private int nextIndex()
+	{
+		int index = next;
+		next = (next + 1) % x.length;
+		return index;
+	}
+
+
+	@Benchmark
+	public Vector2f processGazeLIFO()
+	{
+		int i = nextIndex();
+		Vector2f gazePos = new Vector2f((float) x[i], (float) y[i]);
+
+		// former EyeTrackerProc.processGazeLIFO()
+		Vector2f sum = new Vector2f(0,0);
+
+		gazeStorage.addLast(gazePos);
+
+		for (Vector2f vector : gazeStorage)
+			sum.addLocal(vector);
+
+		if(gazeStorage.size() >= smoothingFactor)
+			gazeStorage.removeFirst();
+
+		return sum.divide(smoothingFactor);
+	}
+
+
+	@Benchmark
+	public double movingAverage()
+	{
+		int i = nextIndex();
+		movingAverage.filter(x[i], y[i], t[i]);
+		return movingAverage.getX() + movingAverage.getY();
+	}
+
+
+	@Benchmark
+	public double oneEuro()
+	{
+		int i = nextIndex();
+		oneEuro.filter(x[i], y[i], t[i]);
+		return oneEuro.getX() + oneEuro.getY();
+	}
+
+
+	@Benchmark
+	public double kalman()
+	{
+		int i = nextIndex();
+		kalman.filter(x[i], y[i], t[i]);
+		return kalman.getX() + kalman.getY();
+	}
+}
@@ -0,0 +1,86 @@
+package eu.opends.drivesense.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.jme3.collision.CollisionResult;
+import com.jme3.collision.CollisionResults;
+import com.jme3.math.Ray;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Node;
+
+import eu.opends.drivesense.GazePickingIndex;
+
+/**
+ * Picking the gaze target in synthetic scenes of increasing size: the full
+ * Node.collideWith() of the former identifyAOI() against GazePickingIndex.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PickingBenchmark
+{
+	private static final int RAYS = 256;
+
+	@Param({"100", "1000", "10000"})
+	public int sceneSize;
+
+	private Node scene;
+	private GazePickingIndex index;
+	private Ray[] rays;
+	private int next = 0;
+
+
+	@Setup
+	public void setup()
+	{
+		scene = Fixtures.scene(sceneSize);
+
+		index = new GazePickingIndex(scene, 0);
+		index.update();
+
+		// gaze rays from the camera into the field of view
+		Random random = new Random(42);
+		rays = new Ray[RAYS];
+		for(int i=0; i<RAYS; i++)
+		{
+			Vector3f direction = new Vector3f(random.nextFloat() - 0.5f, random.nextFloat() * 0.4f - 0.2f, 1);
+			rays[i] = new Ray(new Vector3f(0, 0, 0), direction.normalizeLocal());
+		}
+	}
+
+
+	private Ray nextRay()
+	{
+		Ray ray = rays[next];
+		next = (next + 1) % RAYS;
+		return ray;
+	}
+
+
+	@Benchmark
+	public CollisionResult collideWith()
+	{
+		CollisionResults results = new CollisionResults();
+		scene.collideWith(nextRay(), results);
+		return (results.size() > 0) ? results.getClosestCollision() : null;
+	}
+
+
+	@Benchmark
+	public CollisionResult pickingIndex()
+	{
+		// no movers, only the sweep of a few static leaves
+		index.update();
+		return index.pickClosest(nextRay());
+	}
+}